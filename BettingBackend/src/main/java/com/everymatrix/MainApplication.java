@@ -2,11 +2,15 @@ package com.everymatrix;
 
 import com.everymatrix.config.AppConfig;
 import com.everymatrix.controller.MainController;
+import com.everymatrix.metrics.MetricsRegistry;
+import com.everymatrix.persistence.OfferArchive;
+import com.everymatrix.persistence.StakePersistence;
 import com.everymatrix.server.CustomHttpServer;
 import com.everymatrix.service.BetOfferService;
 import com.everymatrix.service.SessionManager;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 
 public class MainApplication {
 
@@ -14,7 +18,21 @@ public class MainApplication {
 
         //object creation
         SessionManager sessionManager = new SessionManager(AppConfig.sessionTimeoutMilliseconds);
-        BetOfferService betOfferService = new BetOfferService();
+        OfferArchive archive = AppConfig.betOfferArchiveDirectory.isEmpty()
+                ? null : new OfferArchive(Paths.get(AppConfig.betOfferArchiveDirectory), AppConfig.betOfferArchiveCacheSize);
+        BetOfferService betOfferService;
+        if (AppConfig.persistenceEnabled) {
+            // the offers are recovered before the server takes stakes
+            StakePersistence persistence = new StakePersistence(Paths.get(AppConfig.persistenceDirectory),
+                    AppConfig.persistenceFsync, AppConfig.persistenceFsyncIntervalMillis, AppConfig.persistenceReplayThreads);
+            betOfferService = new BetOfferService(persistence.getJournal(), archive);
+            persistence.recover(betOfferService);
+            persistence.scheduleSnapshots(betOfferService, AppConfig.persistenceSnapshotIntervalSeconds);
+            Runtime.getRuntime().addShutdownHook(new Thread(persistence::close, "stake-persistence-shutdown"));
+        } else {
+            betOfferService = new BetOfferService(null, archive);
+        }
+        betOfferService.startEvictionTask();
         MainController mainController = new MainController(sessionManager, betOfferService);
 
 
@@ -22,8 +40,27 @@ public class MainApplication {
         //run the server
         CustomHttpServer server = new CustomHttpServer();
         server.registerRoutes(mainController);
+        registerOfferMetrics(server.getMetricsRegistry(), betOfferService);
         server.startServer(AppConfig.serverPort);
     }
 
-
+    /**
+     * Exposes the resident offer count, the eviction stats and the waiting subscriptions at /metrics
+     */
+    private static void registerOfferMetrics(MetricsRegistry metricsRegistry, BetOfferService betOfferService) {
+        metricsRegistry.gauge("bet_offers_resident", "Bet offers in memory", betOfferService::getResidentOfferCount);
+        metricsRegistry.counter("bet_offers_evicted_idle_total", "Bet offers evicted after bet-offer.idle-ttl-seconds",
+                betOfferService::getEvictedIdleCount);
+        metricsRegistry.counter("bet_offers_evicted_overflow_total", "Bet offers evicted beyond bet-offer.max-resident",
+                betOfferService::getEvictedOverflowCount);
+        metricsRegistry.counter("bet_offers_closed_total", "Bet offers closed", betOfferService::getClosedCount);
+        metricsRegistry.counter("bet_offers_reloaded_total", "Evicted bet offers read back from the archive by a stake",
+                betOfferService::getReloadedCount);
+        metricsRegistry.gauge("customer_index_customers", "Customers in the customer index",
+                betOfferService::getIndexedCustomerCount);
+        metricsRegistry.counter("customer_index_evicted_total", "Customers evicted from the customer index",
+                betOfferService::getEvictedCustomerCount);
+        metricsRegistry.gauge("bet_offer_subscribers", "Subscriptions waiting for a change of their offer's high stakes",
+                betOfferService::getSubscriberCount);
+    }
 }
\ No newline at end of file
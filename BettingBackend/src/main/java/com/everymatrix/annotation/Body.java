@@ -0,0 +1,16 @@
+package com.everymatrix.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Binds a {@link Route} method parameter to the request body: int (decimal, at most maxLength bytes),
+ * String (UTF-8) or InputStream
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface Body {
+    int maxLength() default 32;
+}
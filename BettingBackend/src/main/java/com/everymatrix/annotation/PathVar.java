@@ -0,0 +1,15 @@
+package com.everymatrix.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Binds a {@link Route} method parameter (int or String) to a path variable, e.g. @PathVar("betOfferId") int betOfferId
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface PathVar {
+    String value();
+}
@@ -0,0 +1,19 @@
+package com.everymatrix.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Binds a {@link Route} method parameter (int, Integer, long, Long or String) to a query parameter, e.g. @QueryParam("sessionkey") String sessionKey.
+ * An absent String parameter is null, an absent int or long parameter takes the default value or is rejected with 400 if there
+ * is none, an absent Integer or Long parameter takes the default value or is null, for an optional number.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface QueryParam {
+    String value();
+
+    String defaultValue() default "";
+}
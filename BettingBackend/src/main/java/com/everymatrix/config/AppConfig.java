@@ -1,12 +1,18 @@
 package com.everymatrix.config;
 
+import com.everymatrix.persistence.FsyncPolicy;
 import com.everymatrix.utils.LogUtils;
+import com.everymatrix.utils.UrlUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class AppConfig {
@@ -19,6 +25,21 @@ public class AppConfig {
     // Server response timeout in milliseconds
     public static int serverMaxRspTime;
 
+    // Server engine: "jdk" (com.sun.net.httpserver) or "nio" (selector based event loops)
+    public static String serverEngine;
+
+    // Number of NIO event loops, 0 for one per available processor
+    public static int serverNioEventLoops;
+
+    // NIO per connection read buffer in bytes, the max size of a request head plus body
+    public static int serverNioReadBufferBytes;
+
+    // NIO keep-alive connections idle for this many milliseconds are closed, 0: never
+    public static int serverNioIdleTimeoutMillis;
+
+    // Server executor mode: "pooled" (thread pool below) or "virtual" (one virtual thread per exchange)
+    public static String serverExecutor;
+
     // Server thread pool core pool size
     public static int serverThreadPoolCorePoolSize;
 
@@ -28,9 +49,114 @@ public class AppConfig {
     // Server thread pool keep-alive time in seconds
     public static int serverThreadPoolKeepAliveSeconds;
 
-    // Number of high-stake bets returned per offer
+    // Max requests running at the same time in virtual executor mode, 0 for no limit
+    public static int serverVirtualMaxConcurrency;
+
+    // Max requests waiting for a worker, requests beyond it are answered 503
+    public static int serverAdmissionQueueCapacity;
+
+    // Queue depth, in percent of the capacity, from which requests below the top route priority are answered 503
+    public static int serverAdmissionSheddingThresholdPercent;
+
+    // Retry-After seconds of 503 responses
+    public static int serverAdmissionRetryAfterSeconds;
+
+    // Route priorities, key: "METHOD path" e.g. "POST /{betOfferId}/stake", default priority is 0, higher is shed later
+    public static Map<String, Integer> serverAdmissionRoutePriorities = new HashMap<>();
+
+    // Whether the request metrics are served at GET /metrics, they are recorded either way
+    public static boolean serverMetricsEnabled;
+
+    // Level of the application loggers, a java.util.logging level name e.g. INFO, WARNING
+    public static String logLevel;
+
+    // Max log records waiting for the log writer thread, records beyond it are dropped
+    public static int logBufferCapacity;
+
+    // Number of high-stake bets kept and returned per offer
     public static int highStakesSizeForBetOffer;
 
+    // Per-offer number of high-stake bets kept, for the offers keeping more (or fewer) than highStakesSizeForBetOffer
+    public static Map<Integer, Integer> highStakesSizeByBetOffer = new HashMap<>();
+
+    // Lock stripes serializing the stakes of the bet offers, an offer always uses the same stripe, 0 for 4 per core
+    public static int betOfferLockStripes;
+
+    // Seconds without stake after which an offer is evicted from memory, 0 to keep idle offers
+    public static int betOfferIdleTtlSeconds;
+
+    // Max offers in memory, the least recently staked ones beyond it are evicted, 0 for no limit
+    public static int betOfferMaxResident;
+
+    // Seconds between two runs of the offer eviction, 0 to disable it
+    public static int betOfferEvictionIntervalSeconds;
+
+    // Directory of the evicted and closed offers, empty to drop the evicted offers
+    public static String betOfferArchiveDirectory;
+
+    // Offers whose archived stakes are cached in memory for the queries, one per slot of a direct-mapped table
+    public static int betOfferArchiveCacheSize;
+
+    // Whether the count, volume and per-customer totals of each offer are kept, served at GET /{betOfferId}/stats
+    public static boolean betOfferStatsEnabled;
+
+    // Offers of each customer's highest stakes kept for GET /{customerId}/stakes, 0 to keep no customer index
+    public static int customerIndexMaxOffers;
+
+    // Customers without stake for this many seconds are evicted from the customer index, 0: never
+    public static int customerIndexIdleTtlSeconds;
+
+    // Max customers in the customer index, the least recently staking ones beyond it are evicted, 0: no limit
+    public static int customerIndexMaxCustomers;
+
+    // Offers keeping the highest stake of every customer to rank them (GET /{betOfferId}/rank), sorted
+    public static int[] betOfferRankOffers = new int[0];
+
+    // Whether every offer ranks its customers, bet-offer.rank.offers=*
+    public static boolean betOfferRankAllOffers;
+
+    // Length of the time buckets of the windowed high stakes (?window=), the granularity of the windows
+    public static int betOfferWindowBucketSeconds;
+
+    // Longest window of the windowed high stakes, 0 to keep no windowed stakes
+    public static int betOfferWindowMaxSeconds;
+
+    // Seconds a GET /{betOfferId}/highstakes/subscribe waits for a change before it is answered 204
+    public static int betOfferSubscribeTimeoutSeconds;
+
+    // Milliseconds during which the changes of an offer are notified to its subscribers once
+    public static int betOfferSubscribeCoalesceMillis;
+
+    // Max subscriptions waiting for a change, the next ones are answered 503
+    public static int betOfferSubscribeMaxSubscribers;
+
+    // Max stakes of one POST /stakes/batch request, larger batches are answered 400
+    public static int betOfferBatchMaxStakes;
+
+    // Max offers of one GET /highstakes?offers= request
+    public static int betOfferMultiQueryMaxOffers;
+
+    // Token of the X-Admin-Token header closing an offer, empty: closing is disabled (403)
+    public static String betOfferCloseAdminToken;
+
+    // Whether the stakes are journaled and recovered at startup
+    public static boolean persistenceEnabled;
+
+    // Directory of the stake journal segments and snapshots
+    public static String persistenceDirectory;
+
+    // When the journal is forced to the disk: always (before placeStake returns), interval or none
+    public static FsyncPolicy persistenceFsync;
+
+    // Milliseconds between two journal forces with the interval fsync policy
+    public static int persistenceFsyncIntervalMillis;
+
+    // Seconds between two snapshots of all the offers, 0 for none
+    public static int persistenceSnapshotIntervalSeconds;
+
+    // Threads replaying the journal at startup, 0 for one per available core
+    public static int persistenceReplayThreads;
+
     // Session timeout in seconds
     public static int sessionTimeoutMilliseconds;
 
@@ -39,6 +165,13 @@ public class AppConfig {
 
     private static final String EXTERNAL_CONFIG_FILE = "appconfig.properties";
 
+    private static final String ROUTE_PRIORITY_PREFIX = "server.admission.priority.";
+
+    private static final String OFFER_STAKES_SIZE_PREFIX = "bet-offer.topN-stakes.nums.";
+
+    // Max high stakes kept for an offer: a change of the top stakes scans and copies them, O(N) under the offer's turn
+    public static final int MAX_HIGH_STAKES_SIZE = 1000;
+
     static {
         loadProperties();
     }
@@ -78,16 +211,110 @@ public class AppConfig {
             serverMaxRspTime = Integer.parseInt(properties.getProperty("server.response.max-time", "-1"));
             System.setProperty("sun.net.httpserver.maxRspTime", String.valueOf(serverMaxRspTime));
 
+            serverEngine = properties.getProperty("server.engine", "jdk").trim();
+            serverNioEventLoops = Integer.parseInt(properties.getProperty("server.nio.event-loops", "0"));
+            serverNioReadBufferBytes = Integer.parseInt(properties.getProperty("server.nio.read-buffer-bytes", "16384"));
+            serverNioIdleTimeoutMillis = Integer.parseInt(properties.getProperty("server.nio.idle-timeout-millis", "30000"));
+            serverExecutor = properties.getProperty("server.executor", "pooled").trim();
             serverThreadPoolCorePoolSize = Integer.parseInt(properties.getProperty("server.thread-pool.core-pool-size", "10"));
             serverThreadPoolMaxPoolSize = Integer.parseInt(properties.getProperty("server.thread-pool.max-pool-size", "100"));
             serverThreadPoolKeepAliveSeconds = Integer.parseInt(properties.getProperty("server.thread-pool.keep-alive-seconds", "60"));
-            highStakesSizeForBetOffer = Integer.parseInt(properties.getProperty("bet-offer.topN-stakes.nums", "20"));
+            serverVirtualMaxConcurrency = Integer.parseInt(properties.getProperty("server.virtual.max-concurrency", "1000"));
+            serverAdmissionQueueCapacity = Integer.parseInt(properties.getProperty("server.admission.queue-capacity", "1000"));
+            serverAdmissionSheddingThresholdPercent = Integer.parseInt(properties.getProperty("server.admission.shedding-threshold-percent", "80"));
+            serverAdmissionRetryAfterSeconds = Integer.parseInt(properties.getProperty("server.admission.retry-after-seconds", "1"));
+            serverMetricsEnabled = Boolean.parseBoolean(properties.getProperty("server.metrics.enabled", "true").trim());
+            logLevel = properties.getProperty("log.level", "INFO").trim();
+            logBufferCapacity = Integer.parseInt(properties.getProperty("log.buffer-capacity", "8192"));
+            LogUtils.configure(Level.parse(logLevel), logBufferCapacity);
+            loadRoutePriorities(properties);
+            highStakesSizeForBetOffer = checkHighStakesSize("bet-offer.topN-stakes.nums",
+                    Integer.parseInt(properties.getProperty("bet-offer.topN-stakes.nums", "20").trim()));
+            loadOfferStakesSizes(properties);
+            betOfferLockStripes = Integer.parseInt(properties.getProperty("bet-offer.lock-stripes", "0"));
+            betOfferIdleTtlSeconds = Integer.parseInt(properties.getProperty("bet-offer.idle-ttl-seconds", "0"));
+            betOfferMaxResident = Integer.parseInt(properties.getProperty("bet-offer.max-resident", "0"));
+            betOfferEvictionIntervalSeconds = Integer.parseInt(properties.getProperty("bet-offer.eviction-interval-seconds", "10"));
+            betOfferArchiveDirectory = properties.getProperty("bet-offer.archive.directory", "").trim();
+            betOfferArchiveCacheSize = Integer.parseInt(properties.getProperty("bet-offer.archive.cache-size", "1024"));
+            betOfferStatsEnabled = Boolean.parseBoolean(properties.getProperty("bet-offer.stats.enabled", "true").trim());
+            customerIndexMaxOffers = Integer.parseInt(properties.getProperty("bet-offer.customer-index.max-offers", "50"));
+            customerIndexIdleTtlSeconds = Integer.parseInt(properties.getProperty("bet-offer.customer-index.idle-ttl-seconds", "3600"));
+            customerIndexMaxCustomers = Integer.parseInt(properties.getProperty("bet-offer.customer-index.max-customers", "1000000"));
+            loadRankOffers(properties.getProperty("bet-offer.rank.offers", "").trim());
+            betOfferWindowBucketSeconds = Integer.parseInt(properties.getProperty("bet-offer.window.bucket-seconds", "10"));
+            betOfferWindowMaxSeconds = Integer.parseInt(properties.getProperty("bet-offer.window.max-seconds", "900"));
+            betOfferSubscribeTimeoutSeconds = Integer.parseInt(properties.getProperty("bet-offer.subscribe.timeout-seconds", "30"));
+            betOfferSubscribeCoalesceMillis = Integer.parseInt(properties.getProperty("bet-offer.subscribe.coalesce-millis", "50"));
+            betOfferSubscribeMaxSubscribers = Integer.parseInt(properties.getProperty("bet-offer.subscribe.max-subscribers", "10000"));
+            betOfferBatchMaxStakes = Integer.parseInt(properties.getProperty("bet-offer.batch.max-stakes", "10000"));
+            betOfferMultiQueryMaxOffers = Integer.parseInt(properties.getProperty("bet-offer.multi-query.max-offers", "200"));
+            betOfferCloseAdminToken = properties.getProperty("bet-offer.close.admin-token", "").trim();
+            persistenceEnabled = Boolean.parseBoolean(properties.getProperty("persistence.enabled", "false").trim());
+            persistenceDirectory = properties.getProperty("persistence.directory", "data").trim();
+            persistenceFsync = FsyncPolicy.parse(properties.getProperty("persistence.fsync", "interval"));
+            persistenceFsyncIntervalMillis = Integer.parseInt(properties.getProperty("persistence.fsync-interval-millis", "10"));
+            persistenceSnapshotIntervalSeconds = Integer.parseInt(properties.getProperty("persistence.snapshot-interval-seconds", "60"));
+            persistenceReplayThreads = Integer.parseInt(properties.getProperty("persistence.replay-threads", "0"));
             sessionTimeoutMilliseconds = Integer.parseInt(properties.getProperty("session.timeout-milliseconds", "600000"));
             serverPort = Integer.parseInt(properties.getProperty("server.port", "8080"));
 
             log.info("Configuration successfully loaded.");
-        } catch (NumberFormatException e) {
+        } catch (IllegalArgumentException e) {
             throw new RuntimeException("Invalid property value in configuration file", e);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Loads server.admission.priority.METHOD./path=priority entries, e.g. server.admission.priority.GET./{betOfferId}/highstakes=1
+     */
+    private static void loadRoutePriorities(Properties properties) {
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(ROUTE_PRIORITY_PREFIX)) {
+                String route = name.substring(ROUTE_PRIORITY_PREFIX.length());
+                int separator = route.indexOf('.');
+                if (separator <= 0) {
+                    throw new RuntimeException("Invalid route priority property: " + name);
+                }
+                String key = route.substring(0, separator).toUpperCase() + " " + route.substring(separator + 1);
+                serverAdmissionRoutePriorities.put(key, Integer.parseInt(properties.getProperty(name).trim()));
+            }
+        }
+    }
+
+    /**
+     * Loads bet-offer.topN-stakes.nums.betOfferId=size entries, e.g. bet-offer.topN-stakes.nums.9001=100
+     */
+    private static void loadOfferStakesSizes(Properties properties) {
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(OFFER_STAKES_SIZE_PREFIX)) {
+                int betOfferId = Integer.parseInt(name.substring(OFFER_STAKES_SIZE_PREFIX.length()));
+                int size = checkHighStakesSize(name, Integer.parseInt(properties.getProperty(name).trim()));
+                highStakesSizeByBetOffer.put(betOfferId, size);
+            }
+        }
+    }
+
+    /**
+     * @return the size if it is between 1 and {@link #MAX_HIGH_STAKES_SIZE}
+     */
+    private static int checkHighStakesSize(String name, int size) {
+        if (size <= 0 || size > MAX_HIGH_STAKES_SIZE) {
+            throw new IllegalArgumentException(name + " should be between 1 and " + MAX_HIGH_STAKES_SIZE + ": " + size);
+        }
+        return size;
+    }
+
+    /**
+     * Loads bet-offer.rank.offers: comma separated bet offer ids, * for all the offers, empty for none
+     */
+    private static void loadRankOffers(String value) {
+        betOfferRankAllOffers = "*".equals(value);
+        if (betOfferRankAllOffers || value.isEmpty()) {
+            betOfferRankOffers = new int[0];
+            return;
+        }
+        betOfferRankOffers = UrlUtils.parseIntList(value.replace(" ", ""), Integer.MAX_VALUE);
+        Arrays.sort(betOfferRankOffers);
+    }
+}
@@ -1,21 +1,48 @@
 package com.everymatrix.controller;
 
+import com.everymatrix.annotation.Body;
+import com.everymatrix.annotation.PathVar;
+import com.everymatrix.annotation.QueryParam;
 import com.everymatrix.annotation.Route;
+import com.everymatrix.config.AppConfig;
+import com.everymatrix.exception.HttpServerException;
+import com.everymatrix.model.DeferredResponse;
 import com.everymatrix.model.HttpMethod;
 import com.everymatrix.model.Session;
-import com.everymatrix.model.StakeEntry;
+import com.everymatrix.model.StakeBatch;
+import com.everymatrix.model.StakesSnapshot;
 import com.everymatrix.service.BetOfferService;
+import com.everymatrix.service.CustomerRanks;
+import com.everymatrix.service.CustomerStakes;
+import com.everymatrix.service.OfferStats;
 import com.everymatrix.service.SessionManager;
-import com.everymatrix.utils.IOUtils;
+import com.everymatrix.service.StakesNotifier;
+import com.everymatrix.utils.ResponseBuffer;
 import com.everymatrix.utils.UrlUtils;
 import com.sun.net.httpserver.HttpExchange;
 
 import java.io.IOException;
-import java.util.List;
-import java.util.Map;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 
 public class MainController {
 
+    /**
+     * Max bytes of a stake body, digits plus surrounding whitespace
+     */
+    private static final int MAX_STAKE_BODY_LENGTH = 32;
+
+    /**
+     * Version of the high stakes answered to a subscription
+     */
+    private static final String STAKES_VERSION_HEADER = "X-Stakes-Version";
+
+    /**
+     * Token of the admin routes, compared with bet-offer.close.admin-token
+     */
+    private static final String ADMIN_TOKEN_HEADER = "X-Admin-Token";
+
     private final SessionManager sessionManager;
 
     private final BetOfferService betOfferService;
@@ -26,53 +53,214 @@ public class MainController {
     }
 
     @Route(path = "/{customerId}/session")
-    public String getSession(HttpExchange exchange, Map<String, String> pathVariables) throws IOException {
-        String customerIdString = pathVariables.get("customerId");
-        Integer customerId;
-        try {
-            customerId = Integer.parseInt(customerIdString);
-        } catch (NumberFormatException e) {
-            throw new IllegalArgumentException("Invalid customer ID format: " + customerIdString, e);
+    public ResponseBuffer getSession(@PathVar("customerId") int customerId) {
+        return ResponseBuffer.lease().append(sessionManager.getSession(customerId));
+    }
+
+    /**
+     * The customer's highest stakes across the offers, one per offer: "betOfferId=stake,betOfferId=stake",
+     * at most bet-offer.customer-index.max-offers
+     *
+     * @param limit max stakes returned, 0 (default) for all the kept ones
+     */
+    @Route(path = "/{customerId}/stakes")
+    public ResponseBuffer queryCustomerStakes(@PathVar("customerId") int customerId,
+                                              @QueryParam(value = "limit", defaultValue = "0") int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit should not be negative: " + limit);
         }
-        return sessionManager.getSession(customerId);
+        long[] stakes = betOfferService.queryCustomerStakes(customerId);
+        int count = limit == 0 ? stakes.length : Math.min(limit, stakes.length);
+        ResponseBuffer buffer = ResponseBuffer.lease();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                buffer.append((byte) ',');
+            }
+            buffer.append(CustomerStakes.betOfferId(stakes[i])).append((byte) '=')
+                    .append(CustomerStakes.stake(stakes[i]));
+        }
+        return buffer;
     }
 
     @Route(method = HttpMethod.POST, path = "/{betOfferId}/stake")
-    public void placeStake(HttpExchange exchange, Map<String, String> pathVariables) throws IOException {
-        String betOfferIdString = pathVariables.get("betOfferId");
-        Integer betOfferId;
-        try {
-            betOfferId = Integer.parseInt(betOfferIdString);
-        } catch (NumberFormatException e) {
-            throw new IllegalArgumentException("Invalid bet offer ID format: " + betOfferIdString, e);
-        }
+    public void placeStake(@PathVar("betOfferId") int betOfferId,
+                           @QueryParam("sessionkey") String sessionKey,
+                           @Body(maxLength = MAX_STAKE_BODY_LENGTH) int stake) {
+        Session session = sessionManager.accessSession(sessionKey);
+        betOfferService.placeStake(betOfferId, session.getCustomerId(), stake);
+    }
 
-        Map<String, String> urlParams = UrlUtils.getQueryParams(exchange.getRequestURI());
-        String sessionKey = urlParams.get("sessionkey");
+    /**
+     * Places stakes on several offers in one request, the body is "betOfferId=stake" pairs separated by new lines
+     * or commas, at most bet-offer.batch.max-stakes pairs
+     */
+    @Route(method = HttpMethod.POST, path = "/stakes/batch")
+    public void placeStakes(@QueryParam("sessionkey") String sessionKey, @Body InputStream body) throws IOException {
+        Session session = sessionManager.accessSession(sessionKey);
+        betOfferService.placeStakes(session.getCustomerId(), StakeBatch.read(body, AppConfig.betOfferBatchMaxStakes));
+    }
+
+    /**
+     * Closes the offer: its high stakes are archived and stay queryable, later stakes are answered 409.
+     * Admin only: 401 without the X-Admin-Token header of bet-offer.close.admin-token, 403 if none is configured,
+     * 404 for an offer never staked, 501 without bet-offer.archive.directory.
+     */
+    @Route(method = HttpMethod.POST, path = "/{betOfferId}/close")
+    public void closeOffer(@PathVar("betOfferId") int betOfferId, HttpExchange exchange) {
+        checkAdminToken(exchange);
+        betOfferService.closeOffer(betOfferId);
+    }
 
-        String requestBody = IOUtils.readAllBytes(exchange.getRequestBody());
-        Integer stake;
-        try {
-            stake = Integer.parseInt(requestBody.trim());
-        } catch (NumberFormatException e) {
-            throw new IllegalArgumentException("Invalid stake format: " + requestBody, e);
+    /**
+     * Live stats of the stakes placed on the offer: "count=3,volume=700,customers=2",
+     * followed by ",customerTotal=500" when a customerId is given
+     */
+    @Route(path = "/{betOfferId}/stats")
+    public ResponseBuffer queryStats(@PathVar("betOfferId") int betOfferId,
+                                     @QueryParam("customerId") Integer customerId) {
+        OfferStats stats = betOfferService.queryStats(betOfferId);
+        ResponseBuffer buffer = ResponseBuffer.lease();
+        buffer.append("count=").append(stats == null ? 0L : stats.getCount())
+                .append(",volume=").append(stats == null ? 0L : stats.getVolume())
+                .append(",customers=").append(stats == null ? 0 : stats.getCustomerCount());
+        if (customerId != null) {
+            buffer.append(",customerTotal=").append(stats == null ? 0L : stats.getCustomerTotal(customerId));
         }
+        return buffer;
+    }
 
+    /**
+     * Rank of the session's customer on a ranked offer (bet-offer.rank.offers) by highest stake:
+     * "rank=143,stake=500,customers=2000", 404 if the offer is not ranked or the customer placed no stake on it
+     */
+    @Route(path = "/{betOfferId}/rank")
+    public ResponseBuffer queryRank(@PathVar("betOfferId") int betOfferId,
+                                    @QueryParam("sessionkey") String sessionKey) {
         Session session = sessionManager.accessSession(sessionKey);
-        betOfferService.placeStake(betOfferId, session.getCustomerId(), stake);
+        if (!betOfferService.isRanked(betOfferId)) {
+            throw new HttpServerException(404, "Bet offer " + betOfferId + " does not rank its customers", null);
+        }
+        CustomerRanks ranks = betOfferService.queryRanks(betOfferId);
+        int rank = ranks == null ? 0 : ranks.rankOf(session.getCustomerId());
+        if (rank == 0) {
+            throw new HttpServerException(404, "No stake of the customer on bet offer " + betOfferId, null);
+        }
+        return ResponseBuffer.lease().append("rank=").append(rank)
+                .append(",stake=").append(ranks.stakeOf(session.getCustomerId()))
+                .append(",customers=").append(ranks.size());
     }
 
+    /**
+     * @param limit  max stakes returned, 0 (default) for all the stakes kept for the offer
+     * @param window only the stakes placed in this last duration, e.g. 300s or 5m,
+     *               at most bet-offer.window.max-seconds, all time if not given
+     */
     @Route(path = "/{betOfferId}/highstakes")
-    public String queryHighStakes(HttpExchange exchange, Map<String, String> pathVariables) {
-        String betOfferIdString = pathVariables.get("betOfferId");
-        Integer betOfferId;
-        try {
-            betOfferId = Integer.parseInt(betOfferIdString);
-        } catch (NumberFormatException e) {
-            throw new IllegalArgumentException("Invalid bet offer ID format: " + betOfferIdString, e);
+    public Object queryHighStakes(@PathVar("betOfferId") int betOfferId,
+                                  @QueryParam(value = "limit", defaultValue = "0") int limit,
+                                  @QueryParam("window") String window) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit should not be negative: " + limit);
         }
+        return highStakesOf(snapshotOf(betOfferId, window), limit);
+    }
+
+    /**
+     * Long poll of an offer's high stakes, instead of polling /{betOfferId}/highstakes: answered once their version
+     * differs from sinceVersion (right away if it already does, or if sinceVersion is not given), or with 204 after
+     * bet-offer.subscribe.timeout-seconds without change. No worker waits meanwhile.
+     * The version of the stakes is sent in the X-Stakes-Version header, the sinceVersion of the next poll.
+     *
+     * @param limit max stakes returned, 0 (default) for all the stakes kept for the offer
+     */
+    @Route(path = "/{betOfferId}/highstakes/subscribe")
+    public DeferredResponse subscribeHighStakes(HttpExchange exchange,
+                                                @PathVar("betOfferId") int betOfferId,
+                                                @QueryParam(value = "sinceVersion", defaultValue = "-1") long sinceVersion,
+                                                @QueryParam(value = "limit", defaultValue = "0") int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit should not be negative: " + limit);
+        }
+        DeferredResponse response = new DeferredResponse();
+        betOfferService.subscribe(betOfferId, sinceVersion, new StakesNotifier.Subscriber() {
+            @Override
+            public void onChange(StakesSnapshot snapshot) {
+                exchange.getResponseHeaders().set(STAKES_VERSION_HEADER, String.valueOf(snapshot.getVersion()));
+                response.complete(highStakesOf(snapshot, limit));
+            }
+
+            @Override
+            public void onTimeout(StakesSnapshot snapshot) {
+                exchange.getResponseHeaders().set(STAKES_VERSION_HEADER, String.valueOf(snapshot.getVersion()));
+                response.complete(null, 204);
+            }
+        });
+        return response;
+    }
+
+    /**
+     * @param window duration of the window, null for all time
+     */
+    private StakesSnapshot snapshotOf(int betOfferId, String window) {
+        return window == null ? betOfferService.querySnapshot(betOfferId)
+                : betOfferService.queryWindow(betOfferId, UrlUtils.parseSeconds(window));
+    }
+
+    private static Object highStakesOf(StakesSnapshot snapshot, int limit) {
+        if (limit == 0 || limit >= snapshot.size()) {
+            return snapshot.getCsv();
+        }
+        // a prefix of the encoded stakes, copied into a pooled buffer
+        return ResponseBuffer.lease().append(snapshot.getCsv(), 0, snapshot.getCsvLength(limit));
+    }
 
-        List<StakeEntry> stakeEntries = betOfferService.queryStakes(betOfferId);
-        return StakeEntry.convertToCSV(stakeEntries);
+    /**
+     * High stakes of several offers in one response, one "betOfferId:customerId=stake,..." line per requested offer
+     *
+     * @param offers comma separated bet offer ids, at most bet-offer.multi-query.max-offers
+     * @param limit  max stakes per offer, 0 (default) for all the stakes kept
+     * @param window only the stakes placed in this last duration, e.g. 300s, all time if not given
+     */
+    @Route(path = "/highstakes")
+    public ResponseBuffer queryHighStakesOfOffers(@QueryParam("offers") String offers,
+                                                  @QueryParam(value = "limit", defaultValue = "0") int limit,
+                                                  @QueryParam("window") String window) {
+        if (offers == null) {
+            throw new IllegalArgumentException("Missing query parameter: offers");
+        }
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit should not be negative: " + limit);
+        }
+        int[] betOfferIds = UrlUtils.parseIntList(offers, AppConfig.betOfferMultiQueryMaxOffers);
+        StakesSnapshot[] snapshots;
+        if (window == null) {
+            snapshots = betOfferService.querySnapshots(betOfferIds);
+        } else {
+            int windowSeconds = UrlUtils.parseSeconds(window);
+            snapshots = new StakesSnapshot[betOfferIds.length];
+            for (int i = 0; i < betOfferIds.length; i++) {
+                snapshots[i] = betOfferService.queryWindow(betOfferIds[i], windowSeconds);
+            }
+        }
+        ResponseBuffer buffer = ResponseBuffer.lease();
+        for (int i = 0; i < betOfferIds.length; i++) {
+            StakesSnapshot snapshot = snapshots[i];
+            int length = limit == 0 ? snapshot.getCsv().length : snapshot.getCsvLength(limit);
+            buffer.append(betOfferIds[i]).append((byte) ':').append(snapshot.getCsv(), 0, length).append((byte) '\n');
+        }
+        return buffer;
+    }
+
+    private static void checkAdminToken(HttpExchange exchange) {
+        String adminToken = AppConfig.betOfferCloseAdminToken;
+        if (adminToken == null || adminToken.isEmpty()) {
+            throw new HttpServerException(403, "Closing bet offers is disabled, no bet-offer.close.admin-token", null);
+        }
+        String token = exchange.getRequestHeaders().getFirst(ADMIN_TOKEN_HEADER);
+        // constant time, the comparison does not reveal the matching prefix of a guess
+        if (token == null || !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                adminToken.getBytes(StandardCharsets.UTF_8))) {
+            throw new HttpServerException(401, "Missing or invalid " + ADMIN_TOKEN_HEADER, null);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,101 @@
+package com.everymatrix.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram with HDR-style log-linear buckets.
+ * <p>
+ * Values below {@code 2 * SUB_BUCKETS} have one bucket each, above that every power of two is split into
+ * {@code SUB_BUCKETS} linear buckets, so a recorded value is known within 1 / SUB_BUCKETS (about 3%)
+ * whatever its magnitude. Recording is a few atomic increments, no lock and no allocation,
+ * percentiles are computed on read from a scan of the buckets.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Highest trackable value, larger values are recorded as it: 2^40 ns is about 18 minutes
+     */
+    static final long MAX_VALUE = (1L << 40) - 1;
+    private static final int BUCKET_COUNT = bucketIndex(MAX_VALUE) + 1;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value a non negative value, e.g. nanoseconds
+     */
+    public void record(long value) {
+        long clamped = Math.min(Math.max(value, 0), MAX_VALUE);
+        buckets.getAndIncrement(bucketIndex(clamped));
+        count.increment();
+        sum.add(clamped);
+        long currentMax;
+        while (clamped > (currentMax = max.get()) && !max.compareAndSet(currentMax, clamped)) {
+            // retry, another thread recorded a value at the same time
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param quantile between 0 and 1, e.g. 0.99
+     * @return the highest value of the bucket holding the quantile, capped at the max recorded value, 0 if empty
+     */
+    public long getValueAtQuantile(double quantile) {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    static int bucketIndex(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * @return the highest value falling in the bucket
+     */
+    static long bucketUpperBound(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,25 @@
+package com.everymatrix.metrics;
+
+import com.everymatrix.annotation.Route;
+import com.everymatrix.utils.ResponseBuffer;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * The built-in /metrics route, registered by the server when server.metrics.enabled is true
+ */
+public class MetricsController {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final MetricsRegistry registry;
+
+    public MetricsController(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Route(path = "/metrics")
+    public ResponseBuffer scrape(HttpExchange exchange) {
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        return registry.writePrometheus(ResponseBuffer.lease());
+    }
+}
@@ -0,0 +1,152 @@
+package com.everymatrix.metrics;
+
+import com.everymatrix.utils.ResponseBuffer;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Holds the server metrics and writes them in the Prometheus text exposition format.
+ * <p>
+ * Route metrics are recorded by the request threads, the gauges and counters registered with
+ * {@link #gauge} and {@link #counter} are sampled when the metrics are written, so they cost nothing per request.
+ */
+public class MetricsRegistry {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final List<RouteMetrics> routes = new CopyOnWriteArrayList<>();
+    private final List<SampledMetric> sampled = new CopyOnWriteArrayList<>();
+    private final LongAdder notFoundCount = new LongAdder();
+    private final LongAdder methodNotAllowedCount = new LongAdder();
+
+    public void register(RouteMetrics routeMetrics) {
+        routes.add(routeMetrics);
+    }
+
+    /**
+     * Registers a value which can go up and down, e.g. a queue depth
+     */
+    public void gauge(String name, String help, LongSupplier value) {
+        sampled.add(new SampledMetric(name, help, "gauge", value));
+    }
+
+    /**
+     * Registers a monotonic count, e.g. rejected requests
+     */
+    public void counter(String name, String help, LongSupplier value) {
+        sampled.add(new SampledMetric(name, help, "counter", value));
+    }
+
+    /**
+     * Counts a request which matched no route, 404 or 405
+     */
+    public void recordUnmatched(int statusCode) {
+        if (statusCode == 405) {
+            methodNotAllowedCount.increment();
+        } else {
+            notFoundCount.increment();
+        }
+    }
+
+    public ResponseBuffer writePrometheus(ResponseBuffer out) {
+        out.append("# HELP http_requests_total Responses sent, by route and status code\n");
+        out.append("# TYPE http_requests_total counter\n");
+        for (RouteMetrics route : routes) {
+            for (int status = RouteMetrics.MIN_STATUS; status <= RouteMetrics.MAX_STATUS; status++) {
+                long count = route.getStatusCount(status);
+                if (count > 0) {
+                    out.append("http_requests_total{");
+                    appendRouteLabels(out, route);
+                    out.append(",status=\"").append(status).append("\"} ").append(Long.toString(count)).append((byte) '\n');
+                }
+            }
+        }
+        appendUnmatched(out, 404, notFoundCount.sum());
+        appendUnmatched(out, 405, methodNotAllowedCount.sum());
+
+        out.append("# HELP http_request_duration_seconds Time from dispatch to response, queue wait included\n");
+        out.append("# TYPE http_request_duration_seconds summary\n");
+        for (RouteMetrics route : routes) {
+            LatencyHistogram latency = route.getLatency();
+            for (double quantile : QUANTILES) {
+                out.append("http_request_duration_seconds{");
+                appendRouteLabels(out, route);
+                out.append(",quantile=\"").append(Double.toString(quantile)).append("\"} ");
+                appendSeconds(out, latency.getValueAtQuantile(quantile));
+            }
+            out.append("http_request_duration_seconds_sum{");
+            appendRouteLabels(out, route);
+            out.append("} ");
+            appendSeconds(out, latency.getSum());
+            out.append("http_request_duration_seconds_count{");
+            appendRouteLabels(out, route);
+            out.append("} ").append(Long.toString(latency.getCount())).append((byte) '\n');
+        }
+
+        out.append("# HELP http_request_duration_seconds_max Slowest response, by route\n");
+        out.append("# TYPE http_request_duration_seconds_max gauge\n");
+        for (RouteMetrics route : routes) {
+            out.append("http_request_duration_seconds_max{");
+            appendRouteLabels(out, route);
+            out.append("} ");
+            appendSeconds(out, route.getLatency().getMax());
+        }
+
+        for (SampledMetric metric : sampled) {
+            out.append("# HELP ").append(metric.name).append((byte) ' ').append(metric.help).append((byte) '\n');
+            out.append("# TYPE ").append(metric.name).append((byte) ' ').append(metric.type).append((byte) '\n');
+            out.append(metric.name).append((byte) ' ').append(Long.toString(metric.value.getAsLong())).append((byte) '\n');
+        }
+        return out;
+    }
+
+    private void appendUnmatched(ResponseBuffer out, int status, long count) {
+        if (count > 0) {
+            out.append("http_requests_total{route=\"unmatched\",status=\"").append(status).append("\"} ")
+                    .append(Long.toString(count)).append((byte) '\n');
+        }
+    }
+
+    private void appendRouteLabels(ResponseBuffer out, RouteMetrics route) {
+        out.append("method=\"").append(route.getMethod()).append("\",route=\"");
+        appendEscaped(out, route.getPath());
+        out.append((byte) '"');
+    }
+
+    private void appendSeconds(ResponseBuffer out, long nanos) {
+        out.append(Double.toString(nanos / 1e9)).append((byte) '\n');
+    }
+
+    /**
+     * Escapes a label value: backslash, double quote and line feed
+     */
+    private void appendEscaped(ResponseBuffer out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append((byte) '\\').append((byte) c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(String.valueOf(c));
+            }
+        }
+    }
+
+    private static class SampledMetric {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final LongSupplier value;
+
+        private SampledMetric(String name, String help, String type, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.everymatrix.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The request counters and latency histogram of one route, recorded by the server for every request it answers
+ */
+public class RouteMetrics {
+
+    static final int MIN_STATUS = 100;
+    static final int MAX_STATUS = 599;
+
+    private final String method;
+    private final String path;
+    private final AtomicLongArray statusCounts = new AtomicLongArray(MAX_STATUS - MIN_STATUS + 1);
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    public RouteMetrics(String method, String path) {
+        this.method = method;
+        this.path = path;
+    }
+
+    /**
+     * @param statusCode   the response status, codes outside 100-599 (e.g. no response sent) only count in the latency
+     * @param elapsedNanos time from dispatch to the response
+     */
+    public void record(int statusCode, long elapsedNanos) {
+        if (statusCode >= MIN_STATUS && statusCode <= MAX_STATUS) {
+            statusCounts.getAndIncrement(statusCode - MIN_STATUS);
+        }
+        latency.record(elapsedNanos);
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return number of responses sent with the status code
+     */
+    public long getStatusCount(int statusCode) {
+        if (statusCode < MIN_STATUS || statusCode > MAX_STATUS) {
+            return 0;
+        }
+        return statusCounts.get(statusCode - MIN_STATUS);
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+}
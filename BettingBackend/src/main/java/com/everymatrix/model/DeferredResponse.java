@@ -0,0 +1,68 @@
+package com.everymatrix.model;
+
+/**
+ * A response completed later by another thread, returned by a route method which waits for an event (e.g. a long
+ * poll): the worker is released as soon as the method returns, and the server sends the result once completed.
+ * The result is sent like a route method's return value, by a server worker: completing only hands it over.
+ */
+public final class DeferredResponse {
+
+    /**
+     * Sends the completed result, set by the server, called by the completing thread so it should not block
+     */
+    public interface Sender {
+        void send(Object result, int statusCode);
+    }
+
+    private Sender sender;
+    private Object result;
+    private int statusCode;
+    private boolean completed;
+
+    /**
+     * Completes with 200
+     *
+     * @return false if already completed, the result is not sent
+     */
+    public boolean complete(Object result) {
+        return complete(result, 200);
+    }
+
+    /**
+     * @return false if already completed, the result is not sent
+     */
+    public boolean complete(Object result, int statusCode) {
+        Sender target;
+        synchronized (this) {
+            if (completed) {
+                return false;
+            }
+            completed = true;
+            this.result = result;
+            this.statusCode = statusCode;
+            target = sender;
+        }
+        if (target != null) {
+            target.send(result, statusCode);
+        }
+        return true;
+    }
+
+    public synchronized boolean isCompleted() {
+        return completed;
+    }
+
+    /**
+     * Sets the sender of the result, called once by the server. If the response is already completed it is sent
+     * right away by this thread, otherwise by the completing one.
+     */
+    public void onComplete(Sender sender) {
+        synchronized (this) {
+            if (!completed) {
+                this.sender = sender;
+                return;
+            }
+        }
+        sender.send(result, statusCode);
+    }
+}
@@ -1,83 +1,95 @@
 package com.everymatrix.model;
 
+import com.everymatrix.metrics.RouteMetrics;
 
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Method;
-import java.net.URI;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.List;
 
 public class RouteHandler {
     private final HttpMethod httpMethod;
     private final String path; // e.g., /{customerId}/buy/{orderId}
+    private final String[] segments; // e.g., [{customerId}, buy, {orderId}]
+    private final String[] pathVariableNames; // e.g., [customerId, orderId]
     private final Method controllerMethod;
     private final Object controller;
+    private final MethodHandle invoker; // controllerMethod bound to controller, with its parameter binding
+    private final int priority; // admission priority, higher is shed later
+    private final RouteMetrics metrics;
 
-    public RouteHandler(HttpMethod httpMethod, String path, Method controllerMethod, Object controller) {
+    public RouteHandler(HttpMethod httpMethod, String path, Method controllerMethod, Object controller,
+                        MethodHandle invoker, int priority) {
         this.httpMethod = httpMethod;
         this.path = path;
+        this.segments = splitSegments(path);
+        this.pathVariableNames = extractVariableNames(segments);
         this.controllerMethod = controllerMethod;
         this.controller = controller;
+        this.invoker = invoker;
+        this.priority = priority;
+        this.metrics = new RouteMetrics(httpMethod.name(), path);
     }
 
     /**
-     * Resolve the path variables in giving uri from this route handler
-     * @param uri
-     * @return
+     * Whether the giving path template segment is a path variable, e.g. {customerId}
      */
-    public Map<String, String> getPathVariables(URI uri) {
-        Map<String, String> pathVariables = new HashMap<>();
-
-        // Create regex pattern for the path template
-        String pathRegex = getPathRegex();
-        Pattern pattern = Pattern.compile(pathRegex);
-
-        // Match the URI path to the regex pattern
-        Matcher matcher = pattern.matcher(uri.getPath());
-
-        if (matcher.matches()) {
-            // Extract variable names
-            String[] variableNames = extractVariableNames(path);
-
-            // Populate path variables map with actual values from the URI
-            for (int i = 0; i < variableNames.length; i++) {
-                pathVariables.put(variableNames[i], matcher.group(i + 1));
-            }
-        }
-
-        return pathVariables;
+    public static boolean isVariableSegment(String segment) {
+        return segment.length() > 2 && segment.charAt(0) == '{' && segment.charAt(segment.length() - 1) == '}';
     }
 
-    public Pattern getPathPattern(){
-        return Pattern.compile(this.getPathRegex());
+    /**
+     * @return the variable names of the path template, in the order they appear in the path
+     */
+    public static String[] pathVariableNames(String path) {
+        return extractVariableNames(splitSegments(path));
     }
 
     /**
-     * Extract variable names enclosed in {}
+     * Split the path template into segments, the leading slash is dropped
      */
-    private String[] extractVariableNames(String path) {
-        Pattern pattern = Pattern.compile("\\{([^/}]+)\\}");
-        Matcher matcher = pattern.matcher(path);
-
-        String[] variableNames = new String[matcher.groupCount()];
-        int index = 0;
+    private static String[] splitSegments(String path) {
+        if (path == null || path.isEmpty() || path.charAt(0) != '/') {
+            throw new IllegalArgumentException("Route path should start with '/': " + path);
+        }
+        List<String> segments = new ArrayList<>();
+        int start = 1;
+        int end;
+        while ((end = path.indexOf('/', start)) != -1) {
+            segments.add(path.substring(start, end));
+            start = end + 1;
+        }
+        segments.add(path.substring(start));
+        return segments.toArray(new String[0]);
+    }
 
-        while (matcher.find()) {
-            variableNames[index++] = matcher.group(1);
+    /**
+     * Extract variable names enclosed in {} , in the order they appear in the path
+     */
+    private static String[] extractVariableNames(String[] segments) {
+        List<String> variableNames = new ArrayList<>();
+        for (String segment : segments) {
+            if (isVariableSegment(segment)) {
+                variableNames.add(segment.substring(1, segment.length() - 1));
+            }
         }
+        return variableNames.toArray(new String[0]);
+    }
 
-        return variableNames;
+    public HttpMethod getHttpMethod() {
+        return httpMethod;
     }
 
-    private String getPathRegex() {
-        // Convert path template like /{customerId}/buy/{orderId} to regex /([^/]+)/buy/([^/]+)
-        return this.path.replaceAll("\\{([^/}]+)\\}", "([^/]+)");
+    public String getPath() {
+        return path;
     }
 
+    public String[] getSegments() {
+        return segments;
+    }
 
-    public HttpMethod getHttpMethod() {
-        return httpMethod;
+    public String[] getPathVariableNames() {
+        return pathVariableNames;
     }
 
     public Method getControllerMethod() {
@@ -87,4 +99,16 @@ public class RouteHandler {
     public Object getController() {
         return controller;
     }
+
+    public MethodHandle getInvoker() {
+        return invoker;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public RouteMetrics getMetrics() {
+        return metrics;
+    }
 }
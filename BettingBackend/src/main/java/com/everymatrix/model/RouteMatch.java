@@ -0,0 +1,66 @@
+package com.everymatrix.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Result of resolving a request against the route trie: the matched handler together with the
+ * path variable values, in the order they are declared in the route path.
+ * <p>
+ * When no handler is found, {@link #isMethodNotAllowed()} tells a 405 (path exists, method does not) from a 404.
+ */
+public class RouteMatch {
+    private RouteHandler handler;
+    private final String[] pathVariableValues;
+    private String allowedMethods;
+
+    public RouteMatch(int maxPathVariables) {
+        this.pathVariableValues = new String[maxPathVariables];
+    }
+
+    public void setHandler(RouteHandler handler) {
+        this.handler = handler;
+    }
+
+    public void setPathVariable(int index, String value) {
+        pathVariableValues[index] = value;
+    }
+
+    public void setAllowedMethods(String allowedMethods) {
+        this.allowedMethods = allowedMethods;
+    }
+
+    public RouteHandler getHandler() {
+        return handler;
+    }
+
+    /**
+     * @return value of the index-th path variable of the matched route
+     */
+    public String getPathVariable(int index) {
+        return pathVariableValues[index];
+    }
+
+    /**
+     * Build the name -> value view of the path variables for handlers taking a map
+     */
+    public Map<String, String> getPathVariables() {
+        String[] names = handler.getPathVariableNames();
+        Map<String, String> pathVariables = new HashMap<>(names.length * 2);
+        for (int i = 0; i < names.length; i++) {
+            pathVariables.put(names[i], pathVariableValues[i]);
+        }
+        return pathVariables;
+    }
+
+    public boolean isMethodNotAllowed() {
+        return handler == null && allowedMethods != null;
+    }
+
+    /**
+     * @return value for the Allow header when the method is not allowed, e.g. "GET, POST"
+     */
+    public String getAllowedMethods() {
+        return allowedMethods;
+    }
+}
@@ -0,0 +1,135 @@
+package com.everymatrix.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Stakes of one customer on several bet offers, decoded from a batch body of "betOfferId=stake" pairs separated by
+ * new lines or commas, e.g. "9001=200\n9002=350".
+ */
+public final class StakeBatch {
+
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    // decoder states, a pair is "offer=stake" with optional whitespace around the numbers and a sign on the stake
+    private static final int BEFORE_OFFER = 0;
+    private static final int OFFER = 1;
+    private static final int AFTER_OFFER = 2;
+    private static final int BEFORE_STAKE = 3;
+    private static final int SIGN = 4;
+    private static final int STAKE = 5;
+    private static final int AFTER_STAKE = 6;
+
+    private int[] betOfferIds;
+    private int[] stakes;
+    private int size;
+
+    private StakeBatch(int initialCapacity) {
+        this.betOfferIds = new int[initialCapacity];
+        this.stakes = new int[initialCapacity];
+    }
+
+    /**
+     * Decodes the pairs straight from the stream bytes, whitespace around numbers and empty lines are allowed
+     *
+     * @param maxStakes max number of pairs, a larger batch is rejected
+     * @throws NumberFormatException if a pair is malformed, an int out of range, or the batch is too large
+     */
+    public static StakeBatch read(InputStream inputStream, int maxStakes) throws IOException {
+        StakeBatch batch = new StakeBatch(Math.min(maxStakes, 64));
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        int state = BEFORE_OFFER;
+        long betOfferId = 0;
+        long stake = 0;
+        boolean negative = false;
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                int b = buffer[i];
+                if (b == '\n' || b == ',') {
+                    batch.endPair(state, betOfferId, negative ? -stake : stake, maxStakes);
+                    state = BEFORE_OFFER;
+                } else if (b == ' ' || b == '\t' || b == '\r') {
+                    if (state == OFFER) {
+                        state = AFTER_OFFER;
+                    } else if (state == STAKE) {
+                        state = AFTER_STAKE;
+                    } else if (state == SIGN) {
+                        throw new NumberFormatException("Invalid stake pair in batch");
+                    }
+                } else if (b >= '0' && b <= '9') {
+                    if (state == BEFORE_OFFER) {
+                        betOfferId = 0;
+                        state = OFFER;
+                    } else if (state == BEFORE_STAKE || state == SIGN) {
+                        stake = 0;
+                        state = STAKE;
+                    } else if (state != OFFER && state != STAKE) {
+                        throw new NumberFormatException("Invalid stake pair in batch");
+                    }
+                    if (state == OFFER) {
+                        betOfferId = accumulate(betOfferId, b);
+                    } else {
+                        stake = accumulate(stake, b);
+                    }
+                } else if (b == '=' && (state == OFFER || state == AFTER_OFFER)) {
+                    negative = false;
+                    state = BEFORE_STAKE;
+                } else if ((b == '-' || b == '+') && state == BEFORE_STAKE) {
+                    negative = b == '-';
+                    state = SIGN;
+                } else {
+                    throw new NumberFormatException("Invalid character in stake batch");
+                }
+            }
+        }
+        batch.endPair(state, betOfferId, negative ? -stake : stake, maxStakes);
+        return batch;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getBetOfferId(int index) {
+        return betOfferIds[index];
+    }
+
+    public int getStake(int index) {
+        return stakes[index];
+    }
+
+    private void endPair(int state, long betOfferId, long stake, int maxStakes) {
+        if (state == BEFORE_OFFER) {
+            // empty line
+            return;
+        }
+        if (state != STAKE && state != AFTER_STAKE) {
+            throw new NumberFormatException("Incomplete stake pair in batch");
+        }
+        if (betOfferId > Integer.MAX_VALUE || stake < Integer.MIN_VALUE || stake > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Int out of range in stake batch");
+        }
+        if (size == maxStakes) {
+            throw new NumberFormatException("Stake batch larger than " + maxStakes + " stakes");
+        }
+        if (size == betOfferIds.length) {
+            int capacity = (int) Math.min(maxStakes, size * 2L);
+            betOfferIds = Arrays.copyOf(betOfferIds, capacity);
+            stakes = Arrays.copyOf(stakes, capacity);
+        }
+        betOfferIds[size] = (int) betOfferId;
+        stakes[size] = (int) stake;
+        size++;
+    }
+
+    private static long accumulate(long value, int digit) {
+        long next = value * 10 + (digit - '0');
+        // one above Integer.MAX_VALUE for a negative stake, range checked when the pair ends
+        if (next > Integer.MAX_VALUE + 1L) {
+            throw new NumberFormatException("Int out of range in stake batch");
+        }
+        return next;
+    }
+}
@@ -1,7 +1,8 @@
 package com.everymatrix.model;
 
+import com.everymatrix.utils.ResponseBuffer;
+
 import java.util.List;
-import java.util.Objects;
 import java.util.stream.Collectors;
 
 
@@ -22,9 +23,13 @@ public class StakeEntry implements Comparable<StakeEntry> {
         return stake;
     }
 
+    /**
+     * Stake descending, then customerId ascending so entries of different customers with the same stake are distinct
+     */
     @Override
     public int compareTo(StakeEntry other) {
-        return other.stake - this.stake;
+        int byStake = Integer.compare(other.stake, this.stake);
+        return byStake != 0 ? byStake : Integer.compare(this.customerId, other.customerId);
     }
 
     @Override
@@ -32,13 +37,38 @@ public class StakeEntry implements Comparable<StakeEntry> {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         StakeEntry that = (StakeEntry) o;
-        return Objects.equals(customerId, that.customerId) &&
-                Objects.equals(stake, that.stake);
+        return customerId == that.customerId && stake == that.stake;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(customerId, stake);
+        return 31 * customerId + stake;
+    }
+
+    /**
+     * Packs the pair in a long, for arrays of stakes without an object per stake: stake high, customerId low
+     */
+    public static long pack(int customerId, int stake) {
+        return ((long) stake << 32) | (customerId & 0xFFFFFFFFL);
+    }
+
+    public static int customerId(long packed) {
+        return (int) packed;
+    }
+
+    public static int stake(long packed) {
+        return (int) (packed >> 32);
+    }
+
+    /**
+     * Same order as {@link #compareTo}: stake descending, then customerId ascending
+     *
+     * @return whether the packed pair a ranks before b
+     */
+    public static boolean ranksBefore(long a, long b) {
+        int stakeA = stake(a);
+        int stakeB = stake(b);
+        return stakeA > stakeB || (stakeA == stakeB && customerId(a) < customerId(b));
     }
 
     public static String convertToCSV(List<StakeEntry> stakeEntries) {
@@ -49,4 +79,18 @@ public class StakeEntry implements Comparable<StakeEntry> {
                 .map(stakeEntry -> stakeEntry.customerId + "=" + stakeEntry.stake)
                 .collect(Collectors.joining(","));
     }
+
+    /**
+     * Writes the entries as "customerId=stake,customerId=stake" into the buffer, without intermediate strings
+     */
+    public static ResponseBuffer writeCSV(List<StakeEntry> stakeEntries, ResponseBuffer buffer) {
+        for (int i = 0; i < stakeEntries.size(); i++) {
+            StakeEntry stakeEntry = stakeEntries.get(i);
+            if (i > 0) {
+                buffer.append((byte) ',');
+            }
+            buffer.append(stakeEntry.customerId).append((byte) '=').append(stakeEntry.stake);
+        }
+        return buffer;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,112 @@
+package com.everymatrix.model;
+
+import com.everymatrix.utils.ResponseBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable view of an offer's top stakes, published as a whole each time they change: the stakes packed
+ * with {@link StakeEntry#pack}, their CSV encoding ready to be sent, and a version growing with each change of the offer, also across its
+ * evictions and the restarts (0 for a snapshot read from the archive).
+ * <p>
+ * The CSV is encoded on the first read, so offers which are never queried do not hold it. The end offset of each
+ * entry in it is kept with it, so the first k entries are a prefix of the same bytes, any k costs no re-encoding.
+ */
+public final class StakesSnapshot {
+
+    public static final StakesSnapshot EMPTY = new StakesSnapshot(new long[0], 0);
+
+    private final long[] stakes;
+    private final long version;
+    // encoded once, racing first readers encode the same bytes
+    private volatile EncodedCsv csv;
+
+    /**
+     * @param stakes packed stakes, highest first, owned by the snapshot from now on
+     */
+    public StakesSnapshot(long[] stakes, long version) {
+        this.stakes = stakes;
+        this.version = version;
+    }
+
+    public int size() {
+        return stakes.length;
+    }
+
+    public int getCustomerId(int index) {
+        return StakeEntry.customerId(stakes[index]);
+    }
+
+    public int getStake(int index) {
+        return StakeEntry.stake(stakes[index]);
+    }
+
+    /**
+     * @return the packed stakes, highest first, must not be modified
+     */
+    public long[] getPackedStakes() {
+        return stakes;
+    }
+
+    /**
+     * @return the stakes as entries, highest first, a new list on each call
+     */
+    public List<StakeEntry> getEntries() {
+        List<StakeEntry> entries = new ArrayList<>(stakes.length);
+        for (long stake : stakes) {
+            entries.add(new StakeEntry(StakeEntry.customerId(stake), StakeEntry.stake(stake)));
+        }
+        return entries;
+    }
+
+    /**
+     * @return the stakes as "customerId=stake,customerId=stake", must not be modified
+     */
+    public byte[] getCsv() {
+        return encodedCsv().bytes;
+    }
+
+    /**
+     * @return length of the CSV prefix holding the first limit entries, the whole CSV if limit is size() or more
+     */
+    public int getCsvLength(int limit) {
+        EncodedCsv encoded = encodedCsv();
+        return limit >= stakes.length ? encoded.bytes.length : limit <= 0 ? 0 : encoded.ends[limit - 1];
+    }
+
+    private EncodedCsv encodedCsv() {
+        EncodedCsv encoded = csv;
+        if (encoded == null) {
+            int[] ends = new int[stakes.length];
+            ResponseBuffer buffer = ResponseBuffer.lease();
+            for (int i = 0; i < stakes.length; i++) {
+                if (i > 0) {
+                    buffer.append((byte) ',');
+                }
+                buffer.append(getCustomerId(i)).append((byte) '=').append(getStake(i));
+                ends[i] = buffer.size();
+            }
+            encoded = new EncodedCsv(Arrays.copyOf(buffer.array(), buffer.size()), ends);
+            buffer.release();
+            csv = encoded;
+        }
+        return encoded;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    private static final class EncodedCsv {
+        private final byte[] bytes;
+        // end offset of each entry, excluding the comma before the next one
+        private final int[] ends;
+
+        private EncodedCsv(byte[] bytes, int[] ends) {
+            this.bytes = bytes;
+            this.ends = ends;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.everymatrix.persistence;
+
+/**
+ * When the stake journal forces its writes to the disk, selected by persistence.fsync
+ */
+public enum FsyncPolicy {
+    /**
+     * placeStake returns once its stake is on the disk, concurrent stakes share one fsync (group commit)
+     */
+    ALWAYS,
+    /**
+     * the journal is forced every persistence.fsync-interval-millis, a crash loses at most that window
+     */
+    INTERVAL,
+    /**
+     * the journal is written without fsync, the OS decides when it reaches the disk
+     */
+    NONE;
+
+    public static FsyncPolicy parse(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown persistence.fsync: " + name + ", expected always, interval or none", e);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.everymatrix.persistence;
+
+import com.everymatrix.utils.ConcurrentIntObjectMap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.Stream;
+
+/**
+ * Top stakes of the offers which are no longer resident, one file per offer: N.offer for an offer evicted while
+ * open, N.closed for a closed offer. A file is the offer's count of packed stakes then the stakes
+ * (see {@link com.everymatrix.model.StakeEntry#pack}), written to a temporary file, forced to the disk and renamed.
+ * <p>
+ * The archived offer ids are listed once at startup and kept in memory with their state, so a stake or a query of
+ * an offer never archived touches no file. The stakes last read or written are cached in a direct-mapped table of
+ * cacheSize slots, one offer per slot, the last one hashed to it: the queries of an archived offer read its file
+ * once while it stays in its slot.
+ * <p>
+ * An archived offer holds at most the stakes of the resident one: merging it again into the offer changes nothing,
+ * so the file of an offer reloaded after an eviction is kept until the next eviction overwrites it.
+ */
+public class OfferArchive {
+
+    private static final String OPEN_SUFFIX = ".offer";
+    private static final String CLOSED_SUFFIX = ".closed";
+
+    private static final int DEFAULT_CACHE_SIZE = 1024;
+
+    private final Path directory;
+
+    /**
+     * Key: id of an archived offer, Value: true once closed, false while evicted
+     */
+    private final ConcurrentIntObjectMap<Boolean> offers = new ConcurrentIntObjectMap<>();
+
+    private final AtomicReferenceArray<CachedStakes> cache;
+
+    public OfferArchive(Path directory) throws IOException {
+        this(directory, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param cacheSize slots of the archived stakes cache, rounded up to a power of two
+     */
+    public OfferArchive(Path directory, int cacheSize) throws IOException {
+        this.directory = directory;
+        this.cache = new AtomicReferenceArray<>(Integer.highestOneBit(Math.max(1, cacheSize - 1)) << 1);
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString()).forEach(name -> {
+                if (name.endsWith(CLOSED_SUFFIX)) {
+                    offers.put(offerId(name, CLOSED_SUFFIX), Boolean.TRUE);
+                } else if (name.endsWith(OPEN_SUFFIX)) {
+                    offers.computeIfAbsent(offerId(name, OPEN_SUFFIX), key -> Boolean.FALSE);
+                }
+            });
+        }
+    }
+
+    /**
+     * Archives the stakes of an offer evicted from memory, it can take stakes again later.
+     * Forced to the disk: the offer leaves the memory and the journal snapshots, this file is its only copy.
+     */
+    public void writeEvicted(int betOfferId, long[] stakes) throws IOException {
+        write(path(betOfferId, OPEN_SUFFIX), stakes);
+        offers.put(betOfferId, Boolean.FALSE);
+        cache.set(slot(betOfferId), new CachedStakes(betOfferId, stakes));
+    }
+
+    /**
+     * Archives the final stakes of a closed offer and drops its evicted copy
+     */
+    public void writeClosed(int betOfferId, long[] stakes) throws IOException {
+        write(path(betOfferId, CLOSED_SUFFIX), stakes);
+        offers.put(betOfferId, Boolean.TRUE);
+        cache.set(slot(betOfferId), new CachedStakes(betOfferId, stakes));
+        Files.deleteIfExists(path(betOfferId, OPEN_SUFFIX));
+    }
+
+    /**
+     * @return the archived stakes of an offer evicted while open, null if none, must not be modified
+     */
+    public long[] readEvicted(int betOfferId) throws IOException {
+        return offers.get(betOfferId) == Boolean.FALSE ? read(betOfferId, OPEN_SUFFIX) : null;
+    }
+
+    /**
+     * @return the final stakes of a closed offer, null if the offer is not closed, must not be modified
+     */
+    public long[] readClosed(int betOfferId) throws IOException {
+        return offers.get(betOfferId) == Boolean.TRUE ? read(betOfferId, CLOSED_SUFFIX) : null;
+    }
+
+    /**
+     * A map lookup, no file access
+     */
+    public boolean isClosed(int betOfferId) {
+        return offers.get(betOfferId) == Boolean.TRUE;
+    }
+
+    /**
+     * A map lookup, no file access
+     *
+     * @return true if the offer is evicted or closed
+     */
+    public boolean isArchived(int betOfferId) {
+        return offers.get(betOfferId) != null;
+    }
+
+    /**
+     * @return ids of the closed offers
+     */
+    public List<Integer> closedOfferIds() {
+        List<Integer> ids = new ArrayList<>();
+        offers.forEach((betOfferId, closed) -> {
+            if (closed) {
+                ids.add(betOfferId);
+            }
+        });
+        return ids;
+    }
+
+    /**
+     * Reads the offer's stakes from the cache, or from its file into the cache unless a write replaced the slot
+     * meanwhile: a write sets its slot after renaming its file, so a read never caches stakes older than the file.
+     */
+    private long[] read(int betOfferId, String suffix) throws IOException {
+        int slot = slot(betOfferId);
+        CachedStakes cached = cache.get(slot);
+        if (cached != null && cached.betOfferId == betOfferId) {
+            return cached.stakes;
+        }
+        long[] stakes = read(path(betOfferId, suffix));
+        if (stakes != null) {
+            cache.compareAndSet(slot, cached, new CachedStakes(betOfferId, stakes));
+        }
+        return stakes;
+    }
+
+    private void write(Path target, long[] stakes) throws IOException {
+        Path temporary = directory.resolve(target.getFileName() + ".tmp");
+        ByteBuffer buffer = ByteBuffer.allocate(4 + stakes.length * 8);
+        buffer.putInt(stakes.length);
+        for (long stake : stakes) {
+            buffer.putLong(stake);
+        }
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static long[] read(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        long[] stakes = new long[buffer.getInt()];
+        for (int i = 0; i < stakes.length; i++) {
+            stakes[i] = buffer.getLong();
+        }
+        return stakes;
+    }
+
+    private Path path(int betOfferId, String suffix) {
+        return directory.resolve(betOfferId + suffix);
+    }
+
+    private static int offerId(String fileName, String suffix) {
+        return Integer.parseInt(fileName.substring(0, fileName.length() - suffix.length()));
+    }
+
+    private int slot(int betOfferId) {
+        int h = betOfferId * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (cache.length() - 1);
+    }
+
+    private static final class CachedStakes {
+        private final int betOfferId;
+        private final long[] stakes;
+
+        private CachedStakes(int betOfferId, long[] stakes) {
+            this.betOfferId = betOfferId;
+            this.stakes = stakes;
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package com.everymatrix.persistence;
+
+import com.everymatrix.utils.LogUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntUnaryOperator;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Append-only journal of the stakes which changed a top-N, in numbered segment files journal-N.log.
+ * <p>
+ * A record is 16 bytes: betOfferId, customerId, stake and a check value detecting a record torn by a crash.
+ * Appending copies the record into the current batch buffer. A single writer thread swaps the batch with its spare
+ * buffer, writes it with one FileChannel write and forces it according to the {@link FsyncPolicy}, so concurrent
+ * stakes share one write and one fsync (group commit). Appending blocks only if the batch buffer is full.
+ * <p>
+ * Replaying the journal is order independent: a top-N of per-customer maximum stakes is the same whatever the order
+ * the stakes are applied in, and applying a stake twice changes nothing. So a snapshot taken while stakes are
+ * being appended, plus the segments from its rotation on, restores exactly the state at the crash.
+ */
+public class StakeJournal implements AutoCloseable {
+
+    static final int RECORD_SIZE = 16;
+    private static final int BATCH_BUFFER_SIZE = 64 * 1024;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Logger log = LogUtils.getLogger();
+    private final Path directory;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition batchReady = lock.newCondition();
+    private final Condition batchTaken = lock.newCondition();
+    private final Condition durable = lock.newCondition();
+
+    // guarded by lock
+    private ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_BUFFER_SIZE);
+    private ByteBuffer spare = ByteBuffer.allocateDirect(BATCH_BUFFER_SIZE);
+    private long appendedCount;
+    private long durableCount;
+    private CompletableFuture<Long> rotation;
+    private boolean closing;
+    private IOException failure;
+
+    // only used by the writer thread
+    private FileChannel channel;
+    private long segmentId;
+
+    private final Thread writer;
+
+    /**
+     * Opens a new segment after the existing ones, they are left for {@link #replay}
+     */
+    public StakeJournal(Path directory, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis) throws IOException {
+        this.directory = directory;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, fsyncIntervalMillis));
+        Files.createDirectories(directory);
+        List<Long> segments = segmentIds(directory);
+        this.segmentId = segments.isEmpty() ? 1 : segments.get(segments.size() - 1) + 1;
+        this.channel = openSegment(segmentId);
+        this.writer = new Thread(this::writeBatches, "stake-journal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Appends the stake to the current batch, called under the offer's stripe lock right after the stake is applied
+     */
+    public void append(int betOfferId, int customerId, int stake) {
+        lock.lock();
+        try {
+            while (!batch.hasRemaining() && !closing) {
+                batchTaken.awaitUninterruptibly();
+            }
+            if (closing) {
+                throw new IllegalStateException("Stake journal is closed");
+            }
+            batch.putInt(betOfferId).putInt(customerId).putInt(stake).putInt(check(betOfferId, customerId, stake));
+            appendedCount++;
+            batchReady.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * With {@link FsyncPolicy#ALWAYS}, waits until every stake appended so far is forced to the disk,
+     * returns right away with the other policies
+     */
+    public void awaitDurable() {
+        if (fsyncPolicy != FsyncPolicy.ALWAYS) {
+            return;
+        }
+        lock.lock();
+        try {
+            long target = appendedCount;
+            while (durableCount < target && failure == null && !closing) {
+                durable.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw new IllegalStateException("Stake journal write failed", failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the current segment once the stakes appended so far are written and forced, and opens the next one
+     *
+     * @return id of the new segment, the stakes appended from now on are in it or in later segments
+     */
+    public long rotate() throws IOException {
+        CompletableFuture<Long> request = new CompletableFuture<>();
+        lock.lock();
+        try {
+            if (closing) {
+                throw new IOException("Stake journal is closed");
+            }
+            rotation = request;
+            batchReady.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            return request.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rotating the stake journal", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Stake journal rotation failed", e.getCause());
+        }
+    }
+
+    /**
+     * Deletes the segments before the given one, once a snapshot covers them
+     */
+    public void deleteSegmentsBefore(long segmentId) throws IOException {
+        for (long id : segmentIds(directory)) {
+            if (id < segmentId) {
+                Files.deleteIfExists(segmentPath(directory, id));
+            }
+        }
+    }
+
+    /**
+     * Writes and forces the pending stakes, then stops the writer
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closing = true;
+            batchReady.signal();
+            batchTaken.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeBatches() {
+        long lastForce = System.nanoTime();
+        boolean unforced = false;
+        while (true) {
+            ByteBuffer toWrite;
+            long count;
+            CompletableFuture<Long> rotationRequest;
+            boolean stopping;
+            lock.lock();
+            try {
+                while (batch.position() == 0 && rotation == null && !closing) {
+                    if (unforced) {
+                        long remaining = fsyncIntervalNanos - (System.nanoTime() - lastForce);
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        batchReady.awaitNanos(remaining);
+                    } else {
+                        batchReady.await();
+                    }
+                }
+                toWrite = batch;
+                batch = spare;
+                spare = toWrite;
+                count = appendedCount;
+                rotationRequest = rotation;
+                rotation = null;
+                stopping = closing;
+                batchTaken.signalAll();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                toWrite.flip();
+                while (toWrite.hasRemaining()) {
+                    channel.write(toWrite);
+                }
+                toWrite.clear();
+
+                long now = System.nanoTime();
+                boolean force = rotationRequest != null || stopping
+                        || fsyncPolicy == FsyncPolicy.ALWAYS
+                        || (fsyncPolicy == FsyncPolicy.INTERVAL && now - lastForce >= fsyncIntervalNanos);
+                if (force) {
+                    channel.force(false);
+                    lastForce = now;
+                    markDurable(count);
+                }
+                // with INTERVAL, wake up to force a written batch even if no other stake comes
+                unforced = !force && fsyncPolicy == FsyncPolicy.INTERVAL;
+                if (rotationRequest != null) {
+                    channel.close();
+                    segmentId++;
+                    channel = openSegment(segmentId);
+                    rotationRequest.complete(segmentId);
+                }
+                if (stopping) {
+                    channel.close();
+                    return;
+                }
+            } catch (IOException e) {
+                log.severe("Stake journal write failed: " + e);
+                lock.lock();
+                try {
+                    failure = e;
+                    durable.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                if (rotationRequest != null) {
+                    rotationRequest.completeExceptionally(e);
+                }
+                if (stopping) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void markDurable(long count) {
+        lock.lock();
+        try {
+            durableCount = count;
+            durable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private FileChannel openSegment(long id) throws IOException {
+        return FileChannel.open(segmentPath(directory, id),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Receives the replayed stakes
+     */
+    public interface StakeConsumer {
+        void accept(int betOfferId, int customerId, int stake);
+    }
+
+    /**
+     * Replays the segments from the given one on, each segment is memory-mapped and scanned by every thread,
+     * a thread applies only the offers of its partition so an offer is always applied by the same thread.
+     * A segment is replayed up to its first incomplete or torn record.
+     *
+     * @param threads   number of replay threads, each stake is passed to the consumer on the thread owning its offer
+     * @param partition offer id -> partition in [0, threads)
+     * @return number of stakes replayed
+     */
+    public static long replay(Path directory, long fromSegmentId, int threads,
+                              IntUnaryOperator partition, StakeConsumer consumer) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return 0;
+        }
+        List<MappedByteBuffer> segments = new ArrayList<>();
+        for (long id : segmentIds(directory)) {
+            if (id >= fromSegmentId) {
+                try (FileChannel segment = FileChannel.open(segmentPath(directory, id), StandardOpenOption.READ)) {
+                    segments.add(segment.map(FileChannel.MapMode.READ_ONLY, 0, segment.size()));
+                }
+            }
+        }
+        long[] replayed = new long[threads];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int owned = t;
+            workers[t] = new Thread(() -> {
+                for (MappedByteBuffer segment : segments) {
+                    for (int position = 0; position + RECORD_SIZE <= segment.limit(); position += RECORD_SIZE) {
+                        int betOfferId = segment.getInt(position);
+                        int customerId = segment.getInt(position + 4);
+                        int stake = segment.getInt(position + 8);
+                        if (segment.getInt(position + 12) != check(betOfferId, customerId, stake)) {
+                            break;
+                        }
+                        if (partition.applyAsInt(betOfferId) == owned) {
+                            consumer.accept(betOfferId, customerId, stake);
+                            replayed[owned]++;
+                        }
+                    }
+                }
+            }, "stake-journal-replay-" + t);
+            workers[t].start();
+        }
+        long total = 0;
+        for (int t = 0; t < threads; t++) {
+            try {
+                workers[t].join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while replaying the stake journal", e);
+            }
+            total += replayed[t];
+        }
+        return total;
+    }
+
+    static int check(int betOfferId, int customerId, int stake) {
+        int h = betOfferId * 0x9E3779B9 ^ Integer.rotateLeft(customerId * 0x85EBCA6B, 11) ^ Integer.rotateLeft(stake * 0xC2B2AE35, 22);
+        return h ^ (h >>> 15) ^ 0x5A4B3C2D;
+    }
+
+    static List<Long> segmentIds(Path directory) throws IOException {
+        List<Long> ids = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return ids;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .forEach(name -> ids.add(Long.parseLong(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()))));
+        }
+        ids.sort(null);
+        return ids;
+    }
+
+    private static Path segmentPath(Path directory, long id) {
+        return directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+}
@@ -0,0 +1,110 @@
+package com.everymatrix.persistence;
+
+import com.everymatrix.service.BetOfferService;
+import com.everymatrix.utils.LogUtils;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the stake state across restarts: the {@link StakeJournal} records every stake which changed a top-N,
+ * a {@link StakeSnapshotStore} snapshot of all the offers is taken periodically so the journal before it can be
+ * deleted, and {@link #recover} rebuilds the offers from the latest snapshot plus the journal after it.
+ * <p>
+ * A snapshot first rotates the journal to a new segment N, then writes the offers as snapshot-N: every stake
+ * journaled before N was applied before the rotation so the snapshot holds it, the later ones are replayed from N.
+ */
+public class StakePersistence implements AutoCloseable {
+
+    private final Logger log = LogUtils.getLogger();
+    private final Path directory;
+    private final int replayThreads;
+    private final StakeJournal journal;
+    private final StakeSnapshotStore snapshots;
+    private ScheduledExecutorService snapshotScheduler;
+
+    /**
+     * Opens the journal, it appends to a new segment after the ones left by the previous run
+     *
+     * @param replayThreads threads replaying the journal, 0 or less for one per available core
+     */
+    public StakePersistence(Path directory, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis, int replayThreads)
+            throws IOException {
+        this.directory = directory;
+        this.replayThreads = replayThreads > 0 ? replayThreads : Runtime.getRuntime().availableProcessors();
+        this.journal = new StakeJournal(directory, fsyncPolicy, fsyncIntervalMillis);
+        this.snapshots = new StakeSnapshotStore(directory);
+    }
+
+    public StakeJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Restores the offers of the latest snapshot then replays the journal after it, in parallel by offer.
+     * Called before the service takes stakes.
+     */
+    public void recover(BetOfferService betOfferService) throws IOException {
+        long start = System.nanoTime();
+        int[] offerCount = new int[1];
+        long fromSegment = snapshots.load((betOfferId, stakes) -> {
+            betOfferService.restoreOffer(betOfferId, stakes);
+            offerCount[0]++;
+        });
+        long replayed = StakeJournal.replay(directory, fromSegment, replayThreads,
+                betOfferId -> partition(betOfferId, replayThreads), betOfferService::restoreStake);
+        log.info(String.format("Recovered %d offers from snapshot and %d journaled stakes in %d ms",
+                offerCount[0], replayed, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+    }
+
+    /**
+     * Takes a snapshot every intervalSeconds, 0 or less for none (the journal then grows until the next start)
+     */
+    public void scheduleSnapshots(BetOfferService betOfferService, int intervalSeconds) {
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        snapshotScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stake-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot(betOfferService);
+            } catch (IOException | RuntimeException e) {
+                log.severe("Stake snapshot failed: " + e);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Writes a snapshot of all the offers and deletes the journal segments it covers
+     */
+    public void snapshot(BetOfferService betOfferService) throws IOException {
+        long segmentId = journal.rotate();
+        snapshots.write(segmentId, consumer ->
+                betOfferService.forEachOffer((betOfferId, snapshot) -> consumer.accept(betOfferId, snapshot.getPackedStakes())));
+        journal.deleteSegmentsBefore(segmentId);
+    }
+
+    /**
+     * Stops the snapshots and forces the journal
+     */
+    @Override
+    public void close() {
+        if (snapshotScheduler != null) {
+            snapshotScheduler.shutdownNow();
+        }
+        journal.close();
+    }
+
+    private static int partition(int betOfferId, int partitions) {
+        int h = betOfferId * 0x9E3779B9;
+        return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % partitions;
+    }
+}
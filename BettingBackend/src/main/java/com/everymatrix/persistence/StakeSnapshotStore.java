@@ -0,0 +1,131 @@
+package com.everymatrix.persistence;
+
+import com.everymatrix.utils.ConcurrentIntObjectMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Compact snapshots of the top stakes of every offer, snapshot-N.dat covers the journal segments before N.
+ * <p>
+ * A snapshot is the offer count, then per offer its id, its stake count and its packed stakes
+ * (see {@link com.everymatrix.model.StakeEntry#pack}), ended by the offer count again. It is written to a temporary
+ * file, forced, then renamed, so a snapshot file is always complete.
+ */
+class StakeSnapshotStore {
+
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".dat";
+
+    private final Path directory;
+
+    StakeSnapshotStore(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Receives the offers of a snapshot
+     */
+    interface OfferSource {
+        void forEachOffer(ConcurrentIntObjectMap.IntObjectConsumer<long[]> consumer);
+    }
+
+    /**
+     * Writes the offers as the snapshot of the segments before segmentId, then deletes the older snapshots
+     */
+    void write(long segmentId, OfferSource offers) throws IOException {
+        Path target = snapshotPath(segmentId);
+        Path temporary = directory.resolve(target.getFileName() + ".tmp");
+        // the offers are visited twice: the count first, then the stakes
+        List<Integer> offerIds = new ArrayList<>();
+        List<long[]> offerStakes = new ArrayList<>();
+        offers.forEachOffer((betOfferId, stakes) -> {
+            if (stakes.length > 0) {
+                offerIds.add(betOfferId);
+                offerStakes.add(stakes);
+            }
+        });
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+            output.writeInt(offerIds.size());
+            for (int i = 0; i < offerIds.size(); i++) {
+                long[] stakes = offerStakes.get(i);
+                output.writeInt(offerIds.get(i));
+                output.writeInt(stakes.length);
+                for (long stake : stakes) {
+                    output.writeLong(stake);
+                }
+            }
+            output.writeInt(offerIds.size());
+            output.flush();
+            channel.force(true);
+        }
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        for (long id : snapshotIds()) {
+            if (id < segmentId) {
+                Files.deleteIfExists(snapshotPath(id));
+            }
+        }
+    }
+
+    /**
+     * Loads the latest snapshot into the consumer
+     *
+     * @return the first journal segment not covered by it, 0 without snapshot
+     */
+    long load(ConcurrentIntObjectMap.IntObjectConsumer<long[]> consumer) throws IOException {
+        List<Long> ids = snapshotIds();
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        long segmentId = ids.get(ids.size() - 1);
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(snapshotPath(segmentId)), 64 * 1024))) {
+            int offerCount = input.readInt();
+            for (int i = 0; i < offerCount; i++) {
+                int betOfferId = input.readInt();
+                long[] stakes = new long[input.readInt()];
+                for (int j = 0; j < stakes.length; j++) {
+                    stakes[j] = input.readLong();
+                }
+                consumer.accept(betOfferId, stakes);
+            }
+            if (input.readInt() != offerCount) {
+                throw new IOException("Corrupted stake snapshot: " + snapshotPath(segmentId));
+            }
+        }
+        return segmentId;
+    }
+
+    private List<Long> snapshotIds() throws IOException {
+        List<Long> ids = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return ids;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX))
+                    .forEach(name -> ids.add(Long.parseLong(
+                            name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length()))));
+        }
+        ids.sort(null);
+        return ids;
+    }
+
+    private Path snapshotPath(long segmentId) {
+        return directory.resolve(String.format("%s%010d%s", SNAPSHOT_PREFIX, segmentId, SNAPSHOT_SUFFIX));
+    }
+}
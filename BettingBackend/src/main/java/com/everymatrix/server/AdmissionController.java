@@ -0,0 +1,170 @@
+package com.everymatrix.server;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded admission in front of the worker executor.
+ * <p>
+ * Admitted requests wait in a priority queue (higher priority first, FIFO within a priority), every admitted request
+ * hands one token to the workers and the token runs the best pending request when a worker picks it up.
+ * <ul>
+ * <li>The queue holds at most {@code capacity} requests, requests of the top priority are admitted up to it,
+ * the other ones only up to {@code sheddingDepth}, so they are shed first under a burst.</li>
+ * <li>A request which waited longer than {@code maxWaitMillis} is rejected instead of being run.</li>
+ * <li>Rejection is immediate: the caller's reject callback runs, e.g. answering 503.</li>
+ * </ul>
+ * {@code maxConcurrency} caps the requests running at the same time, for executors which do not (virtual threads).
+ */
+public class AdmissionController {
+
+    private final Executor workers;
+    private final Semaphore concurrency;
+    private final PriorityBlockingQueue<PendingRequest> queue = new PriorityBlockingQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+    private final int capacity;
+    private final int sheddingDepth;
+    private final long maxWaitNanos;
+    private final int topPriority;
+
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder expiredCount = new LongAdder();
+
+    /**
+     * @param maxConcurrency max running requests, 0 or less for no limit
+     * @param maxWaitMillis  max queue wait in milliseconds, 0 or less for no limit
+     * @param topPriority    the highest route priority, only it may fill the queue beyond sheddingDepth
+     */
+    public AdmissionController(Executor workers, int maxConcurrency, int capacity, int sheddingDepth,
+                               long maxWaitMillis, int topPriority) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Admission queue capacity should be positive: " + capacity);
+        }
+        this.workers = workers;
+        this.concurrency = maxConcurrency > 0 ? new Semaphore(maxConcurrency) : null;
+        this.capacity = capacity;
+        this.sheddingDepth = Math.min(sheddingDepth, capacity);
+        this.maxWaitNanos = maxWaitMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(maxWaitMillis) : 0;
+        this.topPriority = topPriority;
+    }
+
+    /**
+     * Admits a request if the queue has room for its priority
+     *
+     * @param task   run on a worker once the request is picked
+     * @param reject run on a worker if the request waited too long
+     * @return false if the request was not admitted, the caller should reject it
+     */
+    public boolean submit(int priority, Runnable task, Runnable reject) {
+        int limit = priority >= topPriority ? capacity : sheddingDepth;
+        int current;
+        do {
+            current = depth.get();
+            if (current >= limit) {
+                rejectedCount.increment();
+                return false;
+            }
+        } while (!depth.compareAndSet(current, current + 1));
+
+        PendingRequest request = new PendingRequest(priority, sequence.getAndIncrement(), System.nanoTime(), task, reject);
+        queue.add(request);
+        try {
+            workers.execute(this::runNext);
+        } catch (RejectedExecutionException e) {
+            if (queue.remove(request)) {
+                depth.decrementAndGet();
+            }
+            rejectedCount.increment();
+            return false;
+        }
+        return true;
+    }
+
+    private void runNext() {
+        if (concurrency != null) {
+            concurrency.acquireUninterruptibly();
+        }
+        try {
+            PendingRequest request = queue.poll();
+            if (request == null) {
+                return;
+            }
+            depth.decrementAndGet();
+            if (maxWaitNanos > 0 && System.nanoTime() - request.enqueuedNanos > maxWaitNanos) {
+                expiredCount.increment();
+                request.reject.run();
+            } else {
+                active.incrementAndGet();
+                try {
+                    request.task.run();
+                } finally {
+                    active.decrementAndGet();
+                }
+            }
+        } finally {
+            if (concurrency != null) {
+                concurrency.release();
+            }
+        }
+    }
+
+    /**
+     * @return number of requests admitted and waiting for a worker
+     */
+    public int getQueueDepth() {
+        return depth.get();
+    }
+
+    /**
+     * @return number of requests running on a worker
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * @return number of requests not admitted because the queue was full for their priority
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * @return number of admitted requests rejected because they waited longer than the max wait
+     */
+    public long getExpiredCount() {
+        return expiredCount.sum();
+    }
+
+    private static class PendingRequest implements Comparable<PendingRequest> {
+        private final int priority;
+        private final long sequence;
+        private final long enqueuedNanos;
+        private final Runnable task;
+        private final Runnable reject;
+
+        private PendingRequest(int priority, long sequence, long enqueuedNanos, Runnable task, Runnable reject) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.enqueuedNanos = enqueuedNanos;
+            this.task = task;
+            this.reject = reject;
+        }
+
+        @Override
+        public int compareTo(PendingRequest other) {
+            if (priority != other.priority) {
+                return Integer.compare(other.priority, priority);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
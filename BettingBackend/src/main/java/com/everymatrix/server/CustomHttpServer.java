@@ -3,24 +3,25 @@ package com.everymatrix.server;
 import com.everymatrix.annotation.Route;
 import com.everymatrix.config.AppConfig;
 import com.everymatrix.exception.HttpServerException;
+import com.everymatrix.metrics.MetricsController;
+import com.everymatrix.metrics.MetricsRegistry;
+import com.everymatrix.model.DeferredResponse;
 import com.everymatrix.model.RouteHandler;
+import com.everymatrix.model.RouteMatch;
+import com.everymatrix.server.nio.NioServerEngine;
 import com.everymatrix.utils.HttpUtils;
 import com.everymatrix.utils.LogUtils;
 import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpServer;
 
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.net.InetSocketAddress;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
 
 /**
  * A lightweight HTTP server designed to register routes and handle HTTP requests, similar to a Spring REST controller.
@@ -35,95 +36,249 @@ import java.util.regex.Matcher;
 public class CustomHttpServer {
 
     private final Logger log = LogUtils.getLogger();
-    private final List<RouteHandler> routeHandlers = new ArrayList<>();
+    private final RouteTrie routeTrie = new RouteTrie();
+    private final MetricsRegistry metricsRegistry = new MetricsRegistry();
+    private int topPriority = Integer.MIN_VALUE;
+    private AdmissionController admissionController;
+    // runs the admitted exchanges and the sends of the completed deferred responses
+    private Executor workers;
+    private ServerEngine engine;
 
     public CustomHttpServer() {
+        if (AppConfig.serverMetricsEnabled) {
+            registerRoutes(new MetricsController(metricsRegistry));
+        }
     }
 
     /**
-     * Gathers invocation metadata information for each route function.
+     * Gathers invocation metadata information for each route function and adds it to the route trie.
      */
     public void registerRoutes(Object controller) {
         for (Method method : controller.getClass().getDeclaredMethods()) {
             if (method.isAnnotationPresent(Route.class)) {
                 Route route = method.getAnnotation(Route.class);
-                routeHandlers.add(new RouteHandler(route.method(), route.path(), method, controller));
-                log.info("Registered route: " + route.path() + " [" + route.method() + "]");
+                int priority = AppConfig.serverAdmissionRoutePriorities.getOrDefault(route.method() + " " + route.path(), 0);
+                RouteHandler handler = new RouteHandler(route.method(), route.path(), method, controller,
+                        RouteInvokerFactory.create(method, controller, RouteHandler.pathVariableNames(route.path())), priority);
+                routeTrie.add(handler);
+                metricsRegistry.register(handler.getMetrics());
+                topPriority = Math.max(topPriority, priority);
+                log.info("Registered route: " + route.path() + " [" + route.method() + "] priority " + priority);
             }
         }
     }
 
     /**
-     * Starts the HTTP server
+     * Starts the HTTP server on the configured engine.
+     * Requests are resolved and admitted on the engine's I/O thread, admitted ones run on the configured executor.
      */
     public void startServer(int port) throws IOException {
-        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
-        server.createContext("/", this::dispatch);
-
-        server.setExecutor(new ThreadPoolExecutor(
-                AppConfig.serverThreadPoolCorePoolSize,
-                AppConfig.serverThreadPoolMaxPoolSize,
-                AppConfig.serverThreadPoolKeepAliveSeconds,
-                TimeUnit.SECONDS,
-                new LinkedBlockingQueue<>(),
-                new ThreadPoolExecutor.AbortPolicy()
-        ));
-
-        log.info("Server started at: http://localhost:" + port);
-        server.start();
+        workers = createExecutor(AppConfig.serverExecutor);
+        admissionController = new AdmissionController(
+                workers,
+                "virtual".equals(AppConfig.serverExecutor) ? AppConfig.serverVirtualMaxConcurrency : 0,
+                AppConfig.serverAdmissionQueueCapacity,
+                AppConfig.serverAdmissionQueueCapacity * AppConfig.serverAdmissionSheddingThresholdPercent / 100,
+                AppConfig.serverMaxReqTime,
+                topPriority == Integer.MIN_VALUE ? 0 : topPriority
+        );
+        registerServerMetrics(admissionController);
+
+        engine = createEngine(AppConfig.serverEngine);
+        engine.start(port, this::dispatch);
+        log.info("Server started at: http://localhost:" + port + " with " + AppConfig.serverEngine + " engine, "
+                + AppConfig.serverExecutor + " executor");
+    }
+
+    /**
+     * @return the registry served at /metrics, for the application to add its own gauges and counters
+     */
+    public MetricsRegistry getMetricsRegistry() {
+        return metricsRegistry;
+    }
+
+    /**
+     * Stops accepting and serving requests
+     */
+    public void stopServer() {
+        if (engine != null) {
+            engine.stop();
+        }
+    }
+
+    /**
+     * Exposes the admission queue, worker and logging state, sampled when /metrics is scraped
+     */
+    private void registerServerMetrics(AdmissionController admission) {
+        metricsRegistry.gauge("http_admission_queue_depth", "Requests admitted and waiting for a worker",
+                admission::getQueueDepth);
+        metricsRegistry.gauge("http_workers_active", "Requests running on a worker", admission::getActiveCount);
+        metricsRegistry.counter("http_admission_rejected_total", "Requests answered 503 because the queue was full",
+                admission::getRejectedCount);
+        metricsRegistry.counter("http_admission_expired_total", "Requests answered 503 because they waited too long",
+                admission::getExpiredCount);
+        metricsRegistry.counter("log_records_dropped_total", "Log records dropped because the log buffer was full",
+                LogUtils::getDroppedCount);
+    }
+
+    /**
+     * Creates the network engine selected by server.engine:
+     * <ul>
+     * <li>jdk: com.sun.net.httpserver.HttpServer</li>
+     * <li>nio: selector based event loops with keep-alive and pipelining, see {@link NioServerEngine}</li>
+     * </ul>
+     */
+    private ServerEngine createEngine(String name) {
+        switch (name) {
+            case "jdk":
+                return new JdkServerEngine();
+            case "nio":
+                return new NioServerEngine(AppConfig.serverNioEventLoops, AppConfig.serverNioReadBufferBytes,
+                        AppConfig.serverNioIdleTimeoutMillis, AppConfig.serverMaxReqTime, AppConfig.serverMaxRspTime);
+            default:
+                throw new IllegalArgumentException("Unknown server.engine: " + name + ", expected jdk or nio");
+        }
     }
 
     /**
-     * Dispatches requests to the appropriate route handler based on the registered routes.
+     * Creates the executor running the exchanges, selected by server.executor:
+     * <ul>
+     * <li>pooled: platform thread pool sized by server.thread-pool.*</li>
+     * <li>virtual: a new virtual thread per exchange, so blocking handlers do not cap the concurrency at the pool size</li>
+     * </ul>
+     */
+    private Executor createExecutor(String mode) {
+        switch (mode) {
+            case "pooled":
+                return new ThreadPoolExecutor(
+                        AppConfig.serverThreadPoolCorePoolSize,
+                        AppConfig.serverThreadPoolMaxPoolSize,
+                        AppConfig.serverThreadPoolKeepAliveSeconds,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(),
+                        new ThreadPoolExecutor.AbortPolicy()
+                );
+            case "virtual":
+                return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("http-virtual-", 0).factory());
+            default:
+                throw new IllegalArgumentException("Unknown server.executor: " + mode + ", expected pooled or virtual");
+        }
+    }
+
+    /**
+     * Dispatches requests to the appropriate route handler based on the registered routes, called by the engine.
+     * The route method is not run here but on a worker once the request is admitted, rejected requests are answered 503.
      */
     private void dispatch(HttpExchange exchange) throws IOException {
+        long startNanos = System.nanoTime();
         String requestPath = exchange.getRequestURI().getPath();
-        RouteHandler targetHandler = findTargetHandler(exchange, requestPath);
+        RouteMatch match = routeTrie.match(exchange.getRequestMethod(), requestPath);
+        RouteHandler targetHandler = match.getHandler();
 
         if (targetHandler == null) {
-            exchange.sendResponseHeaders(404, -1);
+            if (match.isMethodNotAllowed()) {
+                exchange.getResponseHeaders().set("Allow", match.getAllowedMethods());
+                exchange.sendResponseHeaders(405, -1);
+                metricsRegistry.recordUnmatched(405);
+            } else {
+                exchange.sendResponseHeaders(404, -1);
+                metricsRegistry.recordUnmatched(404);
+            }
             return;
         }
 
+        boolean admitted = admissionController.submit(targetHandler.getPriority(),
+                () -> invoke(exchange, match, startNanos), () -> reject(exchange, targetHandler, startNanos));
+        if (!admitted) {
+            reject(exchange, targetHandler, startNanos);
+        }
+    }
+
+    /**
+     * Invokes the route method of the matched handler, sends its response and records it in the route metrics.
+     * A {@link DeferredResponse} is sent once completed, the worker returns right away.
+     */
+    private void invoke(HttpExchange exchange, RouteMatch match, long startNanos) {
+        RouteHandler targetHandler = match.getHandler();
+        boolean deferred = false;
         try {
-            Map<String, String> pathVariables = targetHandler.getPathVariables(exchange.getRequestURI());
-            Object response = targetHandler.getControllerMethod().invoke(targetHandler.getController(), exchange, pathVariables);
-            HttpUtils.sendResponse(exchange, response == null ? "" : response.toString(), 200);
-        } catch (InvocationTargetException e) {
-            Throwable targetException = e.getTargetException();
-            if (targetException instanceof HttpServerException) {
-                HttpServerException httpException = (HttpServerException) targetException;
-                HttpUtils.sendResponse(exchange, httpException.getMessage(), httpException.getHttpStatusCode());
-            } else if (targetException instanceof IllegalArgumentException) {
+            Object response;
+            try {
+                response = (Object) targetHandler.getInvoker().invokeExact(exchange, match);
+            } catch (HttpServerException e) {
+                HttpUtils.sendResponse(exchange, e.getMessage(), e.getHttpStatusCode());
+                return;
+            } catch (IllegalArgumentException e) {
                 log.severe("Parameter process failed." + e.getMessage());
                 HttpUtils.sendResponse(exchange, 400);
-            } else {
-                log.severe("Invocation target exception: " + targetException.getMessage());
+                return;
+            } catch (Throwable e) {
+                log.severe("General error in handler invocation: " + e.getMessage());
                 HttpUtils.sendResponse(exchange, "Internal Server Error", 500);
+                return;
             }
+            if (response instanceof DeferredResponse) {
+                deferred = true;
+                ((DeferredResponse) response).onComplete((result, statusCode) ->
+                        handOffDeferred(exchange, targetHandler, result, statusCode, startNanos));
+                return;
+            }
+            HttpUtils.sendResult(exchange, response, 200);
         } catch (IOException e) {
             log.severe("io exception occurred:" + e);
-            throw e;
-        } catch (Exception e) {
-            log.severe("General error in handler invocation: " + e.getMessage());
-            HttpUtils.sendResponse(exchange, "Internal Server Error", 500);
+            exchange.close();
+        } finally {
+            if (!deferred) {
+                targetHandler.getMetrics().record(exchange.getResponseCode(), System.nanoTime() - startNanos);
+            }
         }
+    }
 
+    /**
+     * Hands the send of a completed {@link DeferredResponse} to a worker: the completing thread (e.g. the one waking
+     * many subscribers) does not write the responses, which blocks on a slow client with the jdk engine.
+     * Not admitted again, the request already was.
+     */
+    private void handOffDeferred(HttpExchange exchange, RouteHandler targetHandler, Object result, int statusCode,
+                                 long startNanos) {
+        try {
+            workers.execute(() -> sendDeferred(exchange, targetHandler, result, statusCode, startNanos));
+        } catch (RejectedExecutionException e) {
+            // the server is stopping
+            exchange.close();
+            targetHandler.getMetrics().record(503, System.nanoTime() - startNanos);
+        }
     }
 
     /**
-     * Finds the matching target handler from registered route handlers based on request path and method
-     *
-     * @return A matched RouteHandler or null if no match is found
+     * Sends the result of a completed {@link DeferredResponse}, the request latency includes its wait
      */
-    private RouteHandler findTargetHandler(HttpExchange exchange, String requestPath) {
-        for (RouteHandler routeHandler : routeHandlers) {
-            Matcher matcher = routeHandler.getPathPattern().matcher(requestPath);
-            if (matcher.matches() && routeHandler.getHttpMethod().toString().equalsIgnoreCase(exchange.getRequestMethod())) {
-                return routeHandler;
-            }
+    private void sendDeferred(HttpExchange exchange, RouteHandler targetHandler, Object result, int statusCode,
+                              long startNanos) {
+        try {
+            HttpUtils.sendResult(exchange, result, statusCode);
+        } catch (IOException e) {
+            // e.g. the client gave up waiting
+            log.warning("io exception occurred:" + e);
+            exchange.close();
+        } finally {
+            targetHandler.getMetrics().record(statusCode, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Answers 503 with Retry-After to a request which is not admitted or waited too long for a worker
+     */
+    private void reject(HttpExchange exchange, RouteHandler targetHandler, long startNanos) {
+        try {
+            exchange.getResponseHeaders().set("Retry-After", String.valueOf(AppConfig.serverAdmissionRetryAfterSeconds));
+            HttpUtils.sendResponse(exchange, 503);
+        } catch (IOException e) {
+            log.severe("io exception occurred:" + e);
+        } finally {
+            exchange.close();
+            targetHandler.getMetrics().record(503, System.nanoTime() - startNanos);
         }
-        return null;
     }
 
 
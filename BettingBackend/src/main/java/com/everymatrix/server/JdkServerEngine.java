@@ -0,0 +1,29 @@
+package com.everymatrix.server;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Engine backed by the JDK built-in com.sun.net.httpserver.HttpServer, the handler runs on its dispatcher thread.
+ */
+public class JdkServerEngine implements ServerEngine {
+
+    private HttpServer server;
+
+    @Override
+    public void start(int port, HttpHandler handler) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/", handler);
+        server.start();
+    }
+
+    @Override
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+}
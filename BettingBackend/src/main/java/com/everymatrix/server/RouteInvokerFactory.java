@@ -0,0 +1,244 @@
+package com.everymatrix.server;
+
+import com.everymatrix.annotation.Body;
+import com.everymatrix.annotation.PathVar;
+import com.everymatrix.annotation.QueryParam;
+import com.everymatrix.model.RouteMatch;
+import com.everymatrix.utils.IOUtils;
+import com.everymatrix.utils.UrlUtils;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Builds the pre-bound invokers of route methods.
+ * <p>
+ * An invoker is a {@link MethodHandle} bound to the controller instance and adapted to the dispatch calling convention
+ * {@link #INVOKER_TYPE}, so {@link CustomHttpServer} calls it with {@code invokeExact}: no argument array,
+ * no reflective access check per call, and exceptions thrown by the route method are propagated unwrapped.
+ * <p>
+ * The parameter binding is planned once here: every parameter gets an extractor (HttpExchange, RouteMatch) -> type
+ * chosen from its annotation, and the extractors are folded into the invoker. Primitive parameters are decoded
+ * straight into int or long and passed without boxing. Supported parameters:
+ * <ul>
+ * <li>{@link PathVar} int / String</li>
+ * <li>{@link QueryParam} int / Integer / long / Long / String</li>
+ * <li>{@link Body} int / String / InputStream</li>
+ * <li>unannotated HttpExchange, and Map&lt;String, String&gt; of the path variables</li>
+ * </ul>
+ */
+public class RouteInvokerFactory {
+
+    /**
+     * (HttpExchange exchange, RouteMatch match) -> Object response, void methods return null
+     */
+    public static final MethodType INVOKER_TYPE = MethodType.methodType(Object.class, HttpExchange.class, RouteMatch.class);
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private RouteInvokerFactory() {
+    }
+
+    /**
+     * @param pathVariableNames the path variables of the route, in path order
+     * @throws IllegalArgumentException if the method is not accessible or a parameter cannot be bound
+     */
+    public static MethodHandle create(Method method, Object controller, String[] pathVariableNames) {
+        MethodHandle target;
+        try {
+            target = LOOKUP.unreflect(method).bindTo(controller);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Route method is not accessible: " + method, e);
+        }
+
+        Parameter[] parameters = method.getParameters();
+        if (parameters.length == 0) {
+            target = MethodHandles.dropArguments(target, 0, HttpExchange.class, RouteMatch.class);
+        } else {
+            // replace each parameter by its (exchange, match) extractor, from the last one so positions stay valid
+            for (int i = parameters.length - 1; i >= 0; i--) {
+                target = MethodHandles.collectArguments(target, i, extractor(method, parameters[i], pathVariableNames));
+            }
+            // (exchange, match, exchange, match, ...) -> (exchange, match)
+            int[] reorder = new int[parameters.length * 2];
+            for (int i = 0; i < reorder.length; i++) {
+                reorder[i] = i % 2;
+            }
+            target = MethodHandles.permuteArguments(target,
+                    MethodType.methodType(target.type().returnType(), HttpExchange.class, RouteMatch.class), reorder);
+        }
+        return target.asType(INVOKER_TYPE);
+    }
+
+    private static MethodHandle extractor(Method method, Parameter parameter, String[] pathVariableNames) {
+        Class<?> type = parameter.getType();
+        try {
+            if (parameter.isAnnotationPresent(PathVar.class)) {
+                String name = parameter.getAnnotation(PathVar.class).value();
+                int index = Arrays.asList(pathVariableNames).indexOf(name);
+                if (index < 0) {
+                    throw new IllegalArgumentException("No path variable {" + name + "} in route of " + method);
+                }
+                if (type == int.class) {
+                    return MethodHandles.insertArguments(
+                            extractorMethod("intPathVariable", int.class, int.class, String.class), 0, index, name);
+                } else if (type == String.class) {
+                    return MethodHandles.insertArguments(extractorMethod("pathVariable", String.class, int.class), 0, index);
+                }
+            } else if (parameter.isAnnotationPresent(QueryParam.class)) {
+                QueryParam queryParam = parameter.getAnnotation(QueryParam.class);
+                if (type == int.class) {
+                    boolean required = queryParam.defaultValue().isEmpty();
+                    int defaultValue = required ? 0 : Integer.parseInt(queryParam.defaultValue());
+                    return MethodHandles.insertArguments(
+                            extractorMethod("intQueryParam", int.class, String.class, boolean.class, int.class),
+                            0, queryParam.value(), required, defaultValue);
+                } else if (type == Integer.class) {
+                    Integer defaultValue = queryParam.defaultValue().isEmpty() ? null : Integer.valueOf(queryParam.defaultValue());
+                    return MethodHandles.insertArguments(
+                            extractorMethod("boxedIntQueryParam", Integer.class, String.class, Integer.class),
+                            0, queryParam.value(), defaultValue);
+                } else if (type == long.class) {
+                    boolean required = queryParam.defaultValue().isEmpty();
+                    long defaultValue = required ? 0 : Long.parseLong(queryParam.defaultValue());
+                    return MethodHandles.insertArguments(
+                            extractorMethod("longQueryParam", long.class, String.class, boolean.class, long.class),
+                            0, queryParam.value(), required, defaultValue);
+                } else if (type == Long.class) {
+                    Long defaultValue = queryParam.defaultValue().isEmpty() ? null : Long.valueOf(queryParam.defaultValue());
+                    return MethodHandles.insertArguments(
+                            extractorMethod("boxedLongQueryParam", Long.class, String.class, Long.class),
+                            0, queryParam.value(), defaultValue);
+                } else if (type == String.class) {
+                    return extractorMethod("queryParam", String.class, String.class).bindTo(queryParam.value());
+                }
+            } else if (parameter.isAnnotationPresent(Body.class)) {
+                if (type == int.class) {
+                    return MethodHandles.insertArguments(
+                            extractorMethod("intBody", int.class, int.class), 0, parameter.getAnnotation(Body.class).maxLength());
+                } else if (type == String.class) {
+                    return extractorMethod("stringBody", String.class);
+                } else if (type == InputStream.class) {
+                    return extractorMethod("streamBody", InputStream.class);
+                }
+            } else if (type == HttpExchange.class) {
+                return MethodHandles.dropArguments(MethodHandles.identity(HttpExchange.class), 1, RouteMatch.class);
+            } else if (type == Map.class) {
+                return extractorMethod("pathVariables", Map.class);
+            }
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException("Binding extractor not found", e);
+        }
+        throw new IllegalArgumentException("Cannot bind parameter " + parameter + " of route method " + method);
+    }
+
+    /**
+     * Finds the extractor method of this class, its trailing parameters are (HttpExchange, RouteMatch)
+     */
+    private static MethodHandle extractorMethod(String name, Class<?> returnType, Class<?>... leadingTypes)
+            throws NoSuchMethodException, IllegalAccessException {
+        Class<?>[] parameterTypes = Arrays.copyOf(leadingTypes, leadingTypes.length + 2);
+        parameterTypes[leadingTypes.length] = HttpExchange.class;
+        parameterTypes[leadingTypes.length + 1] = RouteMatch.class;
+        return LOOKUP.findStatic(RouteInvokerFactory.class, name, MethodType.methodType(returnType, parameterTypes));
+    }
+
+    private static int intPathVariable(int index, String name, HttpExchange exchange, RouteMatch match) {
+        String value = match.getPathVariable(index);
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " format: " + value, e);
+        }
+    }
+
+    private static String pathVariable(int index, HttpExchange exchange, RouteMatch match) {
+        return match.getPathVariable(index);
+    }
+
+    private static int intQueryParam(String name, boolean required, int defaultValue, HttpExchange exchange, RouteMatch match) {
+        try {
+            int value = UrlUtils.getIntQueryParam(exchange.getRequestURI(), name, defaultValue);
+            if (required && value == defaultValue && UrlUtils.getQueryParam(exchange.getRequestURI(), name) == null) {
+                throw new IllegalArgumentException("Missing query parameter: " + name);
+            }
+            return value;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " format", e);
+        }
+    }
+
+    /**
+     * An optional int query parameter, null (or the default value) if absent
+     */
+    private static Integer boxedIntQueryParam(String name, Integer defaultValue, HttpExchange exchange, RouteMatch match) {
+        String value = UrlUtils.getQueryParam(exchange.getRequestURI(), name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " format: " + value, e);
+        }
+    }
+
+    private static long longQueryParam(String name, boolean required, long defaultValue, HttpExchange exchange, RouteMatch match) {
+        try {
+            long value = UrlUtils.getLongQueryParam(exchange.getRequestURI(), name, defaultValue);
+            if (required && value == defaultValue && UrlUtils.getQueryParam(exchange.getRequestURI(), name) == null) {
+                throw new IllegalArgumentException("Missing query parameter: " + name);
+            }
+            return value;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " format", e);
+        }
+    }
+
+    /**
+     * An optional long query parameter, null (or the default value) if absent
+     */
+    private static Long boxedLongQueryParam(String name, Long defaultValue, HttpExchange exchange, RouteMatch match) {
+        String value = UrlUtils.getQueryParam(exchange.getRequestURI(), name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " format: " + value, e);
+        }
+    }
+
+    private static String queryParam(String name, HttpExchange exchange, RouteMatch match) {
+        return UrlUtils.getQueryParam(exchange.getRequestURI(), name);
+    }
+
+    private static int intBody(int maxLength, HttpExchange exchange, RouteMatch match) throws IOException {
+        try {
+            return IOUtils.readInt(exchange.getRequestBody(), maxLength);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid body format: " + e.getMessage(), e);
+        }
+    }
+
+    private static String stringBody(HttpExchange exchange, RouteMatch match) throws IOException {
+        return IOUtils.readAllBytes(exchange.getRequestBody());
+    }
+
+    private static InputStream streamBody(HttpExchange exchange, RouteMatch match) {
+        return exchange.getRequestBody();
+    }
+
+    private static Map<String, String> pathVariables(HttpExchange exchange, RouteMatch match) {
+        return match.getPathVariables();
+    }
+}
@@ -0,0 +1,159 @@
+package com.everymatrix.server;
+
+import com.everymatrix.model.HttpMethod;
+import com.everymatrix.model.RouteHandler;
+import com.everymatrix.model.RouteMatch;
+
+import java.util.Arrays;
+
+/**
+ * Segment trie of the registered routes, built once at registration time.
+ * <p>
+ * Each node has literal children (e.g. "session") and at most one variable child (e.g. "{customerId}"),
+ * handlers are stored at the terminal node indexed by {@link HttpMethod}.
+ * Literal segments are preferred over variables, and the walk backtracks to the variable child when the literal branch
+ * does not lead to a handler. Path segments are compared in place, the only allocations of a lookup are the
+ * {@link RouteMatch} and the substrings of the matched path variables.
+ */
+public class RouteTrie {
+
+    private static final HttpMethod[] METHODS = HttpMethod.values();
+
+    private final Node root = new Node();
+
+    private int maxPathVariables;
+
+    /**
+     * Adds a handler to the trie
+     *
+     * @throws IllegalStateException if a handler is already registered for the same method and path
+     */
+    public void add(RouteHandler handler) {
+        Node node = root;
+        for (String segment : handler.getSegments()) {
+            node = RouteHandler.isVariableSegment(segment) ? node.variableChild() : node.literalChild(segment);
+        }
+        int ordinal = handler.getHttpMethod().ordinal();
+        if (node.handlers[ordinal] != null) {
+            throw new IllegalStateException("Duplicate route: " + handler.getPath() + " [" + handler.getHttpMethod() + "]"
+                    + " conflicts with " + node.handlers[ordinal].getPath());
+        }
+        node.handlers[ordinal] = handler;
+        node.updateAllowedMethods();
+        maxPathVariables = Math.max(maxPathVariables, handler.getPathVariableNames().length);
+    }
+
+    /**
+     * Resolves the handler and path variables for the giving request method and path
+     *
+     * @return the match, its handler is null when nothing matches (see {@link RouteMatch#isMethodNotAllowed()})
+     */
+    public RouteMatch match(String method, String path) {
+        RouteMatch match = new RouteMatch(maxPathVariables);
+        if (path != null && !path.isEmpty() && path.charAt(0) == '/') {
+            find(root, path, 1, 0, methodIndex(method), match);
+        }
+        return match;
+    }
+
+    private boolean find(Node node, String path, int start, int variableIndex, int methodIndex, RouteMatch match) {
+        int end = path.indexOf('/', start);
+        boolean lastSegment = end == -1;
+        if (lastSegment) {
+            end = path.length();
+        }
+
+        Node literal = node.findLiteral(path, start, end - start);
+        if (literal != null) {
+            boolean found = lastSegment
+                    ? accept(literal, methodIndex, match)
+                    : find(literal, path, end + 1, variableIndex, methodIndex, match);
+            if (found) {
+                return true;
+            }
+        }
+
+        // a path variable never matches an empty segment
+        Node variable = node.variable;
+        if (variable != null && end > start) {
+            boolean found = lastSegment
+                    ? accept(variable, methodIndex, match)
+                    : find(variable, path, end + 1, variableIndex + 1, methodIndex, match);
+            if (found) {
+                match.setPathVariable(variableIndex, path.substring(start, end));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean accept(Node node, int methodIndex, RouteMatch match) {
+        if (methodIndex >= 0 && node.handlers[methodIndex] != null) {
+            match.setHandler(node.handlers[methodIndex]);
+            return true;
+        }
+        // remember the first path hit with another method, to answer 405 instead of 404
+        if (node.allowedMethods != null && match.getAllowedMethods() == null) {
+            match.setAllowedMethods(node.allowedMethods);
+        }
+        return false;
+    }
+
+    private static int methodIndex(String method) {
+        for (HttpMethod httpMethod : METHODS) {
+            if (httpMethod.name().equalsIgnoreCase(method)) {
+                return httpMethod.ordinal();
+            }
+        }
+        return -1;
+    }
+
+    private static class Node {
+        private String[] literals = new String[0];
+        private Node[] literalChildren = new Node[0];
+        private Node variable;
+        private final RouteHandler[] handlers = new RouteHandler[METHODS.length];
+        private String allowedMethods;
+
+        private Node findLiteral(String path, int start, int length) {
+            for (int i = 0; i < literals.length; i++) {
+                String literal = literals[i];
+                if (literal.length() == length && path.regionMatches(start, literal, 0, length)) {
+                    return literalChildren[i];
+                }
+            }
+            return null;
+        }
+
+        private Node literalChild(String segment) {
+            for (int i = 0; i < literals.length; i++) {
+                if (literals[i].equals(segment)) {
+                    return literalChildren[i];
+                }
+            }
+            Node child = new Node();
+            literals = Arrays.copyOf(literals, literals.length + 1);
+            literalChildren = Arrays.copyOf(literalChildren, literalChildren.length + 1);
+            literals[literals.length - 1] = segment;
+            literalChildren[literalChildren.length - 1] = child;
+            return child;
+        }
+
+        private Node variableChild() {
+            if (variable == null) {
+                variable = new Node();
+            }
+            return variable;
+        }
+
+        private void updateAllowedMethods() {
+            StringBuilder builder = new StringBuilder();
+            for (RouteHandler handler : handlers) {
+                if (handler != null) {
+                    builder.append(builder.length() == 0 ? "" : ", ").append(handler.getHttpMethod());
+                }
+            }
+            allowedMethods = builder.toString();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.everymatrix.server;
+
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+
+/**
+ * The network layer under {@link CustomHttpServer}: accepts connections, parses requests into
+ * {@link com.sun.net.httpserver.HttpExchange}s and hands them to the dispatch handler.
+ * <p>
+ * The handler is called on the engine's own I/O thread and must not block, it only resolves and admits the request.
+ */
+public interface ServerEngine {
+
+    void start(int port, HttpHandler handler) throws IOException;
+
+    void stop();
+}
@@ -0,0 +1,184 @@
+package com.everymatrix.server.nio;
+
+import com.everymatrix.utils.LogUtils;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A selector thread serving its share of the connections: reads and parses requests, dispatches them to the handler
+ * and writes back the responses completed by the workers.
+ * <p>
+ * The select wakes up at least every sweep interval (a quarter of the shortest timeout, 10 ms to 1 s) to close the
+ * connections exceeding a timeout, see {@link NioConnection#expire}: the sweep costs one pass over the connections
+ * per interval, not a timer per connection.
+ */
+class EventLoop implements Runnable {
+
+    private final Logger log = LogUtils.getLogger();
+    private final Selector selector;
+    private final HttpHandler handler;
+    private final int readBufferSize;
+    private final long idleTimeoutNanos;
+    private final long requestTimeoutNanos;
+    private final long responseTimeoutNanos;
+    // 0 without timeout
+    private final long sweepIntervalMillis;
+    private long lastSweepNanos = System.nanoTime();
+    private final Queue<SocketChannel> acceptedChannels = new ConcurrentLinkedQueue<>();
+    private final Queue<NioConnection> completedConnections = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    /**
+     * The timeouts are the ones of {@link NioServerEngine}, in milliseconds, 0 or less for no limit
+     */
+    EventLoop(HttpHandler handler, int readBufferSize, int idleTimeoutMillis, int requestTimeoutMillis,
+              int responseTimeoutMillis) throws IOException {
+        this.selector = Selector.open();
+        this.handler = handler;
+        this.readBufferSize = readBufferSize;
+        this.idleTimeoutNanos = toNanos(idleTimeoutMillis);
+        this.requestTimeoutNanos = toNanos(requestTimeoutMillis);
+        this.responseTimeoutNanos = toNanos(responseTimeoutMillis);
+        long shortest = Long.MAX_VALUE;
+        for (int timeout : new int[]{idleTimeoutMillis, requestTimeoutMillis, responseTimeoutMillis}) {
+            if (timeout > 0) {
+                shortest = Math.min(shortest, timeout);
+            }
+        }
+        this.sweepIntervalMillis = shortest == Long.MAX_VALUE ? 0 : Math.max(10, Math.min(1000, shortest / 4));
+    }
+
+    /**
+     * Hands an accepted channel over to this loop, called by the acceptor thread
+     */
+    void register(SocketChannel channel) {
+        acceptedChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Schedules writing the completed responses of a connection, called by any thread
+     */
+    void schedule(NioConnection connection) {
+        completedConnections.add(connection);
+        selector.wakeup();
+    }
+
+    void dispatch(NioHttpExchange exchange) {
+        try {
+            handler.handle(exchange);
+        } catch (Exception e) {
+            log.severe("NIO dispatch failed: " + e);
+            exchange.close();
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                // 0 blocks until a channel is ready or a wakeup
+                selector.select(sweepIntervalMillis);
+            } catch (IOException e) {
+                log.severe("NIO select failed: " + e);
+                break;
+            }
+            registerAcceptedChannels();
+            NioConnection completed;
+            while ((completed = completedConnections.poll()) != null) {
+                try {
+                    completed.flushCompleted();
+                } catch (IOException e) {
+                    completed.close();
+                } catch (RuntimeException e) {
+                    log.severe("NIO connection failed: " + e);
+                    completed.close();
+                }
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                NioConnection connection = (NioConnection) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.write();
+                    }
+                } catch (IOException e) {
+                    connection.close();
+                } catch (RuntimeException e) {
+                    // only this connection is dropped, the loop keeps serving the others
+                    log.severe("NIO connection failed: " + e);
+                    connection.close();
+                }
+            }
+            if (sweepIntervalMillis > 0) {
+                sweepExpired();
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((NioConnection) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+            // shutting down
+        }
+    }
+
+    /**
+     * Closes the connections exceeding a timeout, once per sweep interval
+     */
+    private void sweepExpired() {
+        long now = System.nanoTime();
+        if (now - lastSweepNanos < TimeUnit.MILLISECONDS.toNanos(sweepIntervalMillis)) {
+            return;
+        }
+        lastSweepNanos = now;
+        for (SelectionKey key : selector.keys()) {
+            NioConnection connection = (NioConnection) key.attachment();
+            if (key.isValid() && connection.expire(now, idleTimeoutNanos, requestTimeoutNanos, responseTimeoutNanos)) {
+                connection.close();
+            }
+        }
+    }
+
+    private static long toNanos(int millis) {
+        return millis > 0 ? TimeUnit.MILLISECONDS.toNanos(millis) : 0;
+    }
+
+    private void registerAcceptedChannels() {
+        SocketChannel channel;
+        while ((channel = acceptedChannels.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new NioConnection(this, channel, key, readBufferSize));
+            } catch (IOException e) {
+                log.severe("NIO register failed: " + e);
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // nothing to do, the connection is gone
+                }
+            }
+        }
+    }
+}
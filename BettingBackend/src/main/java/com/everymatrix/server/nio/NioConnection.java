@@ -0,0 +1,367 @@
+package com.everymatrix.server.nio;
+
+import com.everymatrix.exception.HttpServerException;
+import com.sun.net.httpserver.Headers;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An HTTP/1.1 connection of the NIO engine, confined to its event loop thread except {@link #onExchangeCompleted()}.
+ * <p>
+ * Requests are parsed straight from the direct read buffer. Pipelined requests are dispatched as soon as they are
+ * parsed (up to {@link #MAX_PIPELINED_REQUESTS} in flight), their responses are written back in request order.
+ * Connections are kept alive unless the client asks otherwise (Connection: close, HTTP/1.0 without keep-alive).
+ * Only Content-Length bodies fitting in the read buffer are supported.
+ * Connections are closed by their event loop's sweep once idle or stalled too long, see {@link #expire}.
+ */
+class NioConnection {
+
+    private static final int MAX_PIPELINED_REQUESTS = 64;
+
+    private final EventLoop eventLoop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ByteBuffer readBuffer;
+    private final byte[] scratch;
+    private final InetSocketAddress remoteAddress;
+    private final InetSocketAddress localAddress;
+
+    /**
+     * Dispatched exchanges in request order, the head is the next response to write
+     */
+    private final ArrayDeque<NioHttpExchange> exchanges = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    private final AtomicBoolean completionScheduled = new AtomicBoolean();
+
+    // no more request is read once the client closed its side or a request asked to close the connection
+    private boolean readingStopped;
+    private boolean closed;
+
+    // last read or written bytes, System.nanoTime()
+    private long lastActivityNanos = System.nanoTime();
+    // first bytes received of the request being read, 0 while none is pending
+    private long requestStartNanos;
+
+    NioConnection(EventLoop eventLoop, SocketChannel channel, SelectionKey key, int readBufferSize) throws IOException {
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+        this.key = key;
+        this.readBuffer = ByteBuffer.allocateDirect(readBufferSize);
+        this.scratch = new byte[readBufferSize];
+        this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+        this.localAddress = (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    /**
+     * Called by the thread completing an exchange, hands the connection back to its event loop
+     */
+    void onExchangeCompleted() {
+        if (completionScheduled.compareAndSet(false, true)) {
+            eventLoop.schedule(this);
+        }
+    }
+
+    void onReadable() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            readingStopped = true;
+            closeIfIdle();
+            updateInterest();
+            return;
+        }
+        if (read > 0) {
+            lastActivityNanos = System.nanoTime();
+            if (requestStartNanos == 0) {
+                requestStartNanos = lastActivityNanos;
+            }
+        }
+        parseRequests();
+    }
+
+    /**
+     * Moves the completed responses at the head of the pipeline to the write queue and writes them
+     */
+    void flushCompleted() throws IOException {
+        completionScheduled.set(false);
+        if (closed) {
+            return;
+        }
+        while (!exchanges.isEmpty() && exchanges.peekFirst().isCompleted()) {
+            NioHttpExchange exchange = exchanges.pollFirst();
+            pendingWrites.add(ByteBuffer.wrap(exchange.getResponse()));
+        }
+        write();
+        // resume the pipelined requests left in the buffer when the in-flight limit was reached
+        if (!closed && readBuffer.position() > 0) {
+            parseRequests();
+        }
+    }
+
+    void write() throws IOException {
+        while (!pendingWrites.isEmpty()) {
+            ByteBuffer head = pendingWrites.peekFirst();
+            if (channel.write(head) > 0) {
+                lastActivityNanos = System.nanoTime();
+            }
+            if (head.hasRemaining()) {
+                updateInterest();
+                return;
+            }
+            pendingWrites.pollFirst();
+        }
+        closeIfIdle();
+        updateInterest();
+    }
+
+    /**
+     * Checks the connection's timeouts, each 0 for no limit:
+     * <ul>
+     * <li>response: its client read none of a pending response for that long</li>
+     * <li>request: a request is being received for that long since its first bytes (server.request.max-time)</li>
+     * <li>idle: a keep-alive connection waits for a request for that long, not while a response is being prepared</li>
+     * </ul>
+     *
+     * @return whether the connection should be closed
+     */
+    boolean expire(long now, long idleTimeoutNanos, long requestTimeoutNanos, long responseTimeoutNanos) {
+        if (!pendingWrites.isEmpty()) {
+            return responseTimeoutNanos > 0 && now - lastActivityNanos > responseTimeoutNanos;
+        }
+        if (requestStartNanos != 0 && !readingStopped && exchanges.size() < MAX_PIPELINED_REQUESTS) {
+            return requestTimeoutNanos > 0 && now - requestStartNanos > requestTimeoutNanos;
+        }
+        return exchanges.isEmpty() && idleTimeoutNanos > 0 && now - lastActivityNanos > idleTimeoutNanos;
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // nothing to do, the connection is gone
+        }
+    }
+
+    private void closeIfIdle() {
+        if (readingStopped && exchanges.isEmpty() && pendingWrites.isEmpty()) {
+            close();
+        }
+    }
+
+    private void updateInterest() {
+        if (closed) {
+            return;
+        }
+        boolean reading = !readingStopped && exchanges.size() < MAX_PIPELINED_REQUESTS;
+        key.interestOps((reading ? SelectionKey.OP_READ : 0) | (pendingWrites.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+    }
+
+    private void parseRequests() throws IOException {
+        readBuffer.flip();
+        try {
+            while (!readingStopped && exchanges.size() < MAX_PIPELINED_REQUESTS) {
+                NioHttpExchange exchange = parseRequest();
+                if (exchange == null) {
+                    break;
+                }
+                // the bytes left, if any, are the next request's
+                requestStartNanos = lastActivityNanos;
+                exchanges.add(exchange);
+                if (!exchange.isKeepAlive()) {
+                    readingStopped = true;
+                }
+                eventLoop.dispatch(exchange);
+            }
+            if (!readingStopped && exchanges.size() < MAX_PIPELINED_REQUESTS
+                    && readBuffer.position() == 0 && readBuffer.limit() == readBuffer.capacity()) {
+                throw new HttpServerException(431, "request exceeds the read buffer", null);
+            }
+        } catch (HttpServerException e) {
+            respondError(e.getHttpStatusCode());
+        }
+        readBuffer.compact();
+        if (readBuffer.position() == 0) {
+            requestStartNanos = 0;
+        }
+        updateInterest();
+    }
+
+    /**
+     * Parses one request from the buffer (in read mode) and consumes it
+     *
+     * @return the exchange or null if the request is not complete yet
+     */
+    private NioHttpExchange parseRequest() {
+        int start = readBuffer.position();
+        int limit = readBuffer.limit();
+        int headerEnd = indexOfHeaderEnd(start, limit);
+        if (headerEnd < 0) {
+            return null;
+        }
+
+        // request line: METHOD SP request-target SP HTTP-version CRLF
+        int lineEnd = indexOf((byte) '\r', start, headerEnd);
+        int methodEnd = indexOf((byte) ' ', start, lineEnd);
+        int targetEnd = methodEnd < 0 ? -1 : indexOf((byte) ' ', methodEnd + 1, lineEnd);
+        if (targetEnd < 0) {
+            throw new HttpServerException(400, "malformed request line", null);
+        }
+        checkFieldValue(start, lineEnd);
+        if (readBuffer.get(lineEnd + 1) != '\n' || !isToken(start, methodEnd)) {
+            throw new HttpServerException(400, "malformed request line", null);
+        }
+        String method = ascii(start, methodEnd);
+        String target = ascii(methodEnd + 1, targetEnd);
+        String protocol = ascii(targetEnd + 1, lineEnd);
+
+        Headers headers = new Headers();
+        int position = lineEnd + 2;
+        while (position < headerEnd - 2) {
+            int end = indexOf((byte) '\r', position, headerEnd);
+            int colon = indexOf((byte) ':', position, end);
+            if (colon <= position || readBuffer.get(end + 1) != '\n' || !isToken(position, colon)) {
+                throw new HttpServerException(400, "malformed header", null);
+            }
+            checkFieldValue(colon + 1, end);
+            int valueStart = colon + 1;
+            while (valueStart < end && (readBuffer.get(valueStart) == ' ' || readBuffer.get(valueStart) == '\t')) {
+                valueStart++;
+            }
+            int valueEnd = end;
+            while (valueEnd > valueStart && (readBuffer.get(valueEnd - 1) == ' ' || readBuffer.get(valueEnd - 1) == '\t')) {
+                valueEnd--;
+            }
+            headers.add(ascii(position, colon), ascii(valueStart, valueEnd));
+            position = end + 2;
+        }
+
+        if (headers.containsKey("Transfer-encoding")) {
+            throw new HttpServerException(411, "only Content-Length bodies are supported", null);
+        }
+        int contentLength = parseContentLength(headers.getFirst("Content-length"));
+        if (headerEnd - start + contentLength > readBuffer.capacity()) {
+            throw new HttpServerException(413, "request exceeds the read buffer", null);
+        }
+        if (limit - headerEnd < contentLength) {
+            return null;
+        }
+        byte[] body = new byte[contentLength];
+        readBuffer.get(headerEnd, body, 0, contentLength);
+        readBuffer.position(headerEnd + contentLength);
+
+        URI uri;
+        try {
+            uri = new URI(target);
+        } catch (Exception e) {
+            throw new HttpServerException(400, "malformed request target", e);
+        }
+        String connection = headers.getFirst("Connection");
+        boolean keepAlive = "HTTP/1.1".equals(protocol)
+                ? !"close".equalsIgnoreCase(connection)
+                : "keep-alive".equalsIgnoreCase(connection);
+        return new NioHttpExchange(this, method, uri, protocol, headers, body, keepAlive);
+    }
+
+    /**
+     * Answers the error after the responses in flight and stops reading, the connection closes once written
+     */
+    private void respondError(int statusCode) throws IOException {
+        readingStopped = true;
+        readBuffer.position(readBuffer.limit());
+        NioHttpExchange exchange = new NioHttpExchange(this, "GET", URI.create("/"), "HTTP/1.1", new Headers(), new byte[0], false);
+        exchanges.add(exchange);
+        exchange.sendResponseHeaders(statusCode, -1);
+    }
+
+    /**
+     * Rejects control characters (bare CR or LF included) in a header value or the request line, tab is allowed
+     */
+    private void checkFieldValue(int from, int to) {
+        for (int i = from; i < to; i++) {
+            byte b = readBuffer.get(i);
+            if ((b >= 0 && b < ' ' && b != '\t') || b == 0x7F) {
+                throw new HttpServerException(400, "control character in header", null);
+            }
+        }
+    }
+
+    /**
+     * @return whether the bytes are a non empty token (RFC 9110), as a method or a header name must be
+     */
+    private boolean isToken(int from, int to) {
+        if (from >= to) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            byte b = readBuffer.get(i);
+            boolean token = (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+                    || "!#$%&'*+-.^_`|~".indexOf(b) >= 0;
+            if (!token) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int parseContentLength(String value) {
+        if (value == null) {
+            return 0;
+        }
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9' || length > readBuffer.capacity()) {
+                throw new HttpServerException(400, "invalid Content-Length", null);
+            }
+            length = length * 10 + (c - '0');
+        }
+        return length;
+    }
+
+    /**
+     * @return index right after the CRLF CRLF ending the header section, -1 if not received yet
+     */
+    private int indexOfHeaderEnd(int from, int to) {
+        for (int i = from; i + 3 < to; i++) {
+            if (readBuffer.get(i) == '\r' && readBuffer.get(i + 1) == '\n'
+                    && readBuffer.get(i + 2) == '\r' && readBuffer.get(i + 3) == '\n') {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (readBuffer.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String ascii(int from, int to) {
+        readBuffer.get(from, scratch, 0, to - from);
+        return new String(scratch, 0, to - from, StandardCharsets.ISO_8859_1);
+    }
+}
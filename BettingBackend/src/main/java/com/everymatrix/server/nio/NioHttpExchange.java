@@ -0,0 +1,297 @@
+package com.everymatrix.server.nio;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An exchange of the NIO engine, so that dispatch and the route methods work unchanged on both engines.
+ * <p>
+ * The request body is fully read before dispatch, the response body is buffered and the complete response
+ * (status line, headers, body) is handed back to the connection's event loop once the exchange is closed,
+ * or right away when sendResponseHeaders is called with -1 (no body).
+ */
+public class NioHttpExchange extends HttpExchange {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final NioConnection connection;
+    private final String requestMethod;
+    private final URI requestUri;
+    private final String protocol;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+    private final boolean keepAlive;
+    private final AtomicBoolean completed = new AtomicBoolean();
+    private Map<String, Object> attributes;
+
+    private InputStream requestBody;
+    private OutputStream responseBody;
+    private final ResponseBodyStream responseBuffer = new ResponseBodyStream();
+    private int responseCode = -1;
+    private boolean headersSent;
+
+    // written by the thread completing the exchange, read by the event loop
+    private volatile byte[] response;
+
+    NioHttpExchange(NioConnection connection, String requestMethod, URI requestUri, String protocol,
+                    Headers requestHeaders, byte[] body, boolean keepAlive) {
+        this.connection = connection;
+        this.requestMethod = requestMethod;
+        this.requestUri = requestUri;
+        this.protocol = protocol;
+        this.requestHeaders = requestHeaders;
+        this.requestBody = new ByteArrayInputStream(body);
+        this.responseBody = responseBuffer;
+        this.keepAlive = keepAlive;
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return requestUri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return requestMethod;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+        complete();
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return responseBody;
+    }
+
+    /**
+     * @param responseLength -1 for no body, the exchange completes immediately. Otherwise the body is buffered
+     *                       until the exchange or the response body is closed, the Content-Length is the buffered size.
+     */
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        if (headersSent) {
+            throw new IOException("headers already sent");
+        }
+        headersSent = true;
+        responseCode = rCode;
+        if (responseLength == -1) {
+            complete();
+        }
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return connection.getRemoteAddress();
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return connection.getLocalAddress();
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes == null ? null : attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (attributes == null) {
+            attributes = new HashMap<>();
+        }
+        attributes.put(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null) {
+            requestBody = i;
+        }
+        if (o != null) {
+            responseBody = o;
+        }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    boolean isCompleted() {
+        return response != null;
+    }
+
+    /**
+     * @return the encoded response, available once {@link #isCompleted()}
+     */
+    byte[] getResponse() {
+        return response;
+    }
+
+    /**
+     * Encodes the response and hands the exchange back to the event loop, only the first call has effect
+     */
+    private void complete() {
+        if (!completed.compareAndSet(false, true)) {
+            return;
+        }
+        if (!headersSent) {
+            // closed without a response, e.g. the handler failed
+            responseCode = 500;
+        }
+        response = encodeResponse();
+        connection.onExchangeCompleted();
+    }
+
+    private byte[] encodeResponse() {
+        int bodyLength = responseBuffer.size();
+        StringBuilder head = new StringBuilder(128);
+        head.append("HTTP/1.1 ").append(responseCode).append(' ').append(reasonPhrase(responseCode)).append("\r\n");
+        for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+            if ("Content-length".equals(header.getKey()) || "Connection".equals(header.getKey())) {
+                continue;
+            }
+            for (String value : header.getValue()) {
+                head.append(header.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        head.append("Content-Length: ").append(bodyLength).append("\r\n");
+        if (!keepAlive) {
+            head.append("Connection: close\r\n");
+        }
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+
+        byte[] encoded = Arrays.copyOf(headBytes, headBytes.length + CRLF.length + bodyLength);
+        System.arraycopy(CRLF, 0, encoded, headBytes.length, CRLF.length);
+        responseBuffer.copyTo(encoded, headBytes.length + CRLF.length);
+        return encoded;
+    }
+
+    static String reasonPhrase(int code) {
+        switch (code) {
+            case 200:
+                return "OK";
+            case 204:
+                return "No Content";
+            case 400:
+                return "Bad Request";
+            case 401:
+                return "Unauthorized";
+            case 404:
+                return "Not Found";
+            case 405:
+                return "Method Not Allowed";
+            case 409:
+                return "Conflict";
+            case 411:
+                return "Length Required";
+            case 413:
+                return "Payload Too Large";
+            case 431:
+                return "Request Header Fields Too Large";
+            case 500:
+                return "Internal Server Error";
+            case 503:
+                return "Service Unavailable";
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Buffers the response body, closing it completes the exchange
+     */
+    private class ResponseBodyStream extends OutputStream {
+        private byte[] buffer = new byte[256];
+        private int size;
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureWritable(1);
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureWritable(len);
+            System.arraycopy(b, off, buffer, size, len);
+            size += len;
+        }
+
+        @Override
+        public void close() {
+            complete();
+        }
+
+        private void ensureWritable(int length) throws IOException {
+            if (!headersSent) {
+                throw new IOException("response headers not sent");
+            }
+            if (completed.get()) {
+                throw new IOException("exchange already closed");
+            }
+            if (size + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+            }
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private void copyTo(byte[] target, int offset) {
+            System.arraycopy(buffer, 0, target, offset, size);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.everymatrix.server.nio;
+
+import com.everymatrix.server.ServerEngine;
+import com.everymatrix.utils.LogUtils;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Logger;
+
+/**
+ * Selector based engine: an acceptor thread spreads the connections over one event loop per core (by default),
+ * each loop parses the requests of its connections and calls the handler directly, without a thread hand-off.
+ * Supports HTTP/1.1 keep-alive and pipelining. Idle keep-alive connections, requests received too slowly and
+ * responses not read by their client are closed by a periodic sweep of each loop.
+ */
+public class NioServerEngine implements ServerEngine {
+
+    private final Logger log = LogUtils.getLogger();
+    private final int eventLoopCount;
+    private final int readBufferSize;
+    private final int idleTimeoutMillis;
+    private final int requestTimeoutMillis;
+    private final int responseTimeoutMillis;
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] eventLoops;
+    private volatile boolean running;
+
+    /**
+     * @param eventLoopCount 0 or less for one loop per available processor
+     * @param readBufferSize per connection read buffer, the max size of a request head plus body
+     * @param idleTimeoutMillis     max time a keep-alive connection waits for its next request, 0 or less: no limit
+     * @param requestTimeoutMillis  max time to receive a request from its first byte, 0 or less: no limit
+     * @param responseTimeoutMillis max time a client does not read from its pending response, 0 or less: no limit
+     */
+    public NioServerEngine(int eventLoopCount, int readBufferSize, int idleTimeoutMillis, int requestTimeoutMillis,
+                           int responseTimeoutMillis) {
+        this.eventLoopCount = eventLoopCount > 0 ? eventLoopCount : Runtime.getRuntime().availableProcessors();
+        this.readBufferSize = readBufferSize;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        this.responseTimeoutMillis = responseTimeoutMillis;
+    }
+
+    @Override
+    public void start(int port, HttpHandler handler) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+
+        eventLoops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new EventLoop(handler, readBufferSize, idleTimeoutMillis, requestTimeoutMillis,
+                    responseTimeoutMillis);
+            Thread thread = new Thread(eventLoops[i], "nio-event-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        running = true;
+        Thread acceptor = new Thread(this::accept, "nio-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException ignored) {
+            // stopping anyway
+        }
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.shutdown();
+        }
+    }
+
+    private void accept() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                eventLoops[next].register(channel);
+                next = (next + 1) % eventLoops.length;
+            } catch (IOException e) {
+                if (running) {
+                    log.severe("NIO accept failed: " + e);
+                }
+            }
+        }
+    }
+}
@@ -1,77 +1,699 @@
 package com.everymatrix.service;
 
 import com.everymatrix.config.AppConfig;
+import com.everymatrix.exception.HttpServerException;
+import com.everymatrix.model.StakeBatch;
 import com.everymatrix.model.StakeEntry;
+import com.everymatrix.model.StakesSnapshot;
+import com.everymatrix.persistence.OfferArchive;
+import com.everymatrix.persistence.StakeJournal;
+import com.everymatrix.utils.ConcurrentIntObjectMap;
+import com.everymatrix.utils.LogUtils;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentSkipListSet;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
 
+/**
+ * Keeps the top stakes of the live offers in memory. An offer stays resident while it takes stakes: the offers idle
+ * for bet-offer.idle-ttl-seconds, and the least recently staked ones beyond bet-offer.max-resident, are evicted
+ * by a periodic task and spilled to the {@link OfferArchive}, from which a later stake or query reads them back.
+ * A closed offer is archived for good and refuses stakes.
+ */
 public class BetOfferService {
 
+    private final Logger log = LogUtils.getLogger();
+
+    /**
+     * Caches the top 20 stakes (de-duplicated by user, more for the offers configured so) for fast retrieval.
+     * Key: betOfferId (primitive), Value: the offer's top stakes, packed customerId/stake pairs by stake descending.
+     */
+    private final ConcurrentIntObjectMap<TopNStakes> highStakesCache = new ConcurrentIntObjectMap<>();
+
+    /**
+     * Live count, volume and per-customer totals of every stake accepted on each resident offer,
+     * updated without taking the offer's stripe lock. In memory only, dropped when the offer is evicted or closed.
+     */
+    private final ConcurrentIntObjectMap<OfferStats> offerStats = new ConcurrentIntObjectMap<>();
+
+    /**
+     * Serializes the stakes of each offer, so each offer's top stakes have a single writer
+     */
+    private final OfferStripes offerStripes = new OfferStripes(AppConfig.betOfferLockStripes, this::applyStake);
+
+    /**
+     * Top stakes of each resident offer per time bucket, for the windowed queries, fed with every accepted stake.
+     * In memory only, dropped when the offer is evicted or closed.
+     */
+    private final ConcurrentIntObjectMap<WindowedStakes> windowedStakes = new ConcurrentIntObjectMap<>();
+
+    /**
+     * Highest stake of every customer of the offers configured in bet-offer.rank.offers, ranked, fed with every
+     * accepted stake. In memory only, dropped when the offer is evicted or closed.
+     */
+    private final ConcurrentIntObjectMap<CustomerRanks> customerRanks = new ConcurrentIntObjectMap<>();
+
+    /**
+     * Highest stakes of each customer across the offers, at most bet-offer.customer-index.max-offers per customer,
+     * updated by compare-and-set without lock. In memory only, kept when the offers are evicted or closed, a customer
+     * is evicted after bet-offer.customer-index.idle-ttl-seconds or beyond bet-offer.customer-index.max-customers.
+     */
+    private final ConcurrentIntObjectMap<CustomerStakes> customerIndex = new ConcurrentIntObjectMap<>();
+
+    /**
+     * Wakes the subscribers of an offer when its top stakes change
+     */
+    private final StakesNotifier notifier = new StakesNotifier(this::querySnapshot,
+            AppConfig.betOfferSubscribeCoalesceMillis,
+            TimeUnit.SECONDS.toMillis(AppConfig.betOfferSubscribeTimeoutSeconds),
+            AppConfig.betOfferSubscribeMaxSubscribers);
+
+    /**
+     * Records the stakes which changed a top-N, null when persistence is disabled
+     */
+    private final StakeJournal journal;
+
+    /**
+     * Top stakes of the evicted and closed offers, null to drop evicted offers
+     */
+    private final OfferArchive archive;
+
+    private final LongAdder evictedIdleCount = new LongAdder();
+    private final LongAdder evictedOverflowCount = new LongAdder();
+    private final LongAdder closedCount = new LongAdder();
+    private final LongAdder reloadedCount = new LongAdder();
+    private final LongAdder evictedCustomerCount = new LongAdder();
+
+    public BetOfferService() {
+        this(null, null);
+    }
+
     /**
-     * Caches the top 20 + 1 stakes (de-duplicated by user) for fast retrieval.
-     * Key: betOfferId, Value: ConcurrentSkipListSet of customerId-stake pairs, ordered by stake descending.
+     * @param journal journal of the applied stakes, null to keep the stakes in memory only
      */
-    private final Map<Integer, ConcurrentSkipListSet<StakeEntry>> highStakesCache = new ConcurrentHashMap<>();
+    public BetOfferService(StakeJournal journal) {
+        this(journal, null);
+    }
 
     /**
-     * Caches Lock objects to avoid the overhead of creating them repeatedly.
+     * @param journal journal of the applied stakes, null to keep the stakes in memory only
+     * @param archive archive of the evicted and closed offers, null to drop the evicted offers
      */
-    private final Map<Integer, ReentrantLock> customerLocks = new ConcurrentHashMap<>(10000);
+    public BetOfferService(StakeJournal journal, OfferArchive archive) {
+        this.journal = journal;
+        this.archive = archive;
+    }
 
     /**
      * Places a stake for a given bet offer and customer.
-     * 1. Adds stake (O(log n) for TreeSet insertion), locks by customerId.
-     * 2. Updates highStakesCache if stake is the user's maximum in the offer (locks by betOfferId).
+     * 1. Drops the stake right away if it is below the offer's admission floor: a map lookup and a volatile read,
+     * no lock. Most stakes of a busy offer end here.
+     * 2. Applies the stakes of an offer one at a time, batched under the lock of the offer's stripe.
+     * 3. Finds the customer's cached stake in O(1) through the customer index, replaces it if the new stake is higher
+     * and evicts the lowest stake beyond the cache size, O(log n).
+     * 4. Journals the stake if it changed the top stakes, and with the "always" fsync policy waits until it is
+     * on the disk, sharing the fsync with the concurrent stakes.
+     * 5. Adds the accepted stake to the offer's stats, windowed top stakes, customer ranks and to the customer's
+     * stakes across offers, dropped stakes included.
      */
-    public void placeStake(Integer betOfferId, Integer customerId, Integer stake) {
-        if(betOfferId == null || customerId == null || stake == null ){
-            throw new IllegalArgumentException("placeStake args should not be null");
+    public void placeStake(int betOfferId, int customerId, int stake) {
+        TopNStakes maxStakes = highStakesCache.get(betOfferId);
+        if (maxStakes == null || stake >= maxStakes.getFloor()) {
+            offerStripes.placeStake(betOfferId, customerId, stake);
+            if (journal != null) {
+                journal.awaitDurable();
+            }
         }
-        highStakesCache.putIfAbsent(betOfferId, new ConcurrentSkipListSet<>());
-        ConcurrentSkipListSet<StakeEntry> maxStakes = highStakesCache.get(betOfferId);
+        recordStats(betOfferId, customerId, stake);
+        recordWindow(betOfferId, customerId, stake);
+        recordRank(betOfferId, customerId, stake);
+        recordCustomerStake(betOfferId, customerId, stake);
+        if (highStakesCache.get(betOfferId) == null) {
+            dropAggregates(betOfferId);
+        }
+    }
 
-        ReentrantLock customerLock = customerLocks.computeIfAbsent(customerId, key -> new ReentrantLock());
-        customerLock.lock();
+    /**
+     * Places a customer's stakes on several offers, grouped by offer: only the customer's highest stake of each offer
+     * can change its top stakes, so each offer takes one floor check and at most one turn of its stripe,
+     * and the batch waits for the journal once.
+     * A batch with a stake on a closed offer is refused as a whole before any stake is applied, unless the offer
+     * closes while the batch is being applied.
+     * Complexity: O(b log b) b is the batch size, plus one placeStake per distinct offer
+     *
+     * @throws HttpServerException 409 if one of the offers is closed
+     */
+    public void placeStakes(int customerId, StakeBatch batch) {
+        int size = batch.size();
+        if (size == 0) {
+            return;
+        }
+        // offer id in the high half, stake in the low half biased to sort unsigned, so sorting groups the offers
+        // and puts each offer's highest stake last
+        long[] pairs = new long[size];
+        for (int i = 0; i < size; i++) {
+            pairs[i] = ((long) batch.getBetOfferId(i) << 32) | ((batch.getStake(i) ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+        }
+        Arrays.sort(pairs);
+        for (int i = 0; i < size; i++) {
+            int betOfferId = (int) (pairs[i] >>> 32);
+            if ((i == 0 || (pairs[i - 1] >>> 32) != (pairs[i] >>> 32))
+                    && highStakesCache.get(betOfferId) == null && isClosed(betOfferId)) {
+                throw new HttpServerException(409, "Bet offer " + betOfferId + " is closed", null);
+            }
+        }
         try {
-            Optional<StakeEntry> optional = maxStakes.stream().filter(e -> e.getCustomerId() == customerId).findFirst();
-            // remove the cached customer stake if customer's newly placed stake is higher
-            if(optional.isPresent()){
-                StakeEntry cachedStake = optional.get();
-                if(cachedStake.getStake() < stake){
-                    maxStakes.remove(cachedStake);
-                } else {
+            for (int i = 0, groupStart = 0; i < size; i++) {
+                if (i + 1 < size && (pairs[i + 1] >>> 32) == (pairs[i] >>> 32)) {
+                    continue;
+                }
+                int betOfferId = (int) (pairs[i] >>> 32);
+                int stake = (int) pairs[i] ^ Integer.MIN_VALUE;
+                TopNStakes maxStakes = highStakesCache.get(betOfferId);
+                if (maxStakes == null || stake >= maxStakes.getFloor()) {
+                    offerStripes.placeStake(betOfferId, customerId, stake);
+                }
+                for (int j = groupStart; j <= i; j++) {
+                    recordStats(betOfferId, customerId, (int) pairs[j] ^ Integer.MIN_VALUE);
+                }
+                recordWindow(betOfferId, customerId, stake);
+                recordRank(betOfferId, customerId, stake);
+                recordCustomerStake(betOfferId, customerId, stake);
+                if (highStakesCache.get(betOfferId) == null) {
+                    dropAggregates(betOfferId);
+                }
+                groupStart = i + 1;
+            }
+        } finally {
+            // the stakes applied before a failure are durable when it is reported
+            if (journal != null) {
+                journal.awaitDurable();
+            }
+        }
+    }
+
+    /**
+     * Drops the aggregates recorded for an offer which a concurrent close or eviction removed from memory in the
+     * meantime, so they do not outlive it. Under the offer's stripe lock: no stake makes it resident again in between.
+     * Rare, a stake is recorded once its offer is resident.
+     */
+    private void dropAggregates(int betOfferId) {
+        offerStripes.runExclusive(betOfferId, () -> {
+            if (highStakesCache.get(betOfferId) == null) {
+                removeAggregates(betOfferId);
+            }
+        });
+    }
+
+    /**
+     * Removes the in-memory aggregates of an offer leaving memory, its customers keep it in their stakes
+     */
+    private void removeAggregates(int betOfferId) {
+        offerStats.remove(betOfferId);
+        windowedStakes.remove(betOfferId);
+        customerRanks.remove(betOfferId);
+    }
+
+    private void recordStats(int betOfferId, int customerId, int stake) {
+        if (!AppConfig.betOfferStatsEnabled) {
+            return;
+        }
+        offerStats.computeIfAbsent(betOfferId, key -> new OfferStats()).record(customerId, stake);
+    }
+
+    private void recordWindow(int betOfferId, int customerId, int stake) {
+        if (AppConfig.betOfferWindowMaxSeconds <= 0) {
+            return;
+        }
+        WindowedStakes window = windowedStakes.computeIfAbsent(betOfferId, key -> new WindowedStakes(capacityOf(key),
+                TimeUnit.SECONDS.toMillis(AppConfig.betOfferWindowBucketSeconds),
+                windowBuckets(AppConfig.betOfferWindowMaxSeconds)));
+        window.record(customerId, stake, System.currentTimeMillis());
+    }
+
+    private void recordRank(int betOfferId, int customerId, int stake) {
+        CustomerRanks ranks = customerRanks.get(betOfferId);
+        if (ranks == null) {
+            if (!isRanked(betOfferId)) {
+                return;
+            }
+            ranks = customerRanks.computeIfAbsent(betOfferId, key -> new CustomerRanks());
+        }
+        ranks.record(customerId, stake);
+    }
+
+    private void recordCustomerStake(int betOfferId, int customerId, int stake) {
+        if (AppConfig.customerIndexMaxOffers <= 0) {
+            return;
+        }
+        while (true) {
+            CustomerStakes stakes = customerIndex.get(customerId);
+            if (stakes == null) {
+                // once per customer, the later stakes find it without lock
+                stakes = customerIndex.computeIfAbsent(customerId,
+                        key -> new CustomerStakes(AppConfig.customerIndexMaxOffers));
+            }
+            stakes.record(betOfferId, stake);
+            if (!stakes.isRetired()) {
+                return;
+            }
+            // evicted meanwhile: the stake goes to the customer's next stakes
+            customerIndex.remove(customerId, stakes);
+        }
+    }
+
+    /**
+     * Retrieves the customer's highest stakes across the offers, one per offer, a lock-free read
+     *
+     * @return packed betOfferId/stake pairs by stake descending, see {@link CustomerStakes#getStakes}, empty if none
+     */
+    public long[] queryCustomerStakes(int customerId) {
+        CustomerStakes stakes = customerIndex.get(customerId);
+        return stakes == null ? new long[0] : stakes.getStakes();
+    }
+
+    /**
+     * @return whether the offer keeps the highest stake of every customer, see bet-offer.rank.offers
+     */
+    public boolean isRanked(int betOfferId) {
+        return AppConfig.betOfferRankAllOffers || Arrays.binarySearch(AppConfig.betOfferRankOffers, betOfferId) >= 0;
+    }
+
+    /**
+     * Retrieves the customer's rank among all the customers of a ranked offer, by highest stake
+     * Complexity: O(log n) n is the number of customers of the offer
+     *
+     * @return the rank from 1, 0 if the customer placed no stake on the offer since it became resident
+     */
+    public int rankOf(int betOfferId, int customerId) {
+        CustomerRanks ranks = customerRanks.get(betOfferId);
+        return ranks == null ? 0 : ranks.rankOf(customerId);
+    }
+
+    /**
+     * @return the customer ranks of the offer, null if it is not ranked or took no stake since it became resident
+     */
+    public CustomerRanks queryRanks(int betOfferId) {
+        return customerRanks.get(betOfferId);
+    }
+
+    /**
+     * Retrieves the top stakes placed on the offer in the last windowSeconds, to the granularity of
+     * bet-offer.window.bucket-seconds: the current bucket and the ones before it within the window.
+     * Complexity: O(b n) to merge the b completed buckets once per bucket rotation, then O(n) per query
+     *
+     * @return the stakes in descending order, {@link StakesSnapshot#EMPTY} if none was placed in the window
+     * @throws IllegalArgumentException if the window is not positive or longer than bet-offer.window.max-seconds
+     */
+    public StakesSnapshot queryWindow(int betOfferId, int windowSeconds) {
+        if (windowSeconds <= 0 || windowSeconds > AppConfig.betOfferWindowMaxSeconds) {
+            throw new IllegalArgumentException("window should be between 1 and " + AppConfig.betOfferWindowMaxSeconds
+                    + " seconds: " + windowSeconds);
+        }
+        WindowedStakes window = windowedStakes.get(betOfferId);
+        if (window == null) {
+            return StakesSnapshot.EMPTY;
+        }
+        return window.query(Math.min(windowBuckets(windowSeconds), window.getMaxBuckets()), System.currentTimeMillis());
+    }
+
+    /**
+     * @return the buckets of a window, rounded down so no stake older than the window is included, at least one
+     */
+    private static int windowBuckets(int windowSeconds) {
+        return Math.max(1, windowSeconds / Math.max(1, AppConfig.betOfferWindowBucketSeconds));
+    }
+
+    /**
+     * @return the live stats of the offer, null if no stake was accepted since it became resident
+     */
+    public OfferStats queryStats(int betOfferId) {
+        return offerStats.get(betOfferId);
+    }
+
+    /**
+     * Calls the subscriber once the offer's top stakes have another version than sinceVersion, right away if they
+     * already have, or after bet-offer.subscribe.timeout-seconds without change
+     *
+     * @throws HttpServerException 503 beyond bet-offer.subscribe.max-subscribers waiting subscriptions
+     */
+    public void subscribe(int betOfferId, long sinceVersion, StakesNotifier.Subscriber subscriber) {
+        notifier.subscribe(betOfferId, sinceVersion, subscriber);
+    }
+
+    /**
+     * @return number of subscriptions waiting for a change of their offer
+     */
+    public int getSubscriberCount() {
+        return notifier.getSubscriberCount();
+    }
+
+    /**
+     * Called by the holder of the offer's stripe lock
+     */
+    private void applyStake(int betOfferId, int customerId, int stake) {
+        // a customer's stake is replaced in place under the writer's turn, no spare entry is needed
+        TopNStakes maxStakes = highStakesCache.get(betOfferId);
+        if (maxStakes == null) {
+            if (isClosed(betOfferId)) {
+                throw new HttpServerException(409, "Bet offer " + betOfferId + " is closed", null);
+            }
+            maxStakes = makeResident(betOfferId);
+        }
+        maxStakes.touch();
+        if (maxStakes.offer(customerId, stake)) {
+            if (journal != null) {
+                journal.append(betOfferId, customerId, stake);
+            }
+            notifier.changed(betOfferId);
+        }
+    }
+
+    /**
+     * Creates the offer's top stakes, merged with its archived stakes if it was evicted.
+     * Called by the only thread writing the offer: its stripe lock holder, or its recovery thread.
+     */
+    private TopNStakes makeResident(int betOfferId) {
+        TopNStakes maxStakes = new TopNStakes(capacityOf(betOfferId));
+        long[] archived = readArchive(betOfferId, false);
+        if (archived != null) {
+            maxStakes.merge(archived);
+            reloadedCount.increment();
+        }
+        highStakesCache.put(betOfferId, maxStakes);
+        return maxStakes;
+    }
+
+    /**
+     * Applies a journaled stake during recovery, without journaling it again.
+     * The stakes of one offer are restored by one thread at a time.
+     */
+    public void restoreStake(int betOfferId, int customerId, int stake) {
+        TopNStakes maxStakes = highStakesCache.get(betOfferId);
+        if (maxStakes == null) {
+            if (isClosed(betOfferId)) {
+                return;
+            }
+            maxStakes = makeResident(betOfferId);
+        }
+        maxStakes.offer(customerId, stake);
+    }
+
+    /**
+     * Restores an offer's top stakes from a snapshot during recovery, unless it was closed since
+     *
+     * @param stakes packed stakes, highest first
+     */
+    public void restoreOffer(int betOfferId, long[] stakes) {
+        if (isClosed(betOfferId)) {
+            return;
+        }
+        highStakesCache.computeIfAbsent(betOfferId, key -> new TopNStakes(capacityOf(key)))
+                .restore(stakes);
+    }
+
+    /**
+     * Closes the offer: its final stakes are archived and it refuses stakes from now on (409).
+     *
+     * @throws HttpServerException 501 without archive, which keeps the closed offers,
+     *                             404 if the offer is neither in memory nor archived
+     */
+    public void closeOffer(int betOfferId) {
+        if (archive == null) {
+            throw new HttpServerException(501, "Closing bet offers needs bet-offer.archive.directory", null);
+        }
+        offerStripes.runExclusive(betOfferId, () -> {
+            if (isClosed(betOfferId)) {
+                return;
+            }
+            TopNStakes maxStakes = highStakesCache.get(betOfferId);
+            if (maxStakes == null && !archive.isArchived(betOfferId)) {
+                throw new HttpServerException(404, "Bet offer " + betOfferId + " not found", null);
+            }
+            long[] stakes = maxStakes != null ? maxStakes.getSnapshot().getPackedStakes() : readArchive(betOfferId, false);
+            try {
+                archive.writeClosed(betOfferId, stakes != null ? stakes : new long[0]);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to archive bet offer " + betOfferId, e);
+            }
+            if (maxStakes != null) {
+                highStakesCache.remove(betOfferId, maxStakes);
+            }
+            removeAggregates(betOfferId);
+            closedCount.increment();
+            // the subscribers get the final stakes
+            notifier.changed(betOfferId);
+        });
+    }
+
+    /**
+     * Evicts the offers idle for longer than bet-offer.idle-ttl-seconds, then the least recently staked offers
+     * beyond bet-offer.max-resident. Each eviction takes the offer's stripe lock, a stake racing with it is applied
+     * after it and reloads the offer.
+     */
+    public void evictOffers() {
+        long now = System.currentTimeMillis();
+        if (AppConfig.betOfferIdleTtlSeconds > 0) {
+            long idleBefore = now - TimeUnit.SECONDS.toMillis(AppConfig.betOfferIdleTtlSeconds);
+            highStakesCache.forEach((betOfferId, maxStakes) -> {
+                if (maxStakes.getLastAccessMillis() < idleBefore) {
+                    evict(betOfferId, idleBefore, evictedIdleCount);
+                }
+            });
+        }
+        int overflow = highStakesCache.size() - AppConfig.betOfferMaxResident;
+        if (AppConfig.betOfferMaxResident > 0 && overflow > 0) {
+            // idle time in the high half and offer id in the low half, sorted so the longest idle come last
+            long[] offers = new long[highStakesCache.size() + 16];
+            int[] count = new int[1];
+            highStakesCache.forEach((betOfferId, maxStakes) -> {
+                if (count[0] < offers.length) {
+                    long idleMillis = Math.min(Integer.MAX_VALUE, Math.max(0, now - maxStakes.getLastAccessMillis()));
+                    offers[count[0]++] = (idleMillis << 32) | (betOfferId & 0xFFFFFFFFL);
+                }
+            });
+            Arrays.sort(offers, 0, count[0]);
+            for (int i = count[0] - 1; i >= 0 && i >= count[0] - overflow; i--) {
+                evict((int) offers[i], Long.MAX_VALUE, evictedOverflowCount);
+            }
+        }
+    }
+
+    /**
+     * Evicts from the customer index the customers without stake for bet-offer.customer-index.idle-ttl-seconds,
+     * then the least recently staking ones beyond bet-offer.customer-index.max-customers. A customer staking since
+     * the sweep started is kept, a stake racing with the eviction starts the customer's stakes again.
+     */
+    public void evictCustomers() {
+        long now = System.currentTimeMillis();
+        if (AppConfig.customerIndexIdleTtlSeconds > 0) {
+            long idleBefore = now - TimeUnit.SECONDS.toMillis(AppConfig.customerIndexIdleTtlSeconds);
+            customerIndex.forEach((customerId, stakes) -> evictCustomer(customerId, stakes, idleBefore));
+        }
+        int overflow = customerIndex.size() - AppConfig.customerIndexMaxCustomers;
+        if (AppConfig.customerIndexMaxCustomers > 0 && overflow > 0) {
+            // idle time in the high half and customer id in the low half, sorted so the longest idle come last
+            long[] customers = new long[customerIndex.size() + 16];
+            int[] count = new int[1];
+            customerIndex.forEach((customerId, stakes) -> {
+                if (count[0] < customers.length) {
+                    long idleMillis = Math.min(Integer.MAX_VALUE, Math.max(0, now - stakes.getLastStakeMillis()));
+                    customers[count[0]++] = (idleMillis << 32) | (customerId & 0xFFFFFFFFL);
+                }
+            });
+            Arrays.sort(customers, 0, count[0]);
+            for (int i = count[0] - 1; i >= 0 && i >= count[0] - overflow; i--) {
+                int customerId = (int) customers[i];
+                CustomerStakes stakes = customerIndex.get(customerId);
+                if (stakes != null) {
+                    evictCustomer(customerId, stakes, now);
+                }
+            }
+        }
+    }
+
+    private void evictCustomer(int customerId, CustomerStakes stakes, long idleBefore) {
+        if (stakes.retire(idleBefore)) {
+            customerIndex.remove(customerId, stakes);
+            evictedCustomerCount.increment();
+        }
+    }
+
+    /**
+     * @param idleBefore the offer is only evicted if it took no stake since, re-checked under the stripe lock
+     */
+    private void evict(int betOfferId, long idleBefore, LongAdder counter) {
+        offerStripes.runExclusive(betOfferId, () -> {
+            TopNStakes maxStakes = highStakesCache.get(betOfferId);
+            if (maxStakes == null || maxStakes.getLastAccessMillis() >= idleBefore) {
+                return;
+            }
+            if (archive != null) {
+                try {
+                    archive.writeEvicted(betOfferId, maxStakes.getSnapshot().getPackedStakes());
+                } catch (IOException e) {
+                    // kept resident, retried by the next eviction
+                    log.warning("Failed to archive bet offer " + betOfferId + ": " + e);
                     return;
                 }
             }
-            maxStakes.add(new StakeEntry(customerId, stake));
-            // +1 can ensure remove stakes without falling below AppConfig.highStakesSizeForBetOffer
-            if (maxStakes.size() > AppConfig.highStakesSizeForBetOffer + 1) {
-                maxStakes.pollLast(); // O(log n) to remove smallest
+            highStakesCache.remove(betOfferId, maxStakes);
+            removeAggregates(betOfferId);
+            counter.increment();
+        });
+    }
+
+    /**
+     * Runs {@link #evictOffers} and {@link #evictCustomers} every bet-offer.eviction-interval-seconds, started once
+     * the offers are recovered
+     */
+    public void startEvictionTask() {
+        if (AppConfig.betOfferEvictionIntervalSeconds <= 0
+                || (AppConfig.betOfferIdleTtlSeconds <= 0 && AppConfig.betOfferMaxResident <= 0
+                && AppConfig.customerIndexIdleTtlSeconds <= 0 && AppConfig.customerIndexMaxCustomers <= 0)) {
+            return;
+        }
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "offer-eviction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                evictOffers();
+                evictCustomers();
+            } catch (RuntimeException e) {
+                log.severe("Bet offer eviction failed: " + e);
             }
-        } finally {
-            customerLock.unlock();
+        }, AppConfig.betOfferEvictionIntervalSeconds, AppConfig.betOfferEvictionIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * An in-memory lookup of the archive, no file access
+     */
+    private boolean isClosed(int betOfferId) {
+        return archive != null && archive.isClosed(betOfferId);
+    }
+
+    /**
+     * @param closed the final stakes of a closed offer, otherwise the stakes of an evicted offer
+     * @return the archived stakes, null if none
+     */
+    private long[] readArchive(int betOfferId, boolean closed) {
+        if (archive == null) {
+            return null;
+        }
+        try {
+            return closed ? archive.readClosed(betOfferId) : archive.readEvicted(betOfferId);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read archived bet offer " + betOfferId, e);
         }
+    }
+
+    /**
+     * @return number of offers in memory
+     */
+    public int getResidentOfferCount() {
+        return highStakesCache.size();
+    }
+
+    public long getEvictedIdleCount() {
+        return evictedIdleCount.sum();
+    }
 
+    public long getEvictedOverflowCount() {
+        return evictedOverflowCount.sum();
+    }
+
+    public long getClosedCount() {
+        return closedCount.sum();
+    }
+
+    /**
+     * @return number of customers in the customer index
+     */
+    public int getIndexedCustomerCount() {
+        return customerIndex.size();
+    }
+
+    public long getEvictedCustomerCount() {
+        return evictedCustomerCount.sum();
+    }
+
+    /**
+     * @return number of evicted offers read back from the archive by a stake
+     */
+    public long getReloadedCount() {
+        return reloadedCount.sum();
+    }
+
+    /**
+     * Visits the latest snapshot of every offer, weakly consistent with the stakes being placed
+     */
+    public void forEachOffer(ConcurrentIntObjectMap.IntObjectConsumer<StakesSnapshot> consumer) {
+        highStakesCache.forEach((betOfferId, maxStakes) -> consumer.accept(betOfferId, maxStakes.getSnapshot()));
     }
 
     /**
      * Retrieves the stakes for a specific bet offer
-     * Complexity: O(n) n is the number of stakes returned
+     * Complexity: O(n) n is the number of stakes returned, decoded from the offer's latest snapshot
      *
      * @return Stakes in descending order
      */
-    public List<StakeEntry> queryStakes(Integer betOfferId) {
-        if (betOfferId == null) {
-            throw new IllegalArgumentException("queryStakes.betOfferId should not be null");
+    public List<StakeEntry> queryStakes(int betOfferId) {
+        return querySnapshot(betOfferId).getEntries();
+    }
+
+    /**
+     * Retrieves the highest limit stakes of a bet offer, a prefix of the kept stakes, no sorting
+     *
+     * @return at most limit stakes in descending order
+     */
+    public List<StakeEntry> queryStakes(int betOfferId, int limit) {
+        List<StakeEntry> entries = querySnapshot(betOfferId).getEntries();
+        return entries.size() <= limit ? entries : entries.subList(0, limit);
+    }
+
+    /**
+     * Gathers the latest snapshots of several offers in one pass, each one a lock-free read
+     *
+     * @return the snapshots in the order of the ids, {@link StakesSnapshot#EMPTY} for an unknown offer
+     */
+    public StakesSnapshot[] querySnapshots(int[] betOfferIds) {
+        StakesSnapshot[] snapshots = new StakesSnapshot[betOfferIds.length];
+        for (int i = 0; i < betOfferIds.length; i++) {
+            snapshots[i] = querySnapshot(betOfferIds[i]);
+        }
+        return snapshots;
+    }
+
+    /**
+     * @return number of stakes kept for the offer, bet-offer.topN-stakes.nums.betOfferId or bet-offer.topN-stakes.nums
+     */
+    public int capacityOf(int betOfferId) {
+        Integer size = AppConfig.highStakesSizeByBetOffer.get(betOfferId);
+        return size == null ? AppConfig.highStakesSizeForBetOffer : size;
+    }
+
+    /**
+     * @return the latest snapshot of the offer's top stakes, read from the archive for an evicted or closed offer
+     * (without making it resident), {@link StakesSnapshot#EMPTY} for an unknown offer, which reads no file
+     */
+    public StakesSnapshot querySnapshot(int betOfferId) {
+        TopNStakes maxStakes = highStakesCache.get(betOfferId);
+        if (maxStakes != null) {
+            return maxStakes.getSnapshot();
+        }
+        long[] archived = readArchive(betOfferId, true);
+        if (archived == null) {
+            archived = readArchive(betOfferId, false);
         }
-        ConcurrentSkipListSet<StakeEntry> maxStakes = highStakesCache.getOrDefault(betOfferId, new ConcurrentSkipListSet<>());
-        return maxStakes.stream().limit(AppConfig.highStakesSizeForBetOffer).collect(Collectors.toList());
+        return archived == null ? StakesSnapshot.EMPTY : new StakesSnapshot(archived, 0);
     }
 }
\ No newline at end of file
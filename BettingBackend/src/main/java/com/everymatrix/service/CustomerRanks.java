@@ -0,0 +1,262 @@
+package com.everymatrix.service;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The highest stake of every customer of one bet offer, ranked: the rank of a customer is 1 + the number of
+ * customers ranking before, in the order of the top stakes (stake descending, then customerId ascending).
+ * <p>
+ * The customers are the nodes of a treap (a binary search tree kept balanced by random node priorities) whose nodes
+ * count their subtree, so a rank is one O(log n) descent. A customer's node lives at the same index of primitive
+ * arrays for good, a raised stake moves it in the tree, and a customer to node open addressing table finds it:
+ * about 40 bytes per customer, no object. Its priority is a hash of its index, not stored.
+ * <p>
+ * Updates and reads take the lock of the offer's ranks, each for O(log n).
+ */
+public class CustomerRanks {
+
+    private static final int NIL = 0;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // tree nodes, index 0 is NIL, sizes[NIL] stays 0
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private int[] left = new int[INITIAL_CAPACITY];
+    private int[] right = new int[INITIAL_CAPACITY];
+    private int[] sizes = new int[INITIAL_CAPACITY];
+    private int nodeCount = 1;
+    private int root = NIL;
+
+    // customerId to node, open addressing, NIL for a free slot
+    private int[] tableCustomerIds = new int[INITIAL_CAPACITY];
+    private int[] tableNodes = new int[INITIAL_CAPACITY];
+
+    /**
+     * Keeps the stake if it is the customer's highest
+     *
+     * @return whether the customer's stake was raised
+     */
+    public boolean record(int customerId, int stake) {
+        lock.lock();
+        try {
+            int node = find(customerId);
+            long key = key(customerId, stake);
+            if (node == NIL) {
+                node = newNode(customerId, key);
+            } else if (key < keys[node]) {
+                root = remove(root, keys[node]);
+                keys[node] = key;
+                left[node] = NIL;
+                right[node] = NIL;
+                sizes[node] = 1;
+            } else {
+                return false;
+            }
+            root = insert(root, node);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Complexity: O(log n) n is the number of customers
+     *
+     * @return the customer's rank from 1, 0 if the customer placed no stake
+     */
+    public int rankOf(int customerId) {
+        lock.lock();
+        try {
+            int node = find(customerId);
+            if (node == NIL) {
+                return 0;
+            }
+            long key = keys[node];
+            int before = 0;
+            for (int current = root; current != NIL; ) {
+                if (keys[current] < key) {
+                    before += sizes[left[current]] + 1;
+                    current = right[current];
+                } else {
+                    current = left[current];
+                }
+            }
+            return before + 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the customer's highest stake, 0 if the customer placed no stake
+     */
+    public int stakeOf(int customerId) {
+        lock.lock();
+        try {
+            int node = find(customerId);
+            return node == NIL ? 0 : ~(int) (keys[node] >> 32);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of ranked customers
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return nodeCount - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Orders the customers as the top stakes as a signed long: the complement of the stake high,
+     * the customerId biased to compare unsigned low
+     */
+    private static long key(int customerId, int stake) {
+        return ((long) ~stake << 32) | ((customerId ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+    }
+
+    private static int priority(int node) {
+        int h = node * 0x9E3779B9;
+        h ^= h >>> 15;
+        h *= 0x85EBCA6B;
+        return h ^ (h >>> 13);
+    }
+
+    private int insert(int subtree, int node) {
+        if (subtree == NIL) {
+            return node;
+        }
+        if (keys[node] < keys[subtree]) {
+            left[subtree] = insert(left[subtree], node);
+            if (priority(left[subtree]) > priority(subtree)) {
+                return rotateRight(subtree);
+            }
+        } else {
+            right[subtree] = insert(right[subtree], node);
+            if (priority(right[subtree]) > priority(subtree)) {
+                return rotateLeft(subtree);
+            }
+        }
+        sizes[subtree]++;
+        return subtree;
+    }
+
+    /**
+     * Unlinks the node of the key, which is in the subtree
+     */
+    private int remove(int subtree, long key) {
+        if (key < keys[subtree]) {
+            left[subtree] = remove(left[subtree], key);
+        } else if (key > keys[subtree]) {
+            right[subtree] = remove(right[subtree], key);
+        } else {
+            return join(left[subtree], right[subtree]);
+        }
+        sizes[subtree]--;
+        return subtree;
+    }
+
+    /**
+     * Joins two subtrees, every key of the first ranking before the keys of the second
+     */
+    private int join(int first, int second) {
+        if (first == NIL) {
+            return second;
+        }
+        if (second == NIL) {
+            return first;
+        }
+        if (priority(first) > priority(second)) {
+            right[first] = join(right[first], second);
+            resize(first);
+            return first;
+        }
+        left[second] = join(first, left[second]);
+        resize(second);
+        return second;
+    }
+
+    private int rotateRight(int node) {
+        int pivot = left[node];
+        left[node] = right[pivot];
+        right[pivot] = node;
+        resize(node);
+        resize(pivot);
+        return pivot;
+    }
+
+    private int rotateLeft(int node) {
+        int pivot = right[node];
+        right[node] = left[pivot];
+        left[pivot] = node;
+        resize(node);
+        resize(pivot);
+        return pivot;
+    }
+
+    private void resize(int node) {
+        sizes[node] = sizes[left[node]] + sizes[right[node]] + 1;
+    }
+
+    private int newNode(int customerId, long key) {
+        if (nodeCount == keys.length) {
+            int capacity = keys.length * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+        }
+        int node = nodeCount++;
+        keys[node] = key;
+        sizes[node] = 1;
+        if (nodeCount * 2 > tableNodes.length) {
+            rehash(tableNodes.length * 2);
+        }
+        put(customerId, node);
+        return node;
+    }
+
+    private int find(int customerId) {
+        int mask = tableNodes.length - 1;
+        for (int i = hash(customerId) & mask; tableNodes[i] != NIL; i = (i + 1) & mask) {
+            if (tableCustomerIds[i] == customerId) {
+                return tableNodes[i];
+            }
+        }
+        return NIL;
+    }
+
+    private void put(int customerId, int node) {
+        int mask = tableNodes.length - 1;
+        int i = hash(customerId) & mask;
+        while (tableNodes[i] != NIL) {
+            i = (i + 1) & mask;
+        }
+        tableCustomerIds[i] = customerId;
+        tableNodes[i] = node;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldCustomerIds = tableCustomerIds;
+        int[] oldNodes = tableNodes;
+        tableCustomerIds = new int[capacity];
+        tableNodes = new int[capacity];
+        for (int i = 0; i < oldNodes.length; i++) {
+            if (oldNodes[i] != NIL) {
+                put(oldCustomerIds[i], oldNodes[i]);
+            }
+        }
+    }
+
+    private static int hash(int customerId) {
+        int h = customerId * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,86 @@
+package com.everymatrix.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The highest stake of one customer on each bet offer, for the customer's view across offers: at most a configured
+ * number of offers, the ones of the customer's highest stakes.
+ * <p>
+ * A {@link PackedTopK} keyed by bet offer: a customer's stakes on different offers race without lock, and a stake
+ * which changes nothing allocates nothing.
+ * <p>
+ * An idle customer's stakes are evicted from the index by retiring them: a retired instance is left by the stakes
+ * racing with the eviction, which record again into the customer's next instance.
+ */
+public class CustomerStakes {
+
+    private static final long RETIRED = Long.MIN_VALUE;
+
+    private final PackedTopK stakes;
+
+    // time of the customer's last stake, RETIRED once evicted
+    private final AtomicLong lastStakeMillis = new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * @param capacity max offers kept
+     */
+    public CustomerStakes(int capacity) {
+        this.stakes = new PackedTopK(capacity);
+    }
+
+    /**
+     * Keeps the stake if it is the customer's highest on the offer and ranks among the kept ones,
+     * check {@link #isRetired} after it
+     *
+     * @return whether the kept stakes changed
+     */
+    public boolean record(int betOfferId, int stake) {
+        long now = System.currentTimeMillis();
+        long last = lastStakeMillis.get();
+        // written once per millisecond at most, the customer's concurrent stakes mostly read it
+        while (last != RETIRED && last < now && !lastStakeMillis.compareAndSet(last, now)) {
+            last = lastStakeMillis.get();
+        }
+        return stakes.record(betOfferId, stake);
+    }
+
+    /**
+     * Retires the stakes if the customer placed no stake since the given time, before their eviction from the index
+     *
+     * @return whether they are retired by this call
+     */
+    public boolean retire(long idleBefore) {
+        long last = lastStakeMillis.get();
+        return last != RETIRED && last < idleBefore && lastStakeMillis.compareAndSet(last, RETIRED);
+    }
+
+    /**
+     * @return whether an eviction retired the stakes, a stake recorded by them must be recorded again in the index
+     */
+    public boolean isRetired() {
+        return lastStakeMillis.get() == RETIRED;
+    }
+
+    /**
+     * @return time of the customer's last stake, Long.MIN_VALUE once retired
+     */
+    public long getLastStakeMillis() {
+        return lastStakeMillis.get();
+    }
+
+    /**
+     * @return the kept stakes, highest first, packed: read them with {@link #betOfferId} and {@link #stake},
+     * must not be modified
+     */
+    public long[] getStakes() {
+        return stakes.getEntries();
+    }
+
+    public static int betOfferId(long packed) {
+        return PackedTopK.key(packed);
+    }
+
+    public static int stake(long packed) {
+        return PackedTopK.value(packed);
+    }
+}
@@ -0,0 +1,246 @@
+package com.everymatrix.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Live aggregates of every stake placed on one bet offer, including the stakes which never reach its top-N:
+ * stake count, staked volume and each customer's cumulative stake.
+ * <p>
+ * Count and volume are {@link LongAdder}s, concurrent stakes update different cells. The customer totals are split
+ * into stripes by customer hash, each a primitive open addressing table of customer keys and totals updated by
+ * compare-and-set, no lock and no object per customer: a customer claims its slot once, then adds to its total.
+ * A full table is replaced by a larger one under the stripe's lock, the only lock, taken O(log n) times per stripe.
+ * A stripe is created by the first stake of one of its customers, an offer with few customers holds few stripes.
+ */
+public class OfferStats {
+
+    private static final int STRIPE_BITS = 3;
+    private static final int INITIAL_TABLE_SIZE = 4;
+
+    // markers of a customer key slot: free, or sealed free by a table being replaced
+    private static final long EMPTY = 0;
+    private static final long SEALED = -1;
+    // marker of the total of a slot copied to the next table
+    private static final long SEALED_TOTAL = Long.MIN_VALUE;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder volume = new LongAdder();
+    private final AtomicReferenceArray<CustomerTotals> stripes = new AtomicReferenceArray<>(1 << STRIPE_BITS);
+
+    /**
+     * Adds a placed stake
+     */
+    public void record(int customerId, int stake) {
+        count.increment();
+        volume.add(stake);
+        int hash = hash(customerId);
+        int index = hash >>> (32 - STRIPE_BITS);
+        CustomerTotals totals = stripes.get(index);
+        if (totals == null) {
+            stripes.compareAndSet(index, null, new CustomerTotals());
+            totals = stripes.get(index);
+        }
+        totals.add(customerId, hash, stake);
+    }
+
+    /**
+     * @return number of stakes placed, a sum of the counter cells, may miss the stakes being recorded
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return sum of the stakes placed
+     */
+    public long getVolume() {
+        return volume.sum();
+    }
+
+    /**
+     * @return number of distinct customers who placed a stake
+     */
+    public int getCustomerCount() {
+        int customers = 0;
+        for (int i = 0; i < stripes.length(); i++) {
+            CustomerTotals totals = stripes.get(i);
+            if (totals != null) {
+                customers += totals.size();
+            }
+        }
+        return customers;
+    }
+
+    /**
+     * @return the customer's cumulative stake, 0 if the customer placed none
+     */
+    public long getCustomerTotal(int customerId) {
+        int hash = hash(customerId);
+        CustomerTotals totals = stripes.get(hash >>> (32 - STRIPE_BITS));
+        if (totals == null) {
+            return 0;
+        }
+        return totals.get(customerId, hash);
+    }
+
+    private static int hash(int customerId) {
+        int h = customerId * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * A stripe of customer totals: its current table, and the lock of the rare thread growing it
+     */
+    private static final class CustomerTotals extends ReentrantLock {
+        private volatile Table table = new Table(INITIAL_TABLE_SIZE);
+
+        private void add(int customerId, int hash, long stake) {
+            long key = key(customerId);
+            while (true) {
+                Table current = table;
+                if (current.add(key, hash, stake)) {
+                    return;
+                }
+                grow(current);
+            }
+        }
+
+        private long get(int customerId, int hash) {
+            long key = key(customerId);
+            while (true) {
+                long total = table.get(key, hash);
+                if (total != SEALED_TOTAL) {
+                    return total;
+                }
+                // the table is being replaced
+                Thread.onSpinWait();
+            }
+        }
+
+        private int size() {
+            return table.size.get();
+        }
+
+        /**
+         * Replaces the full table by one twice larger, unless another thread did. The old table is sealed first,
+         * each of its slots by compare-and-set, so an add racing with the copy fails there and retries on the new table.
+         */
+        private void grow(Table full) {
+            lock();
+            try {
+                if (table != full) {
+                    return;
+                }
+                Table grown = new Table(full.keys.length() * 2);
+                for (int i = 0; i < full.keys.length(); i++) {
+                    long key = full.keys.get(i);
+                    while (key == EMPTY && !full.keys.compareAndSet(i, EMPTY, SEALED)) {
+                        key = full.keys.get(i);
+                    }
+                    if (key != EMPTY) {
+                        grown.copy(key, full.totals.getAndSet(i, SEALED_TOTAL));
+                    }
+                }
+                table = grown;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * A customer key never collides with the free and sealed markers: its high half is 1
+         */
+        private static long key(int customerId) {
+            return (1L << 32) | (customerId & 0xFFFFFFFFL);
+        }
+    }
+
+    /**
+     * Open addressing customer key to total arrays of a fixed size. A customer claims a free slot by compare-and-set
+     * and keeps it, its total is added to by compare-and-set.
+     */
+    private static final class Table {
+        private final AtomicLongArray keys;
+        private final AtomicLongArray totals;
+        private final AtomicInteger size = new AtomicInteger();
+
+        private Table(int length) {
+            this.keys = new AtomicLongArray(length);
+            this.totals = new AtomicLongArray(length);
+        }
+
+        /**
+         * @return false if the table is full or sealed, the stake is then added to the next table
+         */
+        private boolean add(long key, int hash, long stake) {
+            int mask = keys.length() - 1;
+            for (int i = hash & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                long existing = keys.get(i);
+                if (existing == EMPTY) {
+                    if (size.get() * 2 >= keys.length()) {
+                        return false;
+                    }
+                    if (keys.compareAndSet(i, EMPTY, key)) {
+                        size.incrementAndGet();
+                        existing = key;
+                    } else {
+                        existing = keys.get(i);
+                    }
+                }
+                if (existing == SEALED) {
+                    return false;
+                }
+                if (existing == key) {
+                    while (true) {
+                        long total = totals.get(i);
+                        if (total == SEALED_TOTAL) {
+                            return false;
+                        }
+                        if (totals.compareAndSet(i, total, total + stake)) {
+                            return true;
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the customer's total, 0 if absent, SEALED_TOTAL if the table is being replaced
+         */
+        private long get(long key, int hash) {
+            int mask = keys.length() - 1;
+            for (int i = hash & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                long existing = keys.get(i);
+                if (existing == EMPTY) {
+                    return 0;
+                }
+                if (existing == SEALED) {
+                    return SEALED_TOTAL;
+                }
+                if (existing == key) {
+                    return totals.get(i);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Called by the thread growing the stripe, before the table is published
+         */
+        private void copy(long key, long total) {
+            int mask = keys.length() - 1;
+            int i = hash((int) key) & mask;
+            while (keys.get(i) != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            keys.set(i, key);
+            totals.set(i, total);
+            size.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.everymatrix.service;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Applies the stakes of each bet offer one at a time: every offer is owned by one of a fixed set of stripes,
+ * chosen by the offer hash, and a stripe applies its stakes under its lock.
+ * <p>
+ * Stakes are applied with flat combining: a caller queues its stake then takes the stripe lock, the holder applies
+ * the stakes queued so far (its own and the ones of the callers waiting for the lock) in one batch. Every caller
+ * still takes the lock once, but a waiter whose stake was applied meanwhile only checks it and releases it, so the
+ * lock is held briefly by most callers and a hot offer's top stakes stay in the cache of the combining thread
+ * instead of moving between cores with every stake. Offers on different stripes never contend.
+ */
+public class OfferStripes {
+
+    /**
+     * Applies one stake, only called by the thread holding the offer's stripe lock
+     */
+    public interface StakeApplier {
+        void apply(int betOfferId, int customerId, int stake);
+    }
+
+    /**
+     * Max stakes applied by one lock holder for the others, so a caller is not kept combining forever under load
+     */
+    private static final int MAX_BATCH = 256;
+
+    private final Stripe[] stripes;
+    private final int mask;
+    private final StakeApplier applier;
+
+    /**
+     * @param stripeCount number of stripes, rounded up to a power of two, 0 or less for 4 per available core
+     */
+    public OfferStripes(int stripeCount, StakeApplier applier) {
+        int count = stripeCount > 0 ? stripeCount : Runtime.getRuntime().availableProcessors() * 4;
+        int size = count == 1 ? 1 : Integer.highestOneBit(count - 1) << 1;
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.mask = size - 1;
+        this.applier = applier;
+    }
+
+    /**
+     * Applies the stake, returns once it is applied, by this thread or by the lock holder of its stripe
+     */
+    public void placeStake(int betOfferId, int customerId, int stake) {
+        Stripe stripe = stripes[spread(betOfferId) & mask];
+        PendingStake pending = new PendingStake(betOfferId, customerId, stake);
+        stripe.queue.add(pending);
+        stripe.lock.lock();
+        try {
+            // not applied yet means still queued, the batches drain the queue in order until they reach it
+            while (!pending.applied) {
+                combine(stripe);
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+        if (pending.failure != null) {
+            throw pending.failure;
+        }
+    }
+
+    /**
+     * Runs the action as the offer's writer, under its stripe lock, e.g. to evict or close the offer.
+     * The stakes queued meanwhile are applied after it.
+     */
+    public void runExclusive(int betOfferId, Runnable action) {
+        Stripe stripe = stripes[spread(betOfferId) & mask];
+        stripe.lock.lock();
+        try {
+            action.run();
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    private void combine(Stripe stripe) {
+        PendingStake next;
+        for (int i = 0; i < MAX_BATCH && (next = stripe.queue.poll()) != null; i++) {
+            try {
+                applier.apply(next.betOfferId, next.customerId, next.stake);
+            } catch (RuntimeException e) {
+                // rethrown by its caller, the batch goes on
+                next.failure = e;
+            }
+            next.applied = true;
+        }
+    }
+
+    /**
+     * Spreads the offer ids over the stripes, consecutive ids land on different stripes
+     */
+    private static int spread(int betOfferId) {
+        int h = betOfferId * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static class Stripe {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ConcurrentLinkedQueue<PendingStake> queue = new ConcurrentLinkedQueue<>();
+    }
+
+    private static class PendingStake {
+        private final int betOfferId;
+        private final int customerId;
+        private final int stake;
+        // written by the lock holder applying it, read by its caller once it holds the lock
+        private boolean applied;
+        private RuntimeException failure;
+
+        private PendingStake(int betOfferId, int customerId, int stake) {
+            this.betOfferId = betOfferId;
+            this.customerId = customerId;
+            this.stake = stake;
+        }
+    }
+}
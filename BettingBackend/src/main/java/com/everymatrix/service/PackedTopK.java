@@ -0,0 +1,103 @@
+package com.everymatrix.service;
+
+import com.everymatrix.model.StakeEntry;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The highest values of at most a capacity of keys, one value per key, the highest recorded for it.
+ * <p>
+ * The entries are packed key/value longs ({@link StakeEntry#pack} with the key in place of the customer), so they
+ * order and merge like the entries of a {@link TopNStakes}. They are kept in an array sorted by value descending,
+ * replaced as a whole by compare-and-set: concurrent records race without lock, a lost race retries on the new
+ * array. A record which changes nothing (not the key's highest, or below the lowest kept once full) costs a scan
+ * and allocates nothing.
+ */
+public class PackedTopK {
+
+    private static final long[] EMPTY = new long[0];
+
+    private final int capacity;
+
+    // replaced as a whole, only by record
+    private final AtomicReference<long[]> entries = new AtomicReference<>(EMPTY);
+
+    /**
+     * @param capacity max keys kept
+     */
+    public PackedTopK(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Keeps the value if it is the key's highest and ranks among the kept ones
+     *
+     * @return whether the kept entries changed
+     */
+    public boolean record(int key, int value) {
+        long packed = StakeEntry.pack(key, value);
+        while (true) {
+            long[] current = entries.get();
+            long[] updated = offer(current, packed);
+            if (updated == null) {
+                return false;
+            }
+            if (entries.compareAndSet(current, updated)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the kept entries, highest first, packed: read them with {@link #key} and {@link #value},
+     * must not be modified
+     */
+    public long[] getEntries() {
+        return entries.get();
+    }
+
+    public static int key(long packed) {
+        return StakeEntry.customerId(packed);
+    }
+
+    public static int value(long packed) {
+        return StakeEntry.stake(packed);
+    }
+
+    /**
+     * @return the entries with the packed one, null if it changes nothing
+     */
+    private long[] offer(long[] current, long packed) {
+        int count = current.length;
+        int value = value(packed);
+        if (count == capacity && StakeEntry.ranksBefore(current[count - 1], packed)) {
+            return null;
+        }
+        int key = key(packed);
+        int existing = -1;
+        for (int i = 0; i < count; i++) {
+            if (key(current[i]) == key) {
+                if (value(current[i]) >= value) {
+                    return null;
+                }
+                existing = i;
+                break;
+            }
+        }
+        int position = 0;
+        while (position < count && StakeEntry.ranksBefore(current[position], packed)) {
+            position++;
+        }
+        // the key's previous value is lower, it ranks after the new one
+        int size = Math.min(capacity, existing >= 0 ? count : count + 1);
+        long[] updated = new long[size];
+        System.arraycopy(current, 0, updated, 0, position);
+        updated[position] = packed;
+        for (int from = position, to = position + 1; to < size; from++) {
+            if (from != existing) {
+                updated[to++] = current[from];
+            }
+        }
+        return updated;
+    }
+}
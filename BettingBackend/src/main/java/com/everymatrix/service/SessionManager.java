@@ -9,6 +9,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A lazy-expiration and periodically checking session manager.
@@ -23,6 +24,11 @@ public class SessionManager {
     private final long expiredMilliseconds;
     private final ScheduledExecutorService executor;
 
+    /**
+     * Serializes session creation, a lock rather than synchronized so that virtual threads waiting on it are not pinned.
+     */
+    private final ReentrantLock sessionCreationLock = new ReentrantLock();
+
     public SessionManager(long expiredMilliseconds) {
         this.executor = Executors.newSingleThreadScheduledExecutor();
         this.expiredMilliseconds = expiredMilliseconds;
@@ -35,9 +41,13 @@ public class SessionManager {
      * @param customerId the customer ID.
      * @return the session key associated with the customer ID.
      */
-    public synchronized String getSession(Integer customerId) {
-        validateCustomerId(customerId);
-        return getOrCreateSession(customerId);
+    public String getSession(int customerId) {
+        sessionCreationLock.lock();
+        try {
+            return getOrCreateSession(customerId);
+        } finally {
+            sessionCreationLock.unlock();
+        }
     }
 
     /**
@@ -108,12 +118,6 @@ public class SessionManager {
         executor.scheduleAtFixedRate(this::purgeAllExpiredSessions, expiredMilliseconds, expiredMilliseconds, TimeUnit.MILLISECONDS);
     }
 
-    private void validateCustomerId(Integer customerId) {
-        if (customerId == null) {
-            throw new IllegalArgumentException("Customer ID should not be null.");
-        }
-    }
-
     private void validateSessionKey(String sessionKey) {
         if (sessionKey == null || sessionKey.isEmpty()) {
             throw new IllegalArgumentException("Session key should not be null or empty.");
@@ -0,0 +1,230 @@
+package com.everymatrix.service;
+
+import com.everymatrix.exception.HttpServerException;
+import com.everymatrix.model.StakesSnapshot;
+import com.everymatrix.utils.ConcurrentIntObjectMap;
+import com.everymatrix.utils.LogUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.logging.Logger;
+
+/**
+ * Tells the subscribers of an offer when its top stakes change, so clients wait for a change instead of polling.
+ * <p>
+ * A subscription is one shot: it receives the first snapshot whose version differs from the one it knows, or a
+ * timeout, then it is gone (a long poll). A change only marks its offer, and only when the offer has subscribers:
+ * a single notifier thread wakes every coalesce interval and serves each marked offer once with its latest snapshot,
+ * so a burst of stakes costs its subscribers one notification. No thread waits for a subscriber, and the number of
+ * waiting subscriptions is bounded.
+ */
+public class StakesNotifier {
+
+    /**
+     * Receives exactly one of its two calls, on the notifier thread (or on the subscribing thread if the offer
+     * changed while subscribing), so it must not block
+     */
+    public interface Subscriber {
+        void onChange(StakesSnapshot snapshot);
+
+        void onTimeout(StakesSnapshot snapshot);
+    }
+
+    private final Logger log = LogUtils.getLogger();
+
+    private final IntFunction<StakesSnapshot> snapshots;
+    private final long coalesceMillis;
+    private final long timeoutMillis;
+    private final int maxSubscribers;
+
+    private final ConcurrentIntObjectMap<Watchers> watchers = new ConcurrentIntObjectMap<>();
+    // offers changed since the last tick which have subscribers, each queued once until served
+    private final ConcurrentLinkedQueue<Watchers> changed = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private long nextTimeoutSweepMillis;
+
+    /**
+     * @param snapshots      the latest snapshot of an offer
+     * @param coalesceMillis the changes of an offer within this interval are notified once
+     * @param timeoutMillis  a subscription without change is answered after this time
+     * @param maxSubscribers max waiting subscriptions, the next ones are answered 503
+     */
+    public StakesNotifier(IntFunction<StakesSnapshot> snapshots, long coalesceMillis, long timeoutMillis,
+                          int maxSubscribers) {
+        this.snapshots = snapshots;
+        this.coalesceMillis = Math.max(1, coalesceMillis);
+        this.timeoutMillis = timeoutMillis;
+        this.maxSubscribers = maxSubscribers;
+    }
+
+    /**
+     * Waits for the offer's version to differ from sinceVersion. If it already does the subscriber is called
+     * right away by this thread.
+     */
+    public void subscribe(int betOfferId, long sinceVersion, Subscriber subscriber) {
+        StakesSnapshot snapshot = snapshots.apply(betOfferId);
+        if (snapshot.getVersion() != sinceVersion) {
+            subscriber.onChange(snapshot);
+            return;
+        }
+        if (subscriberCount.incrementAndGet() > maxSubscribers) {
+            subscriberCount.decrementAndGet();
+            throw new HttpServerException(503, "Too many subscribers", null);
+        }
+        startIfNeeded();
+        Watch watch = new Watch(sinceVersion, System.currentTimeMillis() + timeoutMillis, subscriber);
+        while (!watchers.computeIfAbsent(betOfferId, Watchers::new).add(watch)) {
+            // raced with the notifier dropping the offer's empty watchers, retried on a new one
+        }
+        // a change between the version check and the registration is served by the next tick
+        if (snapshots.apply(betOfferId).getVersion() != sinceVersion) {
+            changed(betOfferId);
+        }
+    }
+
+    /**
+     * Marks the offer changed, a map lookup when it has no subscriber. Called by the offer's writer.
+     */
+    public void changed(int betOfferId) {
+        Watchers offerWatchers = watchers.get(betOfferId);
+        if (offerWatchers != null && offerWatchers.queued.compareAndSet(false, true)) {
+            changed.add(offerWatchers);
+        }
+    }
+
+    /**
+     * @return number of subscriptions waiting for a change
+     */
+    public int getSubscriberCount() {
+        return subscriberCount.get();
+    }
+
+    private void startIfNeeded() {
+        if (started.get() || !started.compareAndSet(false, true)) {
+            return;
+        }
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stakes-notifier");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                tick();
+            } catch (RuntimeException e) {
+                log.severe("Stakes notification failed: " + e);
+            }
+        }, coalesceMillis, coalesceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Serves the offers changed since the last tick, then once a second the subscriptions which timed out
+     */
+    void tick() {
+        long now = System.currentTimeMillis();
+        Watchers offerWatchers;
+        while ((offerWatchers = changed.poll()) != null) {
+            offerWatchers.queued.set(false);
+            serve(offerWatchers, now);
+        }
+        if (now >= nextTimeoutSweepMillis) {
+            nextTimeoutSweepMillis = now + Math.min(1000, timeoutMillis);
+            watchers.forEach((betOfferId, expiring) -> {
+                if (expiring.hasExpired(now)) {
+                    serve(expiring, now);
+                }
+            });
+        }
+    }
+
+    private void serve(Watchers offerWatchers, long now) {
+        StakesSnapshot snapshot = snapshots.apply(offerWatchers.betOfferId);
+        for (Watch watch : offerWatchers.take(snapshot.getVersion(), now)) {
+            subscriberCount.decrementAndGet();
+            try {
+                if (watch.sinceVersion != snapshot.getVersion()) {
+                    watch.subscriber.onChange(snapshot);
+                } else {
+                    watch.subscriber.onTimeout(snapshot);
+                }
+            } catch (RuntimeException e) {
+                log.warning("Stakes subscriber failed: " + e);
+            }
+        }
+    }
+
+    private static final class Watch {
+        private final long sinceVersion;
+        private final long deadlineMillis;
+        private final Subscriber subscriber;
+
+        private Watch(long sinceVersion, long deadlineMillis, Subscriber subscriber) {
+            this.sinceVersion = sinceVersion;
+            this.deadlineMillis = deadlineMillis;
+            this.subscriber = subscriber;
+        }
+    }
+
+    /**
+     * The waiting subscriptions of one offer, dropped from the map once empty
+     */
+    private final class Watchers {
+        private final int betOfferId;
+        private final AtomicBoolean queued = new AtomicBoolean();
+        private List<Watch> watches = new ArrayList<>();
+        private boolean dropped;
+
+        private Watchers(int betOfferId) {
+            this.betOfferId = betOfferId;
+        }
+
+        /**
+         * @return false if the watchers were dropped, the watch must be added to the offer's new ones
+         */
+        private synchronized boolean add(Watch watch) {
+            if (dropped) {
+                return false;
+            }
+            watches.add(watch);
+            return true;
+        }
+
+        private synchronized boolean hasExpired(long now) {
+            for (Watch watch : watches) {
+                if (watch.deadlineMillis <= now) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Removes the watches which know another version than the given one, or whose deadline has passed
+         */
+        private synchronized List<Watch> take(long version, long now) {
+            List<Watch> taken = new ArrayList<>();
+            List<Watch> kept = new ArrayList<>();
+            for (Watch watch : watches) {
+                if (watch.sinceVersion != version || watch.deadlineMillis <= now) {
+                    taken.add(watch);
+                } else {
+                    kept.add(watch);
+                }
+            }
+            watches = kept;
+            if (kept.isEmpty()) {
+                dropped = true;
+                watchers.remove(betOfferId, this);
+            }
+            return taken;
+        }
+    }
+}
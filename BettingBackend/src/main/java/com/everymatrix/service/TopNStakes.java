@@ -0,0 +1,244 @@
+package com.everymatrix.service;
+
+import com.everymatrix.model.StakeEntry;
+import com.everymatrix.model.StakesSnapshot;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The highest stakes of one bet offer, at most one entry per customer.
+ * <p>
+ * The stakes are packed customerId/stake longs ({@link StakeEntry#pack}) in a sorted array, highest first, which is
+ * the array of the published {@link StakesSnapshot}: each change copies it into a new array and publishes a new
+ * snapshot, readers never see a change in progress. An offer costs its snapshot and one long per kept stake,
+ * no object per stake. N is small (20 by default), so finding a customer's stake is a scan of N longs in a few
+ * cache lines, and the copy on change is O(N) like the insertion into a sorted array would be. A configured size is
+ * capped at {@link com.everymatrix.config.AppConfig#MAX_HIGH_STAKES_SIZE}, which bounds that cost. From
+ * {@link #INDEXED_CAPACITY} entries the writer finds the customer in an open addressing customerId -> position
+ * table instead, rebuilt by the first stake after a change (O(N), as the copy), so a stake above the floor but not
+ * above the customer's kept one is rejected in O(1).
+ * <p>
+ * Each change takes the next version. The first change of an instance seeds it from the clock, in microseconds, so an
+ * offer reloaded after its eviction or restored after a restart takes versions above the ones served before, unless
+ * the previous instance averaged more than 1000 changes per millisecond. Archived snapshots keep version 0.
+ * <p>
+ * Single writer: {@link #offer} is called by one thread at a time (the offer's stripe lock holder,
+ * see {@link OfferStripes}). {@link #getSnapshot} and {@link #getFloor} are single volatile reads.
+ * <p>
+ * Once full, the lowest kept stake is the admission floor: a stake below it can never be kept,
+ * neither as a new entry (it would be the one evicted) nor as a replacement (the customer's kept entry is higher),
+ * so callers may drop it without taking the writer's turn. The floor only rises, a stale read only lets more through.
+ */
+public class TopNStakes {
+
+    /**
+     * Capacity from which the writer indexes the entries by customer, below it a scan of the array is faster
+     */
+    static final int INDEXED_CAPACITY = 64;
+
+    private static final long VERSIONS_PER_MILLI = 1000;
+
+    private final int capacity;
+    private volatile StakesSnapshot snapshot = StakesSnapshot.EMPTY;
+    // last time a stake reached the writer, read by the eviction task
+    private volatile long lastAccessMillis = System.currentTimeMillis();
+    // writer-private: position + 1 of each entry of indexedStakes by customerId hash, 0 for an empty slot
+    private int[] index;
+    private long[] indexedStakes;
+
+    /**
+     * @param capacity max entries kept
+     */
+    public TopNStakes(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Keeps the stake if it is the customer's highest and ranks among the top entries,
+     * a new snapshot is published only if the entries changed
+     *
+     * @return whether the entries changed
+     */
+    public boolean offer(int customerId, int stake) {
+        StakesSnapshot current = snapshot;
+        long[] stakes = current.getPackedStakes();
+        int count = stakes.length;
+        if (count == capacity && stake < StakeEntry.stake(stakes[count - 1])) {
+            return false;
+        }
+        int existing = indexOf(stakes, customerId);
+        if (existing >= 0 && StakeEntry.stake(stakes[existing]) >= stake) {
+            return false;
+        }
+
+        long packed = StakeEntry.pack(customerId, stake);
+        // the customer's previous stake is lower, it ranks after the position of the new one
+        int position = insertionPoint(stakes, packed);
+        int size = Math.min(capacity, existing >= 0 ? count : count + 1);
+        if (position >= size) {
+            // ties the floor but ranks after it, nothing changed
+            return false;
+        }
+        long[] updated = new long[size];
+        System.arraycopy(stakes, 0, updated, 0, position);
+        updated[position] = packed;
+        for (int from = position, to = position + 1; to < size; from++) {
+            if (from != existing) {
+                updated[to++] = stakes[from];
+            }
+        }
+        snapshot = new StakesSnapshot(updated, nextVersion(current.getVersion()));
+        return true;
+    }
+
+    /**
+     * Replaces the entries with stakes restored from a snapshot, by the single writer
+     *
+     * @param stakes packed stakes, highest first, the ones beyond the capacity are dropped
+     */
+    public void restore(long[] stakes) {
+        long[] kept = stakes.length <= capacity ? stakes : Arrays.copyOf(stakes, capacity);
+        snapshot = new StakesSnapshot(kept, nextVersion(snapshot.getVersion()));
+    }
+
+    /**
+     * Merges archived stakes into the entries, by the single writer
+     *
+     * @param stakes packed stakes
+     */
+    public void merge(long[] stakes) {
+        for (long stake : stakes) {
+            offer(StakeEntry.customerId(stake), StakeEntry.stake(stake));
+        }
+    }
+
+    /**
+     * Records that the offer is in use, by the single writer
+     */
+    public void touch() {
+        lastAccessMillis = System.currentTimeMillis();
+    }
+
+    public long getLastAccessMillis() {
+        return lastAccessMillis;
+    }
+
+    /**
+     * @return the lowest kept stake once full, stakes below it are not kept, Integer.MIN_VALUE until full
+     */
+    public int getFloor() {
+        long[] stakes = snapshot.getPackedStakes();
+        return stakes.length == capacity ? StakeEntry.stake(stakes[stakes.length - 1]) : Integer.MIN_VALUE;
+    }
+
+    /**
+     * A scan of the latest entries, the writer's index is not read by other threads
+     *
+     * @return the customer's entry, null if the customer has no stake among the top entries
+     */
+    public StakeEntry get(int customerId) {
+        StakesSnapshot current = snapshot;
+        int index = scan(current.getPackedStakes(), customerId);
+        return index < 0 ? null : new StakeEntry(customerId, current.getStake(index));
+    }
+
+    /**
+     * @return the latest published entries
+     */
+    public StakesSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return the first limit entries, highest stake first
+     */
+    public List<StakeEntry> top(int limit) {
+        List<StakeEntry> entries = snapshot.getEntries();
+        return entries.size() <= limit ? entries : entries.subList(0, limit);
+    }
+
+    public int size() {
+        return snapshot.size();
+    }
+
+    /**
+     * @return the version following the given one, seeded from the clock by the instance's first change
+     */
+    private static long nextVersion(long version) {
+        return version == 0 ? Math.max(1, System.currentTimeMillis() * VERSIONS_PER_MILLI) : version + 1;
+    }
+
+    /**
+     * By the single writer, looks the customer up in the index of the stakes once the capacity is large enough
+     *
+     * @return position of the customer's entry, -1 if none
+     */
+    private int indexOf(long[] stakes, int customerId) {
+        if (capacity < INDEXED_CAPACITY) {
+            return scan(stakes, customerId);
+        }
+        if (indexedStakes != stakes) {
+            buildIndex(stakes);
+        }
+        int mask = index.length - 1;
+        for (int slot = hash(customerId) & mask; ; slot = (slot + 1) & mask) {
+            int position = index[slot] - 1;
+            if (position < 0 || StakeEntry.customerId(stakes[position]) == customerId) {
+                return position;
+            }
+        }
+    }
+
+    /**
+     * Indexes the stakes published by the last change, at most half of the table is used
+     */
+    private void buildIndex(long[] stakes) {
+        if (index == null) {
+            index = new int[Integer.highestOneBit(capacity) << 2];
+        } else {
+            Arrays.fill(index, 0);
+        }
+        int mask = index.length - 1;
+        for (int position = 0; position < stakes.length; position++) {
+            int slot = hash(StakeEntry.customerId(stakes[position])) & mask;
+            while (index[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            index[slot] = position + 1;
+        }
+        indexedStakes = stakes;
+    }
+
+    private static int hash(int customerId) {
+        // customer ids are often sequential, spread them over the table
+        int h = customerId * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int scan(long[] stakes, int customerId) {
+        for (int i = 0; i < stakes.length; i++) {
+            if (StakeEntry.customerId(stakes[i]) == customerId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return index of the first stake ranking after the packed one
+     */
+    private static int insertionPoint(long[] stakes, long packed) {
+        int low = 0;
+        int high = stakes.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (StakeEntry.ranksBefore(stakes[middle], packed)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
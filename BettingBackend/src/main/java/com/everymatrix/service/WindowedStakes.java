@@ -0,0 +1,135 @@
+package com.everymatrix.service;
+
+import com.everymatrix.model.StakesSnapshot;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The highest stakes of one bet offer over a sliding time window, e.g. the last 5 minutes, at most one entry
+ * per customer.
+ * <p>
+ * Time is cut into buckets of a fixed length, each bucket keeps the top N stakes placed during it
+ * (a {@link PackedTopK} keyed by customer) in a ring covering the longest window. A window is the current bucket and the buckets
+ * before it, to the granularity of a bucket: its top N is the merge of their top Ns. The merge of the completed
+ * buckets only changes when the current bucket rotates, so it is cached per window length until then, and a read
+ * merges it with the current bucket. The memory is the ring of N entries per bucket, whatever the stake volume.
+ * <p>
+ * A bucket's stakes are a sorted array replaced by compare-and-set, so concurrent stakes take no lock: a stake below
+ * the bucket's floor is dropped after one comparison, the others copy the N entries. A bucket is rotated by
+ * compare-and-set of its ring slot. Reads take no lock.
+ */
+public class WindowedStakes {
+
+    private final int capacity;
+    private final long bucketMillis;
+    private final AtomicReferenceArray<Bucket> ring;
+    // merged completed buckets of a window, indexed by its number of buckets, created by the first read
+    private volatile AtomicReferenceArray<Merged> merged;
+
+    /**
+     * @param capacity     max entries of a window
+     * @param bucketMillis length of a bucket, the granularity of the windows
+     * @param maxBuckets   buckets of the longest window
+     */
+    public WindowedStakes(int capacity, long bucketMillis, int maxBuckets) {
+        this.capacity = capacity;
+        this.bucketMillis = bucketMillis;
+        this.ring = new AtomicReferenceArray<>(maxBuckets);
+    }
+
+    /**
+     * Adds a stake placed at the given time
+     */
+    public void record(int customerId, int stake, long nowMillis) {
+        long epoch = nowMillis / bucketMillis;
+        int slot = slot(epoch);
+        Bucket bucket = ring.get(slot);
+        while (bucket == null || bucket.epoch < epoch) {
+            Bucket rotated = new Bucket(epoch, new PackedTopK(capacity));
+            if (ring.compareAndSet(slot, bucket, rotated)) {
+                bucket = rotated;
+            } else {
+                bucket = ring.get(slot);
+            }
+        }
+        // a stake recorded after its bucket's slot rotated counts in the newer bucket
+        bucket.stakes.record(customerId, stake);
+    }
+
+    /**
+     * @param windowBuckets buckets of the window including the current one, at most the buckets of the ring
+     * @return the top stakes placed in the window, highest first
+     */
+    public StakesSnapshot query(int windowBuckets, long nowMillis) {
+        long epoch = nowMillis / bucketMillis;
+        TopNStakes window = new TopNStakes(capacity);
+        window.merge(completed(windowBuckets, epoch));
+        Bucket current = ring.get(slot(epoch));
+        if (current != null && current.epoch == epoch) {
+            window.merge(current.stakes.getEntries());
+        }
+        return window.getSnapshot();
+    }
+
+    /**
+     * @return number of buckets of the longest window
+     */
+    public int getMaxBuckets() {
+        return ring.length();
+    }
+
+    /**
+     * @return the merged top stakes of the windowBuckets - 1 buckets before the current one, cached until it rotates
+     */
+    private long[] completed(int windowBuckets, long epoch) {
+        if (windowBuckets <= 1) {
+            return new long[0];
+        }
+        AtomicReferenceArray<Merged> cache = merged;
+        if (cache == null) {
+            // racing first readers each create one, the losers' merges are only cached until the next read
+            cache = new AtomicReferenceArray<>(ring.length() + 1);
+            merged = cache;
+        }
+        Merged cached = cache.get(windowBuckets);
+        if (cached != null && cached.epoch == epoch) {
+            return cached.stakes;
+        }
+        TopNStakes completed = new TopNStakes(capacity);
+        for (long previous = epoch - windowBuckets + 1; previous < epoch; previous++) {
+            Bucket bucket = ring.get(slot(previous));
+            if (bucket != null && bucket.epoch == previous) {
+                completed.merge(bucket.stakes.getEntries());
+            }
+        }
+        long[] stakes = completed.getSnapshot().getPackedStakes();
+        cache.set(windowBuckets, new Merged(epoch, stakes));
+        return stakes;
+    }
+
+    private int slot(long epoch) {
+        return (int) Math.floorMod(epoch, (long) ring.length());
+    }
+
+    private static final class Bucket {
+        private final long epoch;
+        // packed customerId/stake pairs, one per customer
+        private final PackedTopK stakes;
+
+        private Bucket(long epoch, PackedTopK stakes) {
+            this.epoch = epoch;
+            this.stakes = stakes;
+        }
+    }
+
+    private static final class Merged {
+        // the current bucket when merged
+        private final long epoch;
+        private final long[] stakes;
+
+        private Merged(long epoch, long[] stakes) {
+            this.epoch = epoch;
+            this.stakes = stakes;
+        }
+    }
+}
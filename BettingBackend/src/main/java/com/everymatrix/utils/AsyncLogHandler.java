@@ -0,0 +1,181 @@
+package com.everymatrix.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+
+/**
+ * A logging handler which never blocks the logging thread: records are put in a bounded ring buffer and
+ * written to the delegate handler by a single drainer thread, a record which does not fit is dropped and counted.
+ * <p>
+ * The ring is a multi-producer single-consumer array queue: producers claim a slot with a CAS on the tail and
+ * publish it through the slot sequence, the drainer is the only reader so it owns the head. The delegate is
+ * only called by the drainer, so its lock is never contended.
+ */
+public class AsyncLogHandler extends Handler {
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Handler delegate;
+    private final int mask;
+    private final AtomicReferenceArray<LogRecord> records;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    // records handed to the delegate, lags head by the record being written
+    private volatile long written;
+
+    private final LongAdder publishedCount = new LongAdder();
+    private final LongAdder droppedCount = new LongAdder();
+
+    private final Thread drainer;
+    private volatile boolean drainerWaiting;
+    private volatile boolean running = true;
+
+    /**
+     * @param capacity max buffered records, rounded up to a power of two
+     */
+    public AsyncLogHandler(Handler delegate, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Log buffer capacity should be positive: " + capacity);
+        }
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.delegate = delegate;
+        this.mask = size - 1;
+        this.records = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.drainer = new Thread(this::drain, "log-drainer");
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (!isLoggable(record)) {
+            return;
+        }
+        // the caller is inferred from the current stack, resolve it now rather than on the drainer thread
+        record.getSourceMethodName();
+        if (!offer(record)) {
+            droppedCount.increment();
+            return;
+        }
+        publishedCount.increment();
+        if (drainerWaiting) {
+            LockSupport.unpark(drainer);
+        }
+    }
+
+    /**
+     * Waits until the records buffered so far are written, at most one second
+     */
+    @Override
+    public void flush() {
+        long target = tail.get();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (written < target && running && System.nanoTime() < deadline) {
+            LockSupport.unpark(drainer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        delegate.flush();
+    }
+
+    /**
+     * Writes the buffered records and stops the drainer
+     */
+    @Override
+    public void close() {
+        flush();
+        running = false;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        delegate.close();
+    }
+
+    /**
+     * @return number of records accepted into the buffer
+     */
+    public long getPublishedCount() {
+        return publishedCount.sum();
+    }
+
+    /**
+     * @return number of records dropped because the buffer was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    private boolean offer(LogRecord record) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    records.set(index, record);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                // the slot still holds the record of the previous lap: full
+                return false;
+            }
+            // another producer claimed the slot, retry with the new tail
+        }
+    }
+
+    /**
+     * Only called by the drainer thread
+     */
+    private LogRecord poll() {
+        long position = head;
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        LogRecord record = records.get(index);
+        records.set(index, null);
+        sequences.set(index, position + mask + 1);
+        head = position + 1;
+        return record;
+    }
+
+    private void drain() {
+        while (running || head < tail.get()) {
+            LogRecord record = poll();
+            if (record != null) {
+                try {
+                    delegate.publish(record);
+                } catch (RuntimeException e) {
+                    reportError("Log delegate failed", e, 0);
+                }
+                written++;
+                continue;
+            }
+            delegate.flush();
+            drainerWaiting = true;
+            // re-check after announcing the wait, a producer may have published in between
+            if (head == tail.get() && running) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+            drainerWaiting = false;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.everymatrix.utils;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
+
+/**
+ * A concurrent map from primitive int keys to objects, for the per-offer state kept for many live offers:
+ * no boxed key and no node object per entry, an entry is one int and one reference in open addressing arrays.
+ * <p>
+ * The map is split into segments by key hash. Reads are lock-free: they probe the segment's current table, whose
+ * values are read with volatile semantics and whose keys are written before their value is published.
+ * Writes lock their segment. A removed entry leaves a tombstone which is only reclaimed when the table is rebuilt,
+ * so a slot never changes its key while a reader may be probing it.
+ */
+public class ConcurrentIntObjectMap<V> {
+
+    /**
+     * Receives the entries of {@link #forEach}
+     */
+    public interface IntObjectConsumer<V> {
+        void accept(int key, V value);
+    }
+
+    private static final Object TOMBSTONE = new Object();
+    private static final int SEGMENT_BITS = 4;
+    private static final int INITIAL_TABLE_SIZE = 8;
+
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+    public ConcurrentIntObjectMap() {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * @return the value of the key, null if absent
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int hash = hash(key);
+        return (V) segmentFor(hash).get(key, hash);
+    }
+
+    /**
+     * @return the current value of the key, or the value created by the factory (under the segment lock) if absent
+     */
+    @SuppressWarnings("unchecked")
+    public V computeIfAbsent(int key, IntFunction<? extends V> factory) {
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        Object value = segment.get(key, hash);
+        if (value != null) {
+            return (V) value;
+        }
+        segment.lock();
+        try {
+            value = segment.get(key, hash);
+            if (value == null) {
+                value = factory.apply(key);
+                segment.put(key, hash, value);
+            }
+            return (V) value;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * @return the previous value of the key, null if absent
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null) {
+            throw new NullPointerException("null values are not supported");
+        }
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock();
+        try {
+            return (V) segment.put(key, hash, value);
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * @return the removed value, null if absent
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock();
+        try {
+            return (V) segment.remove(key, hash, null);
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Removes the key only if it is mapped to the value (identity)
+     *
+     * @return whether it was removed
+     */
+    public boolean remove(int key, V value) {
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock();
+        try {
+            return segment.remove(key, hash, value) != null;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    /**
+     * Visits the entries present when each segment is read, weakly consistent like the java.util.concurrent maps
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(IntObjectConsumer<? super V> consumer) {
+        for (Segment segment : segments) {
+            Table table = segment.table;
+            for (int i = 0; i < table.keys.length; i++) {
+                Object value = table.values.get(i);
+                if (value != null && value != TOMBSTONE) {
+                    consumer.accept(table.keys[i], (V) value);
+                }
+            }
+        }
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> (32 - SEGMENT_BITS)];
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Table {
+        private final int[] keys;
+        private final AtomicReferenceArray<Object> values;
+
+        private Table(int size) {
+            this.keys = new int[size];
+            this.values = new AtomicReferenceArray<>(size);
+        }
+    }
+
+    private static final class Segment extends ReentrantLock {
+        private volatile Table table = new Table(INITIAL_TABLE_SIZE);
+        private volatile int size;
+        // live entries plus tombstones, guarded by the lock
+        private int used;
+
+        private Object get(int key, int hash) {
+            Table current = table;
+            int mask = current.keys.length - 1;
+            for (int i = hash & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                Object value = current.values.get(i);
+                if (value == null) {
+                    return null;
+                }
+                if (value != TOMBSTONE && current.keys[i] == key) {
+                    return value;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Called with the lock held
+         */
+        private Object put(int key, int hash, Object value) {
+            Table current = table;
+            int mask = current.keys.length - 1;
+            int i = hash & mask;
+            while (true) {
+                Object existing = current.values.get(i);
+                if (existing == null) {
+                    break;
+                }
+                if (existing != TOMBSTONE && current.keys[i] == key) {
+                    current.values.set(i, value);
+                    return existing;
+                }
+                i = (i + 1) & mask;
+            }
+            if ((used + 1) * 2 > current.keys.length) {
+                current = rebuild(current, size + 1);
+                mask = current.keys.length - 1;
+                i = hash & mask;
+                while (current.values.get(i) != null) {
+                    i = (i + 1) & mask;
+                }
+            }
+            // the key is visible to readers once the value is published
+            current.keys[i] = key;
+            current.values.set(i, value);
+            used++;
+            size++;
+            return null;
+        }
+
+        /**
+         * Called with the lock held
+         *
+         * @param expected the value the key must be mapped to, null for any
+         */
+        private Object remove(int key, int hash, Object expected) {
+            Table current = table;
+            int mask = current.keys.length - 1;
+            for (int i = hash & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                Object value = current.values.get(i);
+                if (value == null) {
+                    return null;
+                }
+                if (value != TOMBSTONE && current.keys[i] == key) {
+                    if (expected != null && expected != value) {
+                        return null;
+                    }
+                    current.values.set(i, TOMBSTONE);
+                    size--;
+                    return value;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Copies the live entries into a new table sized for them, which drops the tombstones
+         */
+        private Table rebuild(Table current, int liveCount) {
+            int newSize = INITIAL_TABLE_SIZE;
+            while (newSize < liveCount * 4) {
+                newSize <<= 1;
+            }
+            Table rebuilt = new Table(newSize);
+            int mask = newSize - 1;
+            for (int j = 0; j < current.keys.length; j++) {
+                Object value = current.values.get(j);
+                if (value != null && value != TOMBSTONE) {
+                    int i = hash(current.keys[j]) & mask;
+                    while (rebuilt.values.get(i) != null) {
+                        i = (i + 1) & mask;
+                    }
+                    rebuilt.keys[i] = current.keys[j];
+                    rebuilt.values.set(i, value);
+                }
+            }
+            used = liveCount - 1;
+            table = rebuilt;
+            return rebuilt;
+        }
+    }
+}
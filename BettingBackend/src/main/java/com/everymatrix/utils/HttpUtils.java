@@ -4,12 +4,49 @@ import com.sun.net.httpserver.HttpExchange;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 
 public class HttpUtils {
+
+    /**
+     * Sends the value returned by a route method: a {@link ResponseBuffer} (released once sent), a byte[],
+     * or any other object as its UTF-8 string, null for an empty body
+     */
+    public static void sendResult(HttpExchange exchange, Object result, int statusCode) throws IOException {
+        if (result instanceof ResponseBuffer) {
+            ResponseBuffer buffer = (ResponseBuffer) result;
+            try {
+                sendResponse(exchange, buffer.array(), buffer.size(), statusCode);
+            } finally {
+                buffer.release();
+            }
+        } else if (result instanceof byte[]) {
+            byte[] bytes = (byte[]) result;
+            sendResponse(exchange, bytes, bytes.length, statusCode);
+        } else if (result == null) {
+            sendResponse(exchange, null, 0, statusCode);
+        } else {
+            sendResponse(exchange, result.toString(), statusCode);
+        }
+    }
+
     public static void sendResponse(HttpExchange exchange, String response, int statusCode) throws IOException {
-        exchange.sendResponseHeaders(statusCode, response.getBytes().length);
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        sendResponse(exchange, bytes, bytes.length, statusCode);
+    }
+
+    /**
+     * Sends the first length bytes of the body with a single write, an empty body is sent without a body stream
+     */
+    public static void sendResponse(HttpExchange exchange, byte[] body, int length, int statusCode) throws IOException {
+        if (length == 0) {
+            exchange.sendResponseHeaders(statusCode, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(statusCode, length);
         OutputStream os = exchange.getResponseBody();
-        os.write(response.getBytes());
+        os.write(body, 0, length);
         os.close();
     }
 
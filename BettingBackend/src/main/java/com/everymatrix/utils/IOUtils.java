@@ -14,4 +14,55 @@ public class IOUtils {
         }
         return buffer.toString("UTF-8");
     }
+
+    /**
+     * Decodes a decimal int body (optional sign, surrounding whitespace allowed) straight from the stream bytes,
+     * without buffering the body or building a String.
+     *
+     * @param maxLength max number of bytes read, a longer body is rejected
+     * @throws NumberFormatException if the body is not a single int or is longer than maxLength
+     */
+    public static int readInt(InputStream inputStream, int maxLength) throws IOException {
+        int b = inputStream.read();
+        int length = 1;
+        while (b != -1 && isWhitespace(b) && length <= maxLength) {
+            b = inputStream.read();
+            length++;
+        }
+
+        boolean negative = b == '-';
+        if (negative || b == '+') {
+            b = inputStream.read();
+            length++;
+        }
+        if (b < '0' || b > '9') {
+            throw new NumberFormatException("Invalid int body");
+        }
+        // accumulate negatively so that Integer.MIN_VALUE fits
+        int value = 0;
+        while (b >= '0' && b <= '9' && length <= maxLength) {
+            int digit = b - '0';
+            if (value < (Integer.MIN_VALUE + digit) / 10) {
+                throw new NumberFormatException("Int body out of range");
+            }
+            value = value * 10 - digit;
+            b = inputStream.read();
+            length++;
+        }
+        while (b != -1 && isWhitespace(b) && length <= maxLength) {
+            b = inputStream.read();
+            length++;
+        }
+        if (b != -1) {
+            throw new NumberFormatException(length > maxLength ? "Int body too long" : "Invalid int body");
+        }
+        if (!negative && value == Integer.MIN_VALUE) {
+            throw new NumberFormatException("Int body out of range");
+        }
+        return negative ? value : -value;
+    }
+
+    private static boolean isWhitespace(int b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
 }
@@ -1,24 +1,78 @@
 package com.everymatrix.utils;
 
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 
+/**
+ * Creates the application loggers, they all write to stderr through one shared {@link AsyncLogHandler}
+ * so request threads never wait on the console.
+ * <p>
+ * The level and buffer capacity start at defaults and are set from appconfig.properties by {@link #configure}.
+ */
 public class LogUtils {
+
+    private static final int DEFAULT_BUFFER_CAPACITY = 8192;
+
+    private static final Set<Logger> LOGGERS = ConcurrentHashMap.newKeySet();
+    private static Level level = Level.INFO;
+    private static AsyncLogHandler handler = createHandler(DEFAULT_BUFFER_CAPACITY);
+
     public static Logger getLogger() {
         String className = new Throwable().getStackTrace()[1].getClassName();
         return getLogger(className);
     }
 
-    public static Logger getLogger(String name) {
+    public static synchronized Logger getLogger(String name) {
         Logger logger = Logger.getLogger(name);
-        logger.setUseParentHandlers(false);
-        ConsoleHandler consoleHandler = new ConsoleHandler();
-        consoleHandler.setLevel(Level.ALL);
-        consoleHandler.setFormatter(new SimpleFormatter());
-        logger.addHandler(consoleHandler);
-        logger.setLevel(Level.ALL);
+        // the handler is attached once, Logger.getLogger returns the same logger for the same name
+        if (LOGGERS.add(logger)) {
+            logger.setUseParentHandlers(false);
+            logger.addHandler(handler);
+        }
+        logger.setLevel(level);
         return logger;
     }
+
+    /**
+     * Applies the level to every logger, and replaces the shared handler if the capacity changed.
+     * The replaced handler writes its buffered records before stopping.
+     */
+    public static synchronized void configure(Level newLevel, int bufferCapacity) {
+        level = newLevel;
+        AsyncLogHandler previous = handler;
+        if (bufferCapacity != previous.getCapacity()) {
+            handler = createHandler(bufferCapacity);
+        }
+        handler.setLevel(newLevel);
+        for (Logger logger : LOGGERS) {
+            logger.setLevel(newLevel);
+            if (handler != previous) {
+                logger.addHandler(handler);
+                logger.removeHandler(previous);
+            }
+        }
+        if (handler != previous) {
+            previous.close();
+        }
+    }
+
+    /**
+     * @return number of log records dropped because the log buffer was full
+     */
+    public static synchronized long getDroppedCount() {
+        return handler.getDroppedCount();
+    }
+
+    private static AsyncLogHandler createHandler(int bufferCapacity) {
+        ConsoleHandler console = new ConsoleHandler();
+        console.setLevel(Level.ALL);
+        console.setFormatter(new SimpleFormatter());
+        AsyncLogHandler asyncHandler = new AsyncLogHandler(console, bufferCapacity);
+        asyncHandler.setLevel(level);
+        return asyncHandler;
+    }
 }
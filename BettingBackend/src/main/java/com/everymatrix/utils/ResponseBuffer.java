@@ -0,0 +1,170 @@
+package com.everymatrix.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A growable byte buffer leased from a shared pool, route methods encode their response into it
+ * and return it, the server sends its content with a single write and releases it.
+ * <p>
+ * The pool is a fixed array of slots taken and returned with CAS, leasing and releasing allocate nothing once warm.
+ * Buffers which grew beyond {@link #MAX_POOLED_CAPACITY} are left to the GC instead of being pooled.
+ */
+public final class ResponseBuffer {
+
+    private static final int POOL_SIZE = 256;
+    private static final int INITIAL_CAPACITY = 512;
+    private static final int MAX_POOLED_CAPACITY = 64 * 1024;
+    private static final AtomicReferenceArray<ResponseBuffer> POOL = new AtomicReferenceArray<>(POOL_SIZE);
+
+    private byte[] buffer;
+    private int size;
+
+    private ResponseBuffer(int capacity) {
+        this.buffer = new byte[capacity];
+    }
+
+    /**
+     * @return an empty buffer, from the pool if one is available
+     */
+    public static ResponseBuffer lease() {
+        int start = ThreadLocalRandom.current().nextInt(POOL_SIZE);
+        for (int i = 0; i < POOL_SIZE; i++) {
+            int slot = (start + i) & (POOL_SIZE - 1);
+            ResponseBuffer pooled = POOL.get(slot);
+            if (pooled != null && POOL.compareAndSet(slot, pooled, null)) {
+                return pooled;
+            }
+        }
+        return new ResponseBuffer(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Returns the buffer to the pool, it must not be used afterwards
+     */
+    public void release() {
+        size = 0;
+        if (buffer.length > MAX_POOLED_CAPACITY) {
+            return;
+        }
+        int start = ThreadLocalRandom.current().nextInt(POOL_SIZE);
+        for (int i = 0; i < POOL_SIZE; i++) {
+            int slot = (start + i) & (POOL_SIZE - 1);
+            if (POOL.get(slot) == null && POOL.compareAndSet(slot, null, this)) {
+                return;
+            }
+        }
+    }
+
+    public ResponseBuffer append(byte b) {
+        ensureCapacity(1);
+        buffer[size++] = b;
+        return this;
+    }
+
+    public ResponseBuffer append(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, size, length);
+        size += length;
+        return this;
+    }
+
+    public ResponseBuffer append(byte[] bytes) {
+        return append(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Appends the text as UTF-8, ASCII text is copied char by char without an intermediate array
+     */
+    public ResponseBuffer append(CharSequence text) {
+        int length = text.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                return append(text.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            buffer[size + i] = (byte) c;
+        }
+        size += length;
+        return this;
+    }
+
+    /**
+     * Appends the decimal digits of the value
+     */
+    public ResponseBuffer append(int value) {
+        if (value == Integer.MIN_VALUE) {
+            return append("-2147483648");
+        }
+        ensureCapacity(11);
+        if (value < 0) {
+            buffer[size++] = '-';
+            value = -value;
+        }
+        int end = size + digits(value);
+        int position = end;
+        do {
+            buffer[--position] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        size = end;
+        return this;
+    }
+
+    /**
+     * Appends the decimal digits of the value
+     */
+    public ResponseBuffer append(long value) {
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            return append((int) value);
+        }
+        if (value == Long.MIN_VALUE) {
+            return append("-9223372036854775808");
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            buffer[size++] = '-';
+            value = -value;
+        }
+        int end = size;
+        for (long remaining = value; remaining != 0; remaining /= 10) {
+            end++;
+        }
+        int position = end;
+        do {
+            buffer[--position] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        size = end;
+        return this;
+    }
+
+    /**
+     * @return the backing array, valid from 0 to {@link #size()}
+     */
+    public byte[] array() {
+        return buffer;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static int digits(int value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    private void ensureCapacity(int length) {
+        if (size + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package com.everymatrix.utils;
 
 import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -22,4 +24,146 @@ public class UrlUtils {
 
         return queryPairs;
     }
+
+    /**
+     * Looks up a single query parameter by scanning the raw query in place, without splitting it into a map
+     *
+     * @return the value (percent-decoded only when it contains escapes), null if absent or empty
+     */
+    public static String getQueryParam(URI uri, String name) {
+        String query = uri.getRawQuery();
+        int valueStart = indexOfValue(query, name);
+        if (valueStart < 0) {
+            return null;
+        }
+        int valueEnd = valueEnd(query, valueStart);
+        if (valueEnd == valueStart) {
+            return null;
+        }
+        String value = query.substring(valueStart, valueEnd);
+        return value.indexOf('%') >= 0 ? URLDecoder.decode(value, StandardCharsets.UTF_8) : value;
+    }
+
+    /**
+     * Looks up a single int query parameter, its digits are decoded in place
+     *
+     * @return the value, defaultValue if absent or empty
+     * @throws NumberFormatException if the value is not an int
+     */
+    public static int getIntQueryParam(URI uri, String name, int defaultValue) {
+        String query = uri.getRawQuery();
+        int valueStart = indexOfValue(query, name);
+        if (valueStart < 0) {
+            return defaultValue;
+        }
+        int valueEnd = valueEnd(query, valueStart);
+        if (valueEnd == valueStart) {
+            return defaultValue;
+        }
+        return Integer.parseInt(query, valueStart, valueEnd, 10);
+    }
+
+    /**
+     * Looks up a single long query parameter, its digits are decoded in place
+     *
+     * @return the value, defaultValue if absent or empty
+     * @throws NumberFormatException if the value is not a long
+     */
+    public static long getLongQueryParam(URI uri, String name, long defaultValue) {
+        String query = uri.getRawQuery();
+        int valueStart = indexOfValue(query, name);
+        if (valueStart < 0) {
+            return defaultValue;
+        }
+        int valueEnd = valueEnd(query, valueStart);
+        if (valueEnd == valueStart) {
+            return defaultValue;
+        }
+        return Long.parseLong(query, valueStart, valueEnd, 10);
+    }
+
+    /**
+     * Decodes a comma separated list of ints, e.g. the value of offers=9001,9002,9003
+     *
+     * @param maxCount max number of ints, a longer list is rejected
+     * @throws NumberFormatException if an element is not an int or the list is longer than maxCount
+     */
+    public static int[] parseIntList(String value, int maxCount) {
+        int count = 1;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) == ',') {
+                count++;
+            }
+        }
+        if (count > maxCount) {
+            throw new NumberFormatException("More than " + maxCount + " values in list");
+        }
+        int[] values = new int[count];
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+            int end = value.indexOf(',', start);
+            if (end < 0) {
+                end = value.length();
+            }
+            values[i] = Integer.parseInt(value, start, end, 10);
+            start = end + 1;
+        }
+        return values;
+    }
+
+    /**
+     * Decodes a duration in seconds, a number optionally followed by its unit: s (default), m or h, e.g. window=300s
+     *
+     * @throws NumberFormatException if the value is not such a duration or overflows an int
+     */
+    public static int parseSeconds(String value) {
+        int multiplier = 1;
+        int end = value.length();
+        if (end > 0) {
+            switch (value.charAt(end - 1)) {
+                case 's':
+                    end--;
+                    break;
+                case 'm':
+                    multiplier = 60;
+                    end--;
+                    break;
+                case 'h':
+                    multiplier = 3600;
+                    end--;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return Math.multiplyExact(Integer.parseInt(value, 0, end, 10), multiplier);
+    }
+
+    /**
+     * @return the index of the value of the first "name=" pair in the query, -1 if absent
+     */
+    private static int indexOfValue(String query, String name) {
+        if (query == null) {
+            return -1;
+        }
+        int pairStart = 0;
+        while (pairStart < query.length()) {
+            int nameEnd = pairStart + name.length();
+            if (query.startsWith(name, pairStart)
+                    && (nameEnd == query.length() || query.charAt(nameEnd) == '=' || query.charAt(nameEnd) == '&')) {
+                return nameEnd < query.length() && query.charAt(nameEnd) == '=' ? nameEnd + 1 : nameEnd;
+            }
+            int next = query.indexOf('&', pairStart);
+            if (next < 0) {
+                return -1;
+            }
+            pairStart = next + 1;
+        }
+        return -1;
+    }
+
+    private static int valueEnd(String query, int valueStart) {
+        int end = query.indexOf('&', valueStart);
+        return end < 0 ? query.length() : end;
+    }
 }
@@ -61,8 +61,108 @@ public class BettingHttpClient {
         }
     }
 
+    /**
+     * @param stakes "betOfferId=stake" pairs, one per line
+     */
+    public void postStakes(String sessionKey, String stakes) throws IOException {
+        URL url = new URL(baseUrl + "/stakes/batch?sessionkey=" + sessionKey);
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(stakes.getBytes(StandardCharsets.UTF_8));
+            }
+            int responseCode = connection.getResponseCode();
+            if (responseCode != 200) {
+                throw new HttpServerException(responseCode, connection.getResponseMessage(), null);
+            }
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * @param adminToken X-Admin-Token header, null to send none
+     */
+    public void closeOffer(Long betOfferId, String adminToken) throws IOException {
+        URL url = new URL(baseUrl + "/" + betOfferId + "/close");
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("POST");
+            if (adminToken != null) {
+                connection.setRequestProperty("X-Admin-Token", adminToken);
+            }
+            int responseCode = connection.getResponseCode();
+            if (responseCode != 200) {
+                throw new HttpServerException(responseCode, connection.getResponseMessage(), null);
+            }
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
     public String getHighestStake(Long betOfferId) throws IOException {
-        String urlString = baseUrl + "/" + betOfferId + "/highstakes";
+        return getHighestStake(baseUrl + "/" + betOfferId + "/highstakes");
+    }
+
+    public String getHighestStake(Long betOfferId, int limit) throws IOException {
+        return getHighestStake(baseUrl + "/" + betOfferId + "/highstakes?limit=" + limit);
+    }
+
+    /**
+     * @param offers comma separated bet offer ids
+     * @return one "betOfferId:stakes" line per offer
+     */
+    public String getHighStakesOfOffers(String offers) throws IOException {
+        URL url = new URL(baseUrl + "/highstakes?offers=" + offers);
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("GET");
+            int responseCode = connection.getResponseCode();
+            if (responseCode != 200) {
+                throw new HttpServerException(responseCode, "", null);
+            }
+            try (InputStream is = connection.getInputStream()) {
+                return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    public String getCustomerStakes(Long customerId) throws IOException {
+        return getHighestStake(baseUrl + "/" + customerId + "/stakes");
+    }
+
+    public String getRank(Long betOfferId, String sessionKey) throws IOException {
+        return getHighestStake(baseUrl + "/" + betOfferId + "/rank?sessionkey=" + sessionKey);
+    }
+
+    /**
+     * @param window duration of the window, e.g. 300s
+     */
+    public String getHighestStakeInWindow(Long betOfferId, String window) throws IOException {
+        return getHighestStake(baseUrl + "/" + betOfferId + "/highstakes?window=" + window);
+    }
+
+    /**
+     * @param customerId customer whose total is added to the stats, null for none
+     */
+    public String getStats(Long betOfferId, Long customerId) throws IOException {
+        return getHighestStake(baseUrl + "/" + betOfferId + "/stats" + (customerId == null ? "" : "?customerId=" + customerId));
+    }
+
+    private String getHighestStake(String urlString) throws IOException {
         URL url = new URL(urlString);
         HttpURLConnection connection = null;
         try {
@@ -82,6 +182,53 @@ public class BettingHttpClient {
         }
     }
 
+    /**
+     * Long polls the high stakes of an offer, blocks until they have another version than sinceVersion or the
+     * subscription times out
+     *
+     * @param sinceVersion version already known, null for none
+     */
+    public Subscription subscribeHighStakes(Long betOfferId, Long sinceVersion) throws IOException {
+        String urlString = baseUrl + "/" + betOfferId + "/highstakes/subscribe"
+                + (sinceVersion == null ? "" : "?sinceVersion=" + sinceVersion);
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(urlString).openConnection();
+            connection.setRequestMethod("GET");
+            connection.setReadTimeout(60_000);
+            int responseCode = connection.getResponseCode();
+            if (responseCode != 200 && responseCode != 204) {
+                throw new HttpServerException(responseCode, "", null);
+            }
+            long version = Long.parseLong(connection.getHeaderField("X-Stakes-Version"));
+            return new Subscription(responseCode, version, responseCode == 204 ? "" : readResponse(connection));
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    public String getMetrics() throws IOException {
+        URL url = new URL(baseUrl + "/metrics");
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("GET");
+            int responseCode = connection.getResponseCode();
+            if (responseCode != 200) {
+                throw new HttpServerException(responseCode, "", null);
+            }
+            try (InputStream is = connection.getInputStream()) {
+                return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
     private String readResponse(HttpURLConnection connection) throws IOException {
         try (InputStream is = connection.getInputStream();
              BufferedReader reader = new BufferedReader(new InputStreamReader(is))) {
@@ -93,4 +240,19 @@ public class BettingHttpClient {
             return response.toString();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Answer of a high stakes subscription, 204 without body when it timed out
+     */
+    public static class Subscription {
+        public final int statusCode;
+        public final long version;
+        public final String body;
+
+        public Subscription(int statusCode, long version, String body) {
+            this.statusCode = statusCode;
+            this.version = version;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.everymatrix.service.benchmark;
+
+import com.everymatrix.service.CustomerRanks;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Cost of ranking the customers of one offer with millions of customers: nanoseconds per recorded stake
+ * (half of them raising a customer's stake) and per rank lookup.
+ * <p>
+ * Run with: mvn test -Pbenchmark
+ */
+@Tag("benchmark")
+public class CustomerRanksBenchmarkTest {
+
+    private static final int CUSTOMERS = 2_000_000;
+    private static final int LOOKUPS = 2_000_000;
+
+    @Test
+    public void nanosPerOperation() {
+        CustomerRanks ranks = new CustomerRanks();
+        int x = 1;
+        long start = System.nanoTime();
+        for (int i = 0; i < 2 * CUSTOMERS; i++) {
+            x = next(x);
+            // each customer stakes twice on average, stake in 1..1 000 000
+            ranks.record(i % CUSTOMERS, (x & Integer.MAX_VALUE) % 1_000_000 + 1);
+        }
+        long recordNanos = (System.nanoTime() - start) / (2L * CUSTOMERS);
+
+        long checksum = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            x = next(x);
+            checksum += ranks.rankOf((x & Integer.MAX_VALUE) % CUSTOMERS);
+        }
+        long rankNanos = (System.nanoTime() - start) / LOOKUPS;
+
+        System.out.println(CUSTOMERS + " customers, ns per stake: " + recordNanos + ", ns per rank: " + rankNanos);
+        assertTrue(ranks.size() == CUSTOMERS && checksum > 0);
+    }
+
+    private static int next(int x) {
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        return x;
+    }
+}
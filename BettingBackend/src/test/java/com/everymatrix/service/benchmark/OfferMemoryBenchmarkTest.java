@@ -0,0 +1,63 @@
+package com.everymatrix.service.benchmark;
+
+import com.everymatrix.config.AppConfig;
+import com.everymatrix.model.StakeEntry;
+import com.everymatrix.service.BetOfferService;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Heap bytes per live bet offer holding a full top 20, compared with the former layout
+ * (ConcurrentHashMap of Integer to ConcurrentSkipListSet of StakeEntry).
+ * <p>
+ * Run with: mvn test -Pbenchmark
+ */
+@Tag("benchmark")
+public class OfferMemoryBenchmarkTest {
+
+    private static final int OFFERS = 100_000;
+    private static final int STAKES_PER_OFFER = 20;
+
+    @Test
+    public void bytesPerOffer() {
+        AppConfig.highStakesSizeForBetOffer = STAKES_PER_OFFER;
+
+        long before = usedHeap();
+        BetOfferService betOfferService = new BetOfferService();
+        for (int offer = 0; offer < OFFERS; offer++) {
+            for (int customer = 0; customer < STAKES_PER_OFFER; customer++) {
+                betOfferService.placeStake(offer, 100_000 + customer, 1000 + customer);
+            }
+        }
+        long compact = (usedHeap() - before) / OFFERS;
+
+        before = usedHeap();
+        Map<Integer, ConcurrentSkipListSet<StakeEntry>> legacy = new ConcurrentHashMap<>();
+        for (int offer = 0; offer < OFFERS; offer++) {
+            ConcurrentSkipListSet<StakeEntry> stakes = legacy.computeIfAbsent(offer, key -> new ConcurrentSkipListSet<>());
+            for (int customer = 0; customer < STAKES_PER_OFFER; customer++) {
+                stakes.add(new StakeEntry(100_000 + customer, 1000 + customer));
+            }
+        }
+        long boxed = (usedHeap() - before) / OFFERS;
+
+        System.out.println("bytes per offer, packed top-N: " + compact + ", boxed skip list: " + boxed);
+        // keep both alive until measured
+        assertTrue(betOfferService.queryStakes(0).size() == STAKES_PER_OFFER && legacy.size() == OFFERS);
+        assertTrue(compact < boxed, "packed " + compact + " >= boxed " + boxed);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
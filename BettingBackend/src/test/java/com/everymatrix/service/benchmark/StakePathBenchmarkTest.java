@@ -0,0 +1,73 @@
+package com.everymatrix.service.benchmark;
+
+import com.everymatrix.config.AppConfig;
+import com.everymatrix.service.BetOfferService;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Cost of the live offer stats on the stake path: nanoseconds per placed stake with bet-offer.stats.enabled
+ * on and off, from several threads staking on a few hot offers.
+ * <p>
+ * Run with: mvn test -Pbenchmark
+ */
+@Tag("benchmark")
+public class StakePathBenchmarkTest {
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int STAKES_PER_THREAD = 2_000_000;
+    private static final int OFFERS = 8;
+    private static final int CUSTOMERS = 10_000;
+
+    @Test
+    public void nanosPerStake() throws Exception {
+        boolean statsEnabled = AppConfig.betOfferStatsEnabled;
+        try {
+            // warm up both paths before measuring
+            run(false);
+            run(true);
+            long withoutStats = run(false);
+            long withStats = run(true);
+            System.out.println("ns per stake on " + THREADS + " threads, stats off: " + withoutStats
+                    + ", stats on: " + withStats);
+            assertTrue(withStats > 0 && withoutStats > 0);
+        } finally {
+            AppConfig.betOfferStatsEnabled = statsEnabled;
+        }
+    }
+
+    private static long run(boolean statsEnabled) throws Exception {
+        AppConfig.betOfferStatsEnabled = statsEnabled;
+        BetOfferService betOfferService = new BetOfferService();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        Future<?>[] futures = new Future<?>[THREADS];
+        long start = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            int seed = t + 1;
+            futures[t] = executor.submit(() -> {
+                int x = seed;
+                for (int i = 0; i < STAKES_PER_THREAD; i++) {
+                    x ^= x << 13;
+                    x ^= x >>> 17;
+                    x ^= x << 5;
+                    int random = x & Integer.MAX_VALUE;
+                    betOfferService.placeStake(random % OFFERS, random % CUSTOMERS, random % 100_000 + 1);
+                }
+            });
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        return elapsed / ((long) THREADS * STAKES_PER_THREAD);
+    }
+}
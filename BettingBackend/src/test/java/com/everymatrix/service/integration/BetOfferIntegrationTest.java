@@ -3,6 +3,7 @@ package com.everymatrix.service.integration;
 import com.everymatrix.config.AppConfig;
 import com.everymatrix.controller.MainController;
 import com.everymatrix.exception.HttpServerException;
+import com.everymatrix.persistence.OfferArchive;
 import com.everymatrix.server.CustomHttpServer;
 import com.everymatrix.service.BetOfferService;
 import com.everymatrix.service.SessionManager;
@@ -10,19 +11,30 @@ import com.everymatrix.service.basic.BettingHttpClient;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class BetOfferIntegrationTest {
 
     public BettingHttpClient setUp() throws IOException {
+        return setUp(new BetOfferService());
+    }
+
+    public BettingHttpClient setUp(BetOfferService betOfferService) throws IOException {
         int port = new Random().nextInt(10000) + 30000;
 
         AppConfig.sessionTimeoutMilliseconds = 600000;
@@ -32,7 +44,7 @@ public class BetOfferIntegrationTest {
 
         BettingHttpClient bettingHttpClient = new BettingHttpClient("http://localhost:" + port);
         SessionManager sessionManager = new SessionManager(AppConfig.sessionTimeoutMilliseconds);
-        MainController mainController = new MainController(sessionManager, new BetOfferService());
+        MainController mainController = new MainController(sessionManager, betOfferService);
 
         //run the server
         CustomHttpServer server = new CustomHttpServer();
@@ -63,6 +75,191 @@ public class BetOfferIntegrationTest {
 
     }
 
+    @Test
+    public void testPlaceStakes() throws IOException {
+        BettingHttpClient bettingHttpClient = setUp();
+        String session1 = bettingHttpClient.getSession(1001L);
+        String session2 = bettingHttpClient.getSession(1002L);
+
+        bettingHttpClient.postStakes(session1, "9101=200\n9102=500\n9101=300");
+        bettingHttpClient.postStakes(session2, "9101=250,9102=100");
+
+        assertEquals("1001=300,1002=250", bettingHttpClient.getHighestStake(9101L));
+        assertEquals("1001=500,1002=100", bettingHttpClient.getHighestStake(9102L));
+
+        HttpServerException e = assertThrows(HttpServerException.class, () -> bettingHttpClient.postStakes(session1, "9101=x"));
+        assertEquals(400, e.getHttpStatusCode());
+        e = assertThrows(HttpServerException.class, () -> bettingHttpClient.postStakes("INVALID", "9101=1"));
+        assertEquals(401, e.getHttpStatusCode());
+    }
+
+    @Test
+    public void testHighStakesLimit() throws IOException {
+        BettingHttpClient bettingHttpClient = setUp();
+        for (long customer = 1001; customer <= 1003; customer++) {
+            bettingHttpClient.postStake(9201L, bettingHttpClient.getSession(customer), (int) customer);
+        }
+
+        assertEquals("1003=1003,1002=1002", bettingHttpClient.getHighestStake(9201L, 2));
+        assertEquals("1003=1003,1002=1002,1001=1001", bettingHttpClient.getHighestStake(9201L, 50));
+        assertEquals("1003=1003,1002=1002,1001=1001", bettingHttpClient.getHighestStake(9201L));
+        assertThrows(IOException.class, () -> bettingHttpClient.getHighestStake(9201L, -1));
+    }
+
+    @Test
+    public void testHighStakesOfOffers() throws IOException {
+        BettingHttpClient bettingHttpClient = setUp();
+        String session1 = bettingHttpClient.getSession(1001L);
+        String session2 = bettingHttpClient.getSession(1002L);
+        bettingHttpClient.postStakes(session1, "9301=100\n9302=200");
+        bettingHttpClient.postStakes(session2, "9301=150");
+
+        assertEquals("9302:1001=200\n9303:\n9301:1002=150,1001=100\n",
+                bettingHttpClient.getHighStakesOfOffers("9302,9303,9301"));
+
+        HttpServerException e = assertThrows(HttpServerException.class, () -> bettingHttpClient.getHighStakesOfOffers("9301,x"));
+        assertEquals(400, e.getHttpStatusCode());
+    }
+
+    @Test
+    public void testHighStakesInWindow() throws IOException {
+        BettingHttpClient bettingHttpClient = setUp();
+        String session1 = bettingHttpClient.getSession(1001L);
+        String session2 = bettingHttpClient.getSession(1002L);
+        bettingHttpClient.postStake(9601L, session1, 200);
+        bettingHttpClient.postStake(9601L, session2, 300);
+
+        assertEquals("1002=300,1001=200", bettingHttpClient.getHighestStakeInWindow(9601L, "300s"));
+        assertEquals("1002=300,1001=200", bettingHttpClient.getHighestStakeInWindow(9601L, "5m"));
+        assertEquals("", bettingHttpClient.getHighestStakeInWindow(9699L, "300s"));
+        IOException e = assertThrows(IOException.class, () -> bettingHttpClient.getHighestStakeInWindow(9601L, "5x"));
+        assertTrue(e.getMessage().endsWith("400"));
+        e = assertThrows(IOException.class,
+                () -> bettingHttpClient.getHighestStakeInWindow(9601L, (AppConfig.betOfferWindowMaxSeconds + 1) + "s"));
+        assertTrue(e.getMessage().endsWith("400"));
+    }
+
+    @Test
+    public void testCustomerStakes() throws IOException {
+        BettingHttpClient bettingHttpClient = setUp();
+        String session = bettingHttpClient.getSession(1801L);
+        bettingHttpClient.postStake(9801L, session, 200);
+        bettingHttpClient.postStake(9802L, session, 500);
+        bettingHttpClient.postStake(9801L, session, 100);
+        bettingHttpClient.postStakes(session, "9803=300\n9801=250");
+
+        assertEquals("9802=500,9803=300,9801=250", bettingHttpClient.getCustomerStakes(1801L));
+        assertEquals("", bettingHttpClient.getCustomerStakes(1899L));
+    }
+
+    @Test
+    public void testRank() throws IOException {
+        BettingHttpClient bettingHttpClient = setUp();
+        int[] rankOffers = AppConfig.betOfferRankOffers;
+        AppConfig.betOfferRankOffers = new int[]{9701};
+        try {
+            String session1 = bettingHttpClient.getSession(1001L);
+            String session2 = bettingHttpClient.getSession(1002L);
+            String session3 = bettingHttpClient.getSession(1003L);
+            bettingHttpClient.postStake(9701L, session1, 200);
+            bettingHttpClient.postStake(9701L, session2, 300);
+            bettingHttpClient.postStake(9702L, session1, 200);
+
+            assertEquals("rank=2,stake=200,customers=2", bettingHttpClient.getRank(9701L, session1));
+            assertEquals("rank=1,stake=300,customers=2", bettingHttpClient.getRank(9701L, session2));
+            IOException e = assertThrows(IOException.class, () -> bettingHttpClient.getRank(9701L, session3));
+            assertTrue(e.getMessage().endsWith("404"));
+            e = assertThrows(IOException.class, () -> bettingHttpClient.getRank(9702L, session1));
+            assertTrue(e.getMessage().endsWith("404"));
+        } finally {
+            AppConfig.betOfferRankOffers = rankOffers;
+        }
+    }
+
+    @Test
+    public void testOfferStats() throws IOException {
+        BettingHttpClient bettingHttpClient = setUp();
+        String session1 = bettingHttpClient.getSession(1001L);
+        String session2 = bettingHttpClient.getSession(1002L);
+        bettingHttpClient.postStake(9401L, session1, 200);
+        bettingHttpClient.postStake(9401L, session1, 100);
+        bettingHttpClient.postStakes(session2, "9401=50\n9402=10");
+
+        assertEquals("count=3,volume=350,customers=2", bettingHttpClient.getStats(9401L, null));
+        assertEquals("count=3,volume=350,customers=2,customerTotal=300", bettingHttpClient.getStats(9401L, 1001L));
+        assertEquals("count=0,volume=0,customers=0", bettingHttpClient.getStats(9499L, null));
+    }
+
+    @Test
+    public void testCloseOffer(@TempDir Path archiveDirectory) throws IOException {
+        BettingHttpClient bettingHttpClient = setUp(new BetOfferService(null, new OfferArchive(archiveDirectory)));
+        String session = bettingHttpClient.getSession(1001L);
+        bettingHttpClient.postStake(9801L, session, 100);
+
+        String adminToken = AppConfig.betOfferCloseAdminToken;
+        try {
+            AppConfig.betOfferCloseAdminToken = "";
+            HttpServerException e = assertThrows(HttpServerException.class,
+                    () -> bettingHttpClient.closeOffer(9801L, "secret"));
+            assertEquals(403, e.getHttpStatusCode());
+
+            AppConfig.betOfferCloseAdminToken = "secret";
+            e = assertThrows(HttpServerException.class, () -> bettingHttpClient.closeOffer(9801L, null));
+            assertEquals(401, e.getHttpStatusCode());
+            e = assertThrows(HttpServerException.class, () -> bettingHttpClient.closeOffer(9801L, "guess"));
+            assertEquals(401, e.getHttpStatusCode());
+            e = assertThrows(HttpServerException.class, () -> bettingHttpClient.closeOffer(9899L, "secret"));
+            assertEquals(404, e.getHttpStatusCode());
+
+            bettingHttpClient.closeOffer(9801L, "secret");
+        } finally {
+            AppConfig.betOfferCloseAdminToken = adminToken;
+        }
+        HttpServerException e = assertThrows(HttpServerException.class,
+                () -> bettingHttpClient.postStake(9801L, session, 200));
+        assertEquals(409, e.getHttpStatusCode());
+        assertEquals("1001=100", bettingHttpClient.getHighestStake(9801L));
+    }
+
+    @Test
+    public void testSubscribeHighStakes() throws Exception {
+        BettingHttpClient bettingHttpClient = setUp();
+        String session = bettingHttpClient.getSession(1001L);
+        bettingHttpClient.postStake(9501L, session, 100);
+
+        // no version known: answered right away
+        BettingHttpClient.Subscription current = bettingHttpClient.subscribeHighStakes(9501L, null);
+        assertEquals(200, current.statusCode);
+        assertEquals("1001=100", current.body);
+
+        // up to date: waits for the next change
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<BettingHttpClient.Subscription> next =
+                executor.submit(() -> bettingHttpClient.subscribeHighStakes(9501L, current.version));
+        Thread.sleep(200);
+        assertFalse(next.isDone());
+        bettingHttpClient.postStake(9501L, session, 300);
+        BettingHttpClient.Subscription changed = next.get(10, TimeUnit.SECONDS);
+        executor.shutdown();
+        assertEquals(200, changed.statusCode);
+        assertEquals("1001=300", changed.body);
+        assertTrue(changed.version != current.version);
+    }
+
+    @Test
+    public void testMetrics() throws IOException {
+        BettingHttpClient bettingHttpClient = setUp();
+        String session = bettingHttpClient.getSession(1001L);
+        bettingHttpClient.postStake(9005L, session, 200);
+        bettingHttpClient.getHighestStake(9005L);
+
+        String metrics = bettingHttpClient.getMetrics();
+        assertTrue(metrics.contains("http_requests_total{method=\"POST\",route=\"/{betOfferId}/stake\",status=\"200\"} 1\n"), metrics);
+        assertTrue(metrics.contains("http_request_duration_seconds{method=\"GET\",route=\"/{betOfferId}/highstakes\",quantile=\"0.99\"}"), metrics);
+        assertTrue(metrics.contains("http_request_duration_seconds_count{method=\"GET\",route=\"/{customerId}/session\"} 1\n"), metrics);
+        assertTrue(metrics.contains("# TYPE http_admission_queue_depth gauge"), metrics);
+    }
+
     @Test
     public void testPlaceStakeWithConcurrency() throws IOException {
         BettingHttpClient bettingHttpClient = setUp();
@@ -0,0 +1,163 @@
+package com.everymatrix.service.integration;
+
+import com.everymatrix.config.AppConfig;
+import com.everymatrix.controller.MainController;
+import com.everymatrix.server.CustomHttpServer;
+import com.everymatrix.service.BetOfferService;
+import com.everymatrix.service.SessionManager;
+import com.everymatrix.service.basic.BettingHttpClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NioEngineIntegrationTest {
+
+    private String engine;
+    private int port;
+    private CustomHttpServer server;
+
+    private int idleTimeoutMillis;
+    private int requestTimeoutMillis;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        engine = AppConfig.serverEngine;
+        idleTimeoutMillis = AppConfig.serverNioIdleTimeoutMillis;
+        requestTimeoutMillis = AppConfig.serverMaxReqTime;
+        AppConfig.serverEngine = "nio";
+        startServer();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stopServer();
+        AppConfig.serverEngine = engine;
+        AppConfig.serverNioIdleTimeoutMillis = idleTimeoutMillis;
+        AppConfig.serverMaxReqTime = requestTimeoutMillis;
+    }
+
+    private void startServer() throws IOException {
+        port = new Random().nextInt(10000) + 30000;
+        MainController mainController = new MainController(new SessionManager(600000), new BetOfferService());
+        server = new CustomHttpServer();
+        server.registerRoutes(mainController);
+        server.startServer(port);
+    }
+
+    @Test
+    public void testPlaceStake() throws IOException {
+        BettingHttpClient bettingHttpClient = new BettingHttpClient("http://localhost:" + port);
+        String session1 = bettingHttpClient.getSession(1001L);
+        String session2 = bettingHttpClient.getSession(1002L);
+
+        bettingHttpClient.postStake(7L, session1, 200);
+        bettingHttpClient.postStake(7L, session1, 300);
+        bettingHttpClient.postStake(7L, session2, 100);
+
+        assertEquals("1001=300,1002=100", bettingHttpClient.getHighestStake(7L));
+    }
+
+    /**
+     * A bare LF in a header is answered 400, the event loops keep serving
+     */
+    @Test
+    public void testMalformedHeader() throws IOException {
+        for (String request : new String[]{"GET / HTTP/1.1\r\nA: b\nc\r\n\r\n", "GET / HTTP/1.1\r\nA b: c\r\n\r\n",
+                "G\tT / HTTP/1.1\r\n\r\n"}) {
+            try (Socket socket = new Socket("localhost", port)) {
+                OutputStream out = socket.getOutputStream();
+                out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                String response = readAll(socket.getInputStream());
+                assertTrue(response.startsWith("HTTP/1.1 400"), response);
+            }
+        }
+        BettingHttpClient bettingHttpClient = new BettingHttpClient("http://localhost:" + port);
+        assertEquals("", bettingHttpClient.getHighestStake(8L));
+    }
+
+    /**
+     * Three pipelined requests in one write, answered in order on the same connection
+     */
+    @Test
+    public void testPipelining() throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET /1/highstakes HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /1/stake HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /unknown HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+
+            String responses = readAll(socket.getInputStream());
+            int ok = responses.indexOf("HTTP/1.1 200");
+            int notAllowed = responses.indexOf("HTTP/1.1 405");
+            int notFound = responses.indexOf("HTTP/1.1 404");
+            assertTrue(ok >= 0 && ok < notAllowed && notAllowed < notFound, responses);
+            assertTrue(responses.contains("Allow: POST"), responses);
+        }
+    }
+
+    /**
+     * An idle keep-alive connection is closed after server.nio.idle-timeout-millis, a request still incomplete after
+     * server.request.max-time is closed even though its client keeps sending
+     */
+    @Test
+    public void testTimeouts() throws Exception {
+        server.stopServer();
+        AppConfig.serverNioIdleTimeoutMillis = 300;
+        AppConfig.serverMaxReqTime = 1000;
+        startServer();
+
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write("GET /1/highstakes HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            // the response, then the end of the stream once idle
+            String response = readAll(socket.getInputStream());
+            assertTrue(response.startsWith("HTTP/1.1 200"), response);
+        }
+
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            long start = System.nanoTime();
+            out.write("GET /1/highstakes HTTP/1.1\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            // one header byte every 100 ms keeps the connection active, but not the request
+            try {
+                for (int i = 0; i < 40; i++) {
+                    Thread.sleep(100);
+                    out.write('X');
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // closed by the server
+            }
+            assertEquals(-1, socket.getInputStream().read());
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(elapsedMillis >= 1000 && elapsedMillis < 4000, elapsedMillis + " ms");
+        }
+    }
+
+    private String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] data = new byte[1024];
+        int read;
+        while ((read = in.read(data)) != -1) {
+            buffer.write(data, 0, read);
+        }
+        return buffer.toString("ISO-8859-1");
+    }
+}
@@ -0,0 +1,66 @@
+package com.everymatrix.service.unit;
+
+import com.everymatrix.server.AdmissionController;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdmissionControllerTest {
+
+    /**
+     * Collects the worker tokens so that the test decides when the admitted requests run
+     */
+    private final List<Runnable> tokens = new ArrayList<>();
+
+    @Test
+    public void testLowPriorityShedBeforeTopPriority() {
+        AdmissionController admission = new AdmissionController(tokens::add, 0, 4, 2, 0, 1);
+        AtomicInteger rejected = new AtomicInteger();
+
+        assertTrue(admission.submit(0, () -> { }, rejected::incrementAndGet));
+        assertTrue(admission.submit(0, () -> { }, rejected::incrementAndGet));
+        // shedding depth reached: low priority is refused, top priority still fits
+        assertFalse(admission.submit(0, () -> { }, rejected::incrementAndGet));
+        assertTrue(admission.submit(1, () -> { }, rejected::incrementAndGet));
+        assertTrue(admission.submit(1, () -> { }, rejected::incrementAndGet));
+        // capacity reached
+        assertFalse(admission.submit(1, () -> { }, rejected::incrementAndGet));
+
+        assertEquals(4, admission.getQueueDepth());
+        assertEquals(2, admission.getRejectedCount());
+        assertEquals(0, rejected.get());
+    }
+
+    @Test
+    public void testTopPriorityRunsFirst() {
+        AdmissionController admission = new AdmissionController(tokens::add, 0, 10, 10, 0, 1);
+        List<String> order = new ArrayList<>();
+
+        admission.submit(0, () -> order.add("read-1"), () -> { });
+        admission.submit(0, () -> order.add("read-2"), () -> { });
+        admission.submit(1, () -> order.add("write"), () -> { });
+        tokens.forEach(Runnable::run);
+
+        assertEquals(List.of("write", "read-1", "read-2"), order);
+        assertEquals(0, admission.getQueueDepth());
+    }
+
+    @Test
+    public void testExpiredRequestRejected() throws InterruptedException {
+        AdmissionController admission = new AdmissionController(tokens::add, 0, 10, 10, 50, 0);
+        AtomicInteger run = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+
+        admission.submit(0, run::incrementAndGet, rejected::incrementAndGet);
+        Thread.sleep(100);
+        tokens.forEach(Runnable::run);
+
+        assertEquals(0, run.get());
+        assertEquals(1, rejected.get());
+        assertEquals(1, admission.getExpiredCount());
+    }
+}
@@ -0,0 +1,102 @@
+package com.everymatrix.service.unit;
+
+import com.everymatrix.utils.AsyncLogHandler;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AsyncLogHandlerTest {
+
+    @Test
+    public void testRecordsAreWrittenInOrder() {
+        RecordingHandler delegate = new RecordingHandler(null);
+        AsyncLogHandler handler = new AsyncLogHandler(delegate, 16);
+        for (int i = 0; i < 100; i++) {
+            handler.publish(new LogRecord(Level.INFO, "message " + i));
+        }
+        handler.close();
+
+        assertEquals(100 - handler.getDroppedCount(), delegate.records.size());
+        for (int i = 1; i < delegate.records.size(); i++) {
+            assertTrue(sequence(delegate.records.get(i - 1)) < sequence(delegate.records.get(i)));
+        }
+    }
+
+    /**
+     * While the delegate is stuck, publishing never blocks: records beyond the capacity are dropped and counted
+     */
+    @Test
+    public void testDropsWhenFull() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingHandler delegate = new RecordingHandler(release);
+        AsyncLogHandler handler = new AsyncLogHandler(delegate, 8);
+
+        handler.publish(new LogRecord(Level.INFO, "message 0"));
+        assertTrue(delegate.entered.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= 8 + 3; i++) {
+            handler.publish(new LogRecord(Level.INFO, "message " + i));
+        }
+        assertEquals(3, handler.getDroppedCount());
+        assertEquals(9, handler.getPublishedCount());
+
+        release.countDown();
+        handler.close();
+        assertEquals(9, delegate.records.size());
+    }
+
+    @Test
+    public void testLevel() {
+        RecordingHandler delegate = new RecordingHandler(null);
+        AsyncLogHandler handler = new AsyncLogHandler(delegate, 8);
+        handler.setLevel(Level.WARNING);
+        handler.publish(new LogRecord(Level.INFO, "message 0"));
+        handler.publish(new LogRecord(Level.SEVERE, "message 1"));
+        handler.close();
+
+        assertEquals(1, delegate.records.size());
+        assertEquals(Level.SEVERE, delegate.records.get(0).getLevel());
+    }
+
+    private int sequence(LogRecord record) {
+        return Integer.parseInt(record.getMessage().substring("message ".length()));
+    }
+
+    private static class RecordingHandler extends Handler {
+        private final List<LogRecord> records = new CopyOnWriteArrayList<>();
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release;
+
+        private RecordingHandler(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public void publish(LogRecord record) {
+            entered.countDown();
+            if (release != null) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            records.add(record);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
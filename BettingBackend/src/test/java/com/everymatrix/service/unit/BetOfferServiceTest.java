@@ -1,14 +1,28 @@
 package com.everymatrix.service.unit;
 
+import com.everymatrix.config.AppConfig;
+import com.everymatrix.exception.HttpServerException;
+import com.everymatrix.model.StakeBatch;
 import com.everymatrix.model.StakeEntry;
+import com.everymatrix.model.StakesSnapshot;
+import com.everymatrix.persistence.OfferArchive;
 import com.everymatrix.service.BetOfferService;
+import com.everymatrix.service.OfferStats;
+import com.everymatrix.service.TopNStakes;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -43,6 +57,372 @@ public class BetOfferServiceTest {
 
     }
 
+    @Test
+    public void testEqualStakesOfDifferentCustomers() {
+        betOfferService.placeStake(1, 1001, 100);
+        betOfferService.placeStake(1, 1002, 100);
+        betOfferService.placeStake(1, 1001, 100);
+
+        assertEquals(Arrays.asList(new StakeEntry(1001, 100), new StakeEntry(1002, 100)), betOfferService.queryStakes(1));
+    }
+
+    @Test
+    public void testEvictedCustomerComesBack() {
+        TopNStakes topStakes = new TopNStakes(2);
+        topStakes.offer(1001, 100);
+        topStakes.offer(1002, 200);
+        topStakes.offer(1003, 300);
+
+        assertNull(topStakes.get(1001));
+        assertEquals(new StakeEntry(1002, 200), topStakes.get(1002));
+
+        // an evicted customer comes back with a higher stake
+        topStakes.offer(1001, 400);
+        topStakes.offer(1003, 250);
+        assertEquals(Arrays.asList(new StakeEntry(1001, 400), new StakeEntry(1003, 300)), topStakes.top(10));
+        assertNull(topStakes.get(1002));
+        assertEquals(2, topStakes.size());
+    }
+
+    /**
+     * A top N large enough to index its customers keeps the same entries as a per-customer maximum sorted by stake
+     */
+    @Test
+    public void testIndexedTopStakes() {
+        int capacity = 200;
+        TopNStakes topStakes = new TopNStakes(capacity);
+        Map<Integer, Integer> maxStakes = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 50_000; i++) {
+            int customerId = random.nextInt(1000);
+            int stake = random.nextInt(100_000);
+            topStakes.offer(customerId, stake);
+            maxStakes.merge(customerId, stake, Math::max);
+        }
+        List<StakeEntry> expected = maxStakes.entrySet().stream()
+                .map(entry -> new StakeEntry(entry.getKey(), entry.getValue()))
+                .sorted(Comparator.comparingInt(StakeEntry::getStake).reversed()
+                        .thenComparingInt(StakeEntry::getCustomerId))
+                .limit(capacity)
+                .collect(Collectors.toList());
+        assertEquals(expected, topStakes.top(capacity));
+    }
+
+    /**
+     * An offer reloaded in a new instance, as after an eviction or a restart, takes versions above the served ones
+     */
+    @Test
+    public void testVersionsGrowAcrossReloads() throws InterruptedException {
+        TopNStakes topStakes = new TopNStakes(3);
+        for (int i = 0; i < 100; i++) {
+            topStakes.offer(1001, i);
+        }
+        StakesSnapshot served = topStakes.getSnapshot();
+
+        Thread.sleep(1);
+        TopNStakes reloaded = new TopNStakes(3);
+        reloaded.restore(served.getPackedStakes());
+        long restored = reloaded.getSnapshot().getVersion();
+        assertTrue(restored > served.getVersion());
+        // then one per change
+        reloaded.offer(1002, 50);
+        assertEquals(restored + 1, reloaded.getSnapshot().getVersion());
+    }
+
+    @Test
+    public void testAdmissionFloor() {
+        TopNStakes topStakes = new TopNStakes(3);
+        topStakes.offer(1001, 100);
+        topStakes.offer(1002, 200);
+        assertEquals(Integer.MIN_VALUE, topStakes.getFloor());
+
+        topStakes.offer(1003, 300);
+        assertEquals(100, topStakes.getFloor());
+
+        // below the floor: dropped, a kept customer's lower stake changes nothing either
+        topStakes.offer(1004, 50);
+        topStakes.offer(1002, 90);
+        assertNull(topStakes.get(1004));
+        assertEquals(100, topStakes.getFloor());
+
+        // a kept customer's higher replacement raises the floor
+        topStakes.offer(1001, 400);
+        assertEquals(200, topStakes.getFloor());
+        assertEquals(Arrays.asList(new StakeEntry(1001, 400), new StakeEntry(1003, 300), new StakeEntry(1002, 200)),
+                topStakes.top(3));
+    }
+
+    @Test
+    public void testSnapshotChangesOnlyWithTopStakes() {
+        assertSame(StakesSnapshot.EMPTY, betOfferService.querySnapshot(1));
+
+        betOfferService.placeStake(1, 1001, 300);
+        betOfferService.placeStake(1, 1002, 100);
+        StakesSnapshot snapshot = betOfferService.querySnapshot(1);
+        assertTrue(snapshot.getVersion() > 0);
+        assertEquals("1001=300,1002=100", new String(snapshot.getCsv(), StandardCharsets.UTF_8));
+
+        // not the customer's highest: same snapshot
+        betOfferService.placeStake(1, 1001, 200);
+        assertSame(snapshot, betOfferService.querySnapshot(1));
+
+        betOfferService.placeStake(1, 1002, 400);
+        assertEquals(snapshot.getVersion() + 1, betOfferService.querySnapshot(1).getVersion());
+        assertEquals("1002=400,1001=300", new String(betOfferService.querySnapshot(1).getCsv(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testOfferStakesSizeAndPrefix() {
+        AppConfig.highStakesSizeByBetOffer.put(7, 50);
+        try {
+            for (int customer = 1; customer <= 60; customer++) {
+                betOfferService.placeStake(7, customer, customer * 10);
+                betOfferService.placeStake(8, customer, customer * 10);
+            }
+        } finally {
+            AppConfig.highStakesSizeByBetOffer.remove(7);
+        }
+        assertEquals(50, betOfferService.queryStakes(7).size());
+        assertEquals(AppConfig.highStakesSizeForBetOffer, betOfferService.queryStakes(8).size());
+        assertEquals(List.of(new StakeEntry(60, 600), new StakeEntry(59, 590)), betOfferService.queryStakes(7, 2));
+
+        StakesSnapshot snapshot = betOfferService.querySnapshot(7);
+        String csv = new String(snapshot.getCsv(), StandardCharsets.UTF_8);
+        assertEquals("60=600,59=590", csv.substring(0, snapshot.getCsvLength(2)));
+        assertEquals(csv.length(), snapshot.getCsvLength(50));
+        assertEquals(csv.length(), snapshot.getCsvLength(100));
+        assertEquals(0, snapshot.getCsvLength(0));
+    }
+
+    /**
+     * Every accepted stake is counted, including the ones below the admission floor which never reach the top stakes
+     */
+    @Test
+    public void testOfferStats() throws InterruptedException {
+        int threads = 8;
+        int stakesPerThread = 10_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            executor.execute(() -> {
+                for (int i = 0; i < stakesPerThread; i++) {
+                    betOfferService.placeStake(1, thread * 100 + i % 100, i % 7 + 1);
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        OfferStats stats = betOfferService.queryStats(1);
+        assertEquals((long) threads * stakesPerThread, stats.getCount());
+        long perThreadVolume = 0;
+        long customerTotal = 0;
+        for (int i = 0; i < stakesPerThread; i++) {
+            perThreadVolume += i % 7 + 1;
+            if (i % 100 == 5) {
+                customerTotal += i % 7 + 1;
+            }
+        }
+        assertEquals(threads * perThreadVolume, stats.getVolume());
+        assertEquals(threads * 100, stats.getCustomerCount());
+        assertEquals(customerTotal, stats.getCustomerTotal(305));
+        assertEquals(0, stats.getCustomerTotal(99_999));
+        assertNull(betOfferService.queryStats(2));
+    }
+
+    @Test
+    public void testEvictAndReloadOffers(@TempDir Path archiveDirectory) throws Exception {
+        BetOfferService service = new BetOfferService(null, new OfferArchive(archiveDirectory));
+        service.placeStake(1, 1001, 100);
+        service.placeStake(2, 1001, 200);
+        Thread.sleep(5);
+        service.placeStake(2, 1002, 300);
+
+        int maxResident = AppConfig.betOfferMaxResident;
+        int idleTtlSeconds = AppConfig.betOfferIdleTtlSeconds;
+        AppConfig.betOfferMaxResident = 1;
+        try {
+            service.evictOffers();
+        } finally {
+            AppConfig.betOfferMaxResident = maxResident;
+        }
+        // offer 1 was the least recently staked
+        assertEquals(1, service.getResidentOfferCount());
+        assertEquals(1, service.getEvictedOverflowCount());
+        assertEquals(List.of(new StakeEntry(1001, 100)), service.queryStakes(1));
+
+        service.placeStake(1, 1002, 50);
+        assertEquals(1, service.getReloadedCount());
+        assertEquals(List.of(new StakeEntry(1001, 100), new StakeEntry(1002, 50)), service.queryStakes(1));
+
+        AppConfig.betOfferIdleTtlSeconds = 1;
+        try {
+            Thread.sleep(1100);
+            service.placeStake(2, 1003, 400);
+            service.evictOffers();
+        } finally {
+            AppConfig.betOfferIdleTtlSeconds = idleTtlSeconds;
+        }
+        assertEquals(1, service.getEvictedIdleCount());
+        assertEquals(1, service.getResidentOfferCount());
+        assertEquals(List.of(new StakeEntry(1001, 100), new StakeEntry(1002, 50)), service.queryStakes(1));
+    }
+
+    @Test
+    public void testEvictCustomers() throws InterruptedException {
+        for (int customer = 1001; customer <= 1003; customer++) {
+            betOfferService.placeStake(1, customer, 100);
+            Thread.sleep(5);
+        }
+        betOfferService.placeStake(2, 1001, 200);
+
+        int idleTtlSeconds = AppConfig.customerIndexIdleTtlSeconds;
+        int maxCustomers = AppConfig.customerIndexMaxCustomers;
+        AppConfig.customerIndexIdleTtlSeconds = 0;
+        AppConfig.customerIndexMaxCustomers = 2;
+        try {
+            betOfferService.evictCustomers();
+        } finally {
+            AppConfig.customerIndexIdleTtlSeconds = idleTtlSeconds;
+            AppConfig.customerIndexMaxCustomers = maxCustomers;
+        }
+        // the least recently staking customer is evicted, the offers keep its stakes
+        assertEquals(1, betOfferService.getEvictedCustomerCount());
+        assertEquals(2, betOfferService.getIndexedCustomerCount());
+        assertEquals(0, betOfferService.queryCustomerStakes(1002).length);
+        assertEquals(2, betOfferService.queryCustomerStakes(1001).length);
+        assertEquals(3, betOfferService.queryStakes(1).size());
+
+        // a later stake starts the customer's stakes again
+        betOfferService.placeStake(3, 1002, 300);
+        assertEquals(1, betOfferService.queryCustomerStakes(1002).length);
+    }
+
+    @Test
+    public void testCloseOffer(@TempDir Path archiveDirectory) throws Exception {
+        BetOfferService service = new BetOfferService(null, new OfferArchive(archiveDirectory));
+        service.placeStake(1, 1001, 100);
+        service.closeOffer(1);
+
+        assertEquals(0, service.getResidentOfferCount());
+        assertEquals(List.of(new StakeEntry(1001, 100)), service.queryStakes(1));
+        HttpServerException e = assertThrows(HttpServerException.class, () -> service.placeStake(1, 1002, 500));
+        assertEquals(409, e.getHttpStatusCode());
+        assertEquals(List.of(new StakeEntry(1001, 100)), service.queryStakes(1));
+
+        assertSame(StakesSnapshot.EMPTY, service.querySnapshot(2));
+
+        // an offer never staked is not found, and leaves no file
+        e = assertThrows(HttpServerException.class, () -> service.closeOffer(3));
+        assertEquals(404, e.getHttpStatusCode());
+        try (Stream<Path> files = Files.list(archiveDirectory)) {
+            assertEquals(1, files.count());
+        }
+
+        // a batch with a stake on the closed offer applies none of its stakes
+        StakeBatch batch = StakeBatch.read(new ByteArrayInputStream("2=300\n1=500".getBytes(StandardCharsets.UTF_8)), 10);
+        e = assertThrows(HttpServerException.class, () -> service.placeStakes(1002, batch));
+        assertEquals(409, e.getHttpStatusCode());
+        assertSame(StakesSnapshot.EMPTY, service.querySnapshot(2));
+
+        // a restarted service restores nothing for the closed offer, and still serves its final stakes
+        BetOfferService restarted = new BetOfferService(null, new OfferArchive(archiveDirectory));
+        restarted.restoreStake(1, 1003, 900);
+        assertEquals(0, restarted.getResidentOfferCount());
+        assertEquals(List.of(new StakeEntry(1001, 100)), restarted.queryStakes(1));
+    }
+
+    @Test
+    public void testCloseOfferWithoutArchive() {
+        betOfferService.placeStake(1, 1001, 100);
+        // nothing would keep the offer closed once evicted or restarted
+        HttpServerException e = assertThrows(HttpServerException.class, () -> betOfferService.closeOffer(1));
+        assertEquals(501, e.getHttpStatusCode());
+
+        betOfferService.placeStake(1, 1002, 200);
+        assertEquals(List.of(new StakeEntry(1002, 200), new StakeEntry(1001, 100)), betOfferService.queryStakes(1));
+    }
+
+    /**
+     * Stakes below the floor racing with the close of their offer leave no stats, window or ranks behind
+     */
+    @Test
+    public void testCloseOfferRacingStakes(@TempDir Path archiveDirectory) throws Exception {
+        BetOfferService service = new BetOfferService(null, new OfferArchive(archiveDirectory));
+        for (int customer = 1; customer <= 20; customer++) {
+            service.placeStake(1, customer, 1000);
+        }
+        int threads = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch started = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            executor.execute(() -> {
+                started.countDown();
+                for (int i = 0; i < 20_000; i++) {
+                    try {
+                        service.placeStake(1, 100 + thread, 1);
+                    } catch (HttpServerException e) {
+                        assertEquals(409, e.getHttpStatusCode());
+                    }
+                }
+            });
+        }
+        started.await();
+        service.closeOffer(1);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertNull(service.queryStats(1));
+        assertSame(StakesSnapshot.EMPTY, service.queryWindow(1, 60));
+    }
+
+    @Test
+    public void testPlaceStakesGroupedByOffer() throws IOException {
+        betOfferService.placeStake(1, 1001, 10);
+        long version = betOfferService.querySnapshot(1).getVersion();
+        betOfferService.placeStake(2, 1002, 300);
+        StakeBatch batch = StakeBatch.read(new ByteArrayInputStream(
+                "1=100\n2=50\n1=400\n3=-5\n1=200".getBytes(StandardCharsets.UTF_8)), 100);
+        betOfferService.placeStakes(1001, batch);
+
+        assertEquals(List.of(new StakeEntry(1001, 400)), betOfferService.queryStakes(1));
+        assertEquals(List.of(new StakeEntry(1002, 300), new StakeEntry(1001, 50)), betOfferService.queryStakes(2));
+        assertEquals(List.of(new StakeEntry(1001, -5)), betOfferService.queryStakes(3));
+        // one change for the three stakes of offer 1
+        assertEquals(version + 1, betOfferService.querySnapshot(1).getVersion());
+    }
+
+    /**
+     * Stakes of several offers placed concurrently, each offer keeps exactly its top 20 customers
+     */
+    @Test
+    public void testConcurrentPlaceStakeOnManyOffers() throws InterruptedException {
+        int offers = 8;
+        int customers = 200;
+        ExecutorService executorService = Executors.newFixedThreadPool(16);
+        for (int customerId = 0; customerId < customers; customerId++) {
+            for (int offer = 0; offer < offers; offer++) {
+                final int customer = customerId;
+                final int betOfferId = offer;
+                // each customer stakes twice, the second time higher
+                executorService.submit(() -> betOfferService.placeStake(betOfferId, customer, customer * 10));
+                executorService.submit(() -> betOfferService.placeStake(betOfferId, customer, customer * 10 + betOfferId + 1));
+            }
+        }
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(30, TimeUnit.SECONDS));
+
+        for (int offer = 0; offer < offers; offer++) {
+            List<StakeEntry> topStakes = betOfferService.queryStakes(offer);
+            assertEquals(20, topStakes.size());
+            for (int i = 0; i < 20; i++) {
+                int customer = customers - 1 - i;
+                assertEquals(new StakeEntry(customer, customer * 10 + offer + 1), topStakes.get(i));
+            }
+        }
+    }
+
     /**
      * Concurrent Stake Placement by Multiple Customers (100 customer place stake at the same time , each customer place 10 stakes simultaneously)
      */
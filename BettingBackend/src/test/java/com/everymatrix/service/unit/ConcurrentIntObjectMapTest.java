@@ -0,0 +1,77 @@
+package com.everymatrix.service.unit;
+
+import com.everymatrix.utils.ConcurrentIntObjectMap;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConcurrentIntObjectMapTest {
+
+    /**
+     * Random puts and removes, checked against a HashMap, including negative keys and tombstone reuse by rebuilds
+     */
+    @Test
+    public void testAgainstHashMap() {
+        ConcurrentIntObjectMap<String> map = new ConcurrentIntObjectMap<>();
+        Map<Integer, String> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            int key = random.nextInt(2000) - 1000;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                String value = "v" + i;
+                assertEquals(expected.put(key, value), map.put(key, value));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (int key = -1000; key < 1000; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+        Map<Integer, String> visited = new HashMap<>();
+        map.forEach(visited::put);
+        assertEquals(expected, visited);
+    }
+
+    @Test
+    public void testConditionalRemove() {
+        ConcurrentIntObjectMap<String> map = new ConcurrentIntObjectMap<>();
+        String value = map.computeIfAbsent(7, key -> "seven");
+        assertSame(value, map.computeIfAbsent(7, key -> "other"));
+        assertFalse(map.remove(7, "other"));
+        assertTrue(map.remove(7, value));
+        assertNull(map.get(7));
+    }
+
+    /**
+     * computeIfAbsent from many threads creates one value per key
+     */
+    @Test
+    public void testConcurrentComputeIfAbsent() throws InterruptedException {
+        ConcurrentIntObjectMap<Object> map = new ConcurrentIntObjectMap<>();
+        AtomicInteger created = new AtomicInteger();
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        for (int thread = 0; thread < 8; thread++) {
+            executorService.submit(() -> {
+                for (int key = 0; key < 10_000; key++) {
+                    assertNotNull(map.computeIfAbsent(key, k -> {
+                        created.incrementAndGet();
+                        return new Object();
+                    }));
+                }
+            });
+        }
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(30, TimeUnit.SECONDS));
+        assertEquals(10_000, created.get());
+        assertEquals(10_000, map.size());
+    }
+}
@@ -0,0 +1,63 @@
+package com.everymatrix.service.unit;
+
+import com.everymatrix.model.StakeEntry;
+import com.everymatrix.service.CustomerRanks;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CustomerRanksTest {
+
+    @Test
+    public void testRankOf() {
+        CustomerRanks ranks = new CustomerRanks();
+        assertTrue(ranks.record(1001, 300));
+        assertTrue(ranks.record(1002, 500));
+        assertTrue(ranks.record(1003, 300));
+        assertFalse(ranks.record(1002, 400));
+
+        assertEquals(1, ranks.rankOf(1002));
+        // equal stakes rank by customerId, as the top stakes
+        assertEquals(2, ranks.rankOf(1001));
+        assertEquals(3, ranks.rankOf(1003));
+        assertEquals(0, ranks.rankOf(1004));
+
+        assertTrue(ranks.record(1003, 600));
+        assertEquals(1, ranks.rankOf(1003));
+        assertEquals(600, ranks.stakeOf(1003));
+        assertEquals(3, ranks.rankOf(1001));
+        assertEquals(3, ranks.size());
+    }
+
+    /**
+     * Ranks of random stakes against the sorted highest stakes of each customer
+     */
+    @Test
+    public void testRandomStakes() {
+        Random random = new Random(42);
+        CustomerRanks ranks = new CustomerRanks();
+        Map<Integer, Integer> highest = new HashMap<>();
+        for (int i = 0; i < 50_000; i++) {
+            int customerId = random.nextInt(5_000) - 2_500;
+            int stake = random.nextInt(1_000);
+            ranks.record(customerId, stake);
+            highest.merge(customerId, stake, Math::max);
+        }
+        List<StakeEntry> sorted = new ArrayList<>();
+        highest.forEach((customerId, stake) -> sorted.add(new StakeEntry(customerId, stake)));
+        sorted.sort(null);
+
+        assertEquals(sorted.size(), ranks.size());
+        for (int i = 0; i < sorted.size(); i++) {
+            StakeEntry entry = sorted.get(i);
+            assertEquals(i + 1, ranks.rankOf(entry.getCustomerId()));
+            assertEquals(entry.getStake(), ranks.stakeOf(entry.getCustomerId()));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.everymatrix.service.unit;
+
+import com.everymatrix.service.CustomerStakes;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CustomerStakesTest {
+
+    @Test
+    public void testRecord() {
+        CustomerStakes stakes = new CustomerStakes(3);
+        assertTrue(stakes.record(9001, 100));
+        assertTrue(stakes.record(9002, 300));
+        assertFalse(stakes.record(9002, 200));
+        assertTrue(stakes.record(9001, 250));
+        assertTrue(stakes.record(9003, 50));
+        assertEquals("9002=300,9001=250,9003=50", toString(stakes.getStakes()));
+
+        // full: a stake below the lowest kept is dropped, a higher one evicts it
+        assertFalse(stakes.record(9004, 10));
+        assertTrue(stakes.record(9004, 400));
+        assertEquals("9004=400,9002=300,9001=250", toString(stakes.getStakes()));
+    }
+
+    /**
+     * Concurrent stakes of one customer on many offers, none is lost by a failed compare-and-set
+     */
+    @Test
+    public void testConcurrentRecord() throws InterruptedException {
+        int threads = 8;
+        int offersPerThread = 50;
+        CustomerStakes stakes = new CustomerStakes(threads * offersPerThread);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            executor.execute(() -> {
+                for (int stake = 1; stake <= 100; stake++) {
+                    for (int i = 0; i < offersPerThread; i++) {
+                        stakes.record(thread * offersPerThread + i, stake * 1000 + thread * offersPerThread + i);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        long[] kept = stakes.getStakes();
+        assertEquals(threads * offersPerThread, kept.length);
+        for (int i = 0; i < kept.length; i++) {
+            int betOfferId = CustomerStakes.betOfferId(kept[i]);
+            assertEquals(100_000 + betOfferId, CustomerStakes.stake(kept[i]));
+            assertTrue(i == 0 || CustomerStakes.stake(kept[i - 1]) > CustomerStakes.stake(kept[i]));
+        }
+    }
+
+    private static String toString(long[] stakes) {
+        StringBuilder builder = new StringBuilder();
+        for (long stake : stakes) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(CustomerStakes.betOfferId(stake)).append('=').append(CustomerStakes.stake(stake));
+        }
+        return builder.toString();
+    }
+}
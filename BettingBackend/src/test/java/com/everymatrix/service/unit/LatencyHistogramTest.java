@@ -0,0 +1,40 @@
+package com.everymatrix.service.unit;
+
+import com.everymatrix.metrics.LatencyHistogram;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testQuantiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtQuantile(0.99));
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1_000_000, histogram.getMax());
+        assertEquals(500_500_000L, histogram.getSum());
+        assertWithinPrecision(500_000, histogram.getValueAtQuantile(0.5));
+        assertWithinPrecision(990_000, histogram.getValueAtQuantile(0.99));
+        assertEquals(1_000_000, histogram.getValueAtQuantile(1.0));
+    }
+
+    @Test
+    public void testSmallAndHugeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3);
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.getValueAtQuantile(0.3));
+        assertEquals(3, histogram.getValueAtQuantile(0.6));
+        assertEquals(histogram.getMax(), histogram.getValueAtQuantile(1.0));
+    }
+
+    private void assertWithinPrecision(long expected, long actual) {
+        assertTrue(actual >= expected && actual <= expected + expected / 32, "expected ~" + expected + " got " + actual);
+    }
+}
@@ -0,0 +1,103 @@
+package com.everymatrix.service.unit;
+
+import com.everymatrix.model.StakeBatch;
+import com.everymatrix.utils.IOUtils;
+import com.everymatrix.utils.UrlUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RequestParsingTest {
+
+    @Test
+    public void testReadInt() throws IOException {
+        assertEquals(4500, readInt("4500"));
+        assertEquals(4500, readInt(" \r\n4500\n"));
+        assertEquals(-12, readInt("-12"));
+        assertEquals(Integer.MAX_VALUE, readInt("2147483647"));
+        assertEquals(Integer.MIN_VALUE, readInt("-2147483648"));
+
+        assertThrows(NumberFormatException.class, () -> readInt(""));
+        assertThrows(NumberFormatException.class, () -> readInt("12a"));
+        assertThrows(NumberFormatException.class, () -> readInt("1 2"));
+        assertThrows(NumberFormatException.class, () -> readInt("2147483648"));
+        assertThrows(NumberFormatException.class, () -> readInt("1" + " ".repeat(40)));
+    }
+
+    @Test
+    public void testReadStakeBatch() throws IOException {
+        StakeBatch batch = readBatch("9001=200\n9002 = -35, 9003=+7\r\n\n");
+        assertEquals(3, batch.size());
+        assertEquals(9001, batch.getBetOfferId(0));
+        assertEquals(200, batch.getStake(0));
+        assertEquals(-35, batch.getStake(1));
+        assertEquals(9003, batch.getBetOfferId(2));
+        assertEquals(7, batch.getStake(2));
+        assertEquals(0, readBatch("").size());
+        assertEquals(Integer.MIN_VALUE, readBatch("1=-2147483648").getStake(0));
+
+        assertThrows(NumberFormatException.class, () -> readBatch("9001"));
+        assertThrows(NumberFormatException.class, () -> readBatch("9001="));
+        assertThrows(NumberFormatException.class, () -> readBatch("9001=1 2"));
+        assertThrows(NumberFormatException.class, () -> readBatch("9001=- 2"));
+        assertThrows(NumberFormatException.class, () -> readBatch("-1=2"));
+        assertThrows(NumberFormatException.class, () -> readBatch("1=2147483648"));
+        assertThrows(NumberFormatException.class, () -> readBatch("1=1,2=2,3=3,4=4,5=5,6=6"));
+    }
+
+    @Test
+    public void testGetQueryParam() {
+        URI uri = URI.create("/1/stake?session=x&sessionkey=C1T2&empty=&flag&encoded=a%2Fb&limit=5");
+        assertEquals("C1T2", UrlUtils.getQueryParam(uri, "sessionkey"));
+        assertEquals("x", UrlUtils.getQueryParam(uri, "session"));
+        assertEquals("a/b", UrlUtils.getQueryParam(uri, "encoded"));
+        assertNull(UrlUtils.getQueryParam(uri, "empty"));
+        assertNull(UrlUtils.getQueryParam(uri, "flag"));
+        assertNull(UrlUtils.getQueryParam(uri, "key"));
+        assertNull(UrlUtils.getQueryParam(URI.create("/1/stake"), "sessionkey"));
+
+        assertEquals(5, UrlUtils.getIntQueryParam(uri, "limit", 20));
+        assertEquals(20, UrlUtils.getIntQueryParam(uri, "offset", 20));
+        assertThrows(NumberFormatException.class, () -> UrlUtils.getIntQueryParam(uri, "session", 0));
+
+        URI versioned = URI.create("/1/highstakes/subscribe?sinceVersion=8589934592&limit=5");
+        assertEquals(8_589_934_592L, UrlUtils.getLongQueryParam(versioned, "sinceVersion", -1));
+        assertEquals(-1, UrlUtils.getLongQueryParam(uri, "sinceVersion", -1));
+        assertThrows(NumberFormatException.class, () -> UrlUtils.getLongQueryParam(uri, "session", -1));
+    }
+
+    @Test
+    public void testParseIntList() {
+        assertArrayEquals(new int[]{9001, 9002, -3}, UrlUtils.parseIntList("9001,9002,-3", 3));
+        assertArrayEquals(new int[]{7}, UrlUtils.parseIntList("7", 3));
+
+        assertThrows(NumberFormatException.class, () -> UrlUtils.parseIntList("1,2,3,4", 3));
+        assertThrows(NumberFormatException.class, () -> UrlUtils.parseIntList("1,,2", 3));
+        assertThrows(NumberFormatException.class, () -> UrlUtils.parseIntList("1,a", 3));
+    }
+
+    @Test
+    public void testParseSeconds() {
+        assertEquals(300, UrlUtils.parseSeconds("300s"));
+        assertEquals(300, UrlUtils.parseSeconds("300"));
+        assertEquals(300, UrlUtils.parseSeconds("5m"));
+        assertEquals(7200, UrlUtils.parseSeconds("2h"));
+
+        assertThrows(NumberFormatException.class, () -> UrlUtils.parseSeconds("s"));
+        assertThrows(NumberFormatException.class, () -> UrlUtils.parseSeconds("5d"));
+        assertThrows(NumberFormatException.class, () -> UrlUtils.parseSeconds(""));
+    }
+
+    private StakeBatch readBatch(String body) throws IOException {
+        return StakeBatch.read(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), 5);
+    }
+
+    private int readInt(String body) throws IOException {
+        return IOUtils.readInt(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), 32);
+    }
+}
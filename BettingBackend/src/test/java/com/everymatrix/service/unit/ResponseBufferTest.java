@@ -0,0 +1,47 @@
+package com.everymatrix.service.unit;
+
+import com.everymatrix.model.StakeEntry;
+import com.everymatrix.utils.ResponseBuffer;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResponseBufferTest {
+
+    @Test
+    public void testAppend() {
+        ResponseBuffer buffer = ResponseBuffer.lease();
+        buffer.append(0).append((byte) ',').append(-42).append((byte) ',').append(Integer.MAX_VALUE)
+                .append((byte) ',').append(Integer.MIN_VALUE).append((byte) ',').append("C1T2").append("é");
+        assertEquals("0,-42,2147483647,-2147483648,C1T2é", toString(buffer));
+        buffer.release();
+    }
+
+    @Test
+    public void testAppendLong() {
+        ResponseBuffer buffer = ResponseBuffer.lease();
+        buffer.append(12L).append((byte) ',').append(-3_000_000_000L).append((byte) ',').append(Long.MAX_VALUE)
+                .append((byte) ',').append(Long.MIN_VALUE);
+        assertEquals("12,-3000000000,9223372036854775807,-9223372036854775808", toString(buffer));
+        buffer.release();
+    }
+
+    @Test
+    public void testWriteCSV() {
+        ResponseBuffer buffer = StakeEntry.writeCSV(
+                Arrays.asList(new StakeEntry(1001, 300), new StakeEntry(1002, 100)), ResponseBuffer.lease());
+        assertEquals("1001=300,1002=100", toString(buffer));
+        buffer.release();
+
+        ResponseBuffer reused = ResponseBuffer.lease();
+        assertEquals(0, reused.size());
+        reused.release();
+    }
+
+    private String toString(ResponseBuffer buffer) {
+        return new String(buffer.array(), 0, buffer.size(), StandardCharsets.UTF_8);
+    }
+}
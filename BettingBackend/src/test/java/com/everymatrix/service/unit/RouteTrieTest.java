@@ -0,0 +1,70 @@
+package com.everymatrix.service.unit;
+
+import com.everymatrix.model.HttpMethod;
+import com.everymatrix.model.RouteHandler;
+import com.everymatrix.model.RouteMatch;
+import com.everymatrix.server.RouteTrie;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Method;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RouteTrieTest {
+
+    private RouteTrie routeTrie;
+
+    @BeforeEach
+    public void setUp() throws NoSuchMethodException {
+        Method method = Object.class.getMethod("toString");
+        routeTrie = new RouteTrie();
+        routeTrie.add(new RouteHandler(HttpMethod.GET, "/{customerId}/session", method, this, null, 0));
+        routeTrie.add(new RouteHandler(HttpMethod.POST, "/{betOfferId}/stake", method, this, null, 0));
+        routeTrie.add(new RouteHandler(HttpMethod.GET, "/{betOfferId}/highstakes", method, this, null, 0));
+        routeTrie.add(new RouteHandler(HttpMethod.GET, "/stake/{customerId}/history", method, this, null, 0));
+    }
+
+    @Test
+    public void testMatchPathVariables() {
+        RouteMatch match = routeTrie.match("POST", "/1234/stake");
+        assertNotNull(match.getHandler());
+        assertEquals("/{betOfferId}/stake", match.getHandler().getPath());
+        assertEquals("1234", match.getPathVariable(0));
+        assertEquals("1234", match.getPathVariables().get("betOfferId"));
+    }
+
+    @Test
+    public void testLiteralBacktracksToVariable() {
+        RouteMatch history = routeTrie.match("GET", "/stake/42/history");
+        assertEquals("/stake/{customerId}/history", history.getHandler().getPath());
+        assertEquals("42", history.getPathVariables().get("customerId"));
+
+        // "stake" is also a literal first segment, the walk should fall back to {customerId}
+        RouteMatch session = routeTrie.match("GET", "/stake/session");
+        assertEquals("/{customerId}/session", session.getHandler().getPath());
+        assertEquals("stake", session.getPathVariables().get("customerId"));
+    }
+
+    @Test
+    public void testNotFoundAndMethodNotAllowed() {
+        RouteMatch notFound = routeTrie.match("GET", "/1234/unknown");
+        assertNull(notFound.getHandler());
+        assertFalse(notFound.isMethodNotAllowed());
+
+        assertFalse(routeTrie.match("GET", "//session").isMethodNotAllowed());
+        assertNull(routeTrie.match("GET", "/1234/session/").getHandler());
+
+        RouteMatch notAllowed = routeTrie.match("GET", "/1234/stake");
+        assertNull(notAllowed.getHandler());
+        assertTrue(notAllowed.isMethodNotAllowed());
+        assertEquals("POST", notAllowed.getAllowedMethods());
+    }
+
+    @Test
+    public void testDuplicateRoute() throws NoSuchMethodException {
+        Method method = Object.class.getMethod("hashCode");
+        assertThrows(IllegalStateException.class,
+                () -> routeTrie.add(new RouteHandler(HttpMethod.GET, "/{id}/session", method, this, null, 0)));
+    }
+}
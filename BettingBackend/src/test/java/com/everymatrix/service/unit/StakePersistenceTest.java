@@ -0,0 +1,125 @@
+package com.everymatrix.service.unit;
+
+import com.everymatrix.persistence.FsyncPolicy;
+import com.everymatrix.persistence.StakePersistence;
+import com.everymatrix.service.BetOfferService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StakePersistenceTest {
+
+    private static final int OFFERS = 50;
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Concurrent stakes journaled with group commit, a restart recovers the same top stakes for every offer
+     */
+    @Test
+    public void testRecoverFromJournal() throws Exception {
+        BetOfferService original = placeStakes(FsyncPolicy.ALWAYS);
+
+        BetOfferService recovered = restart();
+        assertSameOffers(original, recovered);
+    }
+
+    /**
+     * Stakes before a snapshot come from it, the later ones from the journal, the covered segments are deleted
+     */
+    @Test
+    public void testRecoverFromSnapshotAndJournal() throws Exception {
+        StakePersistence persistence = new StakePersistence(directory, FsyncPolicy.INTERVAL, 5, 2);
+        BetOfferService original = new BetOfferService(persistence.getJournal());
+        Random random = new Random(7);
+        for (int i = 0; i < 5_000; i++) {
+            original.placeStake(random.nextInt(OFFERS), random.nextInt(500), random.nextInt(100_000));
+        }
+        persistence.snapshot(original);
+        persistence.snapshot(original);
+        for (int i = 0; i < 5_000; i++) {
+            original.placeStake(random.nextInt(OFFERS), random.nextInt(500), random.nextInt(100_000));
+        }
+        persistence.close();
+
+        assertEquals(1, countFiles("journal-"), "segments before the latest snapshot are deleted");
+        assertEquals(1, countFiles("snapshot-"));
+        assertSameOffers(original, restart());
+    }
+
+    /**
+     * A record torn by a crash ends the replay of its segment, the complete records before it are recovered
+     */
+    @Test
+    public void testTornRecordIsIgnored() throws Exception {
+        StakePersistence persistence = new StakePersistence(directory, FsyncPolicy.NONE, 10, 1);
+        BetOfferService original = new BetOfferService(persistence.getJournal());
+        original.placeStake(1, 1001, 100);
+        original.placeStake(1, 1002, 200);
+        persistence.close();
+
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            segment = files.filter(path -> path.getFileName().toString().startsWith("journal-")).findFirst().orElseThrow();
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            // half a record, as left by a crash in the middle of a write
+            channel.truncate(16 + 8);
+        }
+
+        BetOfferService recovered = restart();
+        assertEquals("1001=100", new String(recovered.querySnapshot(1).getCsv()));
+    }
+
+    private BetOfferService placeStakes(FsyncPolicy fsyncPolicy) throws Exception {
+        StakePersistence persistence = new StakePersistence(directory, fsyncPolicy, 10, 0);
+        BetOfferService service = new BetOfferService(persistence.getJournal());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int t = 0; t < 8; t++) {
+            long seed = t;
+            executor.execute(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < 2_000; i++) {
+                    service.placeStake(random.nextInt(OFFERS), random.nextInt(500), random.nextInt(100_000));
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        persistence.close();
+        return service;
+    }
+
+    private BetOfferService restart() throws IOException {
+        StakePersistence persistence = new StakePersistence(directory, FsyncPolicy.NONE, 10, 4);
+        BetOfferService recovered = new BetOfferService(persistence.getJournal());
+        persistence.recover(recovered);
+        persistence.close();
+        return recovered;
+    }
+
+    private void assertSameOffers(BetOfferService expected, BetOfferService actual) {
+        for (int betOfferId = 0; betOfferId < OFFERS; betOfferId++) {
+            assertEquals(expected.queryStakes(betOfferId), actual.queryStakes(betOfferId), "offer " + betOfferId);
+        }
+    }
+
+    private long countFiles(String prefix) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().startsWith(prefix)).count();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.everymatrix.service.unit;
+
+import com.everymatrix.exception.HttpServerException;
+import com.everymatrix.model.StakesSnapshot;
+import com.everymatrix.service.StakesNotifier;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StakesNotifierTest {
+
+    private final AtomicReference<StakesSnapshot> latest = new AtomicReference<>(new StakesSnapshot(new long[0], 1));
+
+    /**
+     * Records the calls of a subscriber as "change:version" or "timeout:version"
+     */
+    private static StakesNotifier.Subscriber recorder(BlockingQueue<String> calls) {
+        return new StakesNotifier.Subscriber() {
+            @Override
+            public void onChange(StakesSnapshot snapshot) {
+                calls.add("change:" + snapshot.getVersion());
+            }
+
+            @Override
+            public void onTimeout(StakesSnapshot snapshot) {
+                calls.add("timeout:" + snapshot.getVersion());
+            }
+        };
+    }
+
+    @Test
+    public void testChangesAreCoalesced() throws InterruptedException {
+        StakesNotifier notifier = new StakesNotifier(betOfferId -> latest.get(), 100, 60_000, 10);
+        BlockingQueue<String> calls = new LinkedBlockingQueue<>();
+
+        // another version is known: answered right away
+        notifier.subscribe(1, 0, recorder(calls));
+        assertEquals("change:1", calls.poll());
+
+        notifier.subscribe(1, 1, recorder(calls));
+        notifier.subscribe(1, 1, recorder(calls));
+        assertEquals(2, notifier.getSubscriberCount());
+        for (int version = 2; version <= 50; version++) {
+            latest.set(new StakesSnapshot(new long[0], version));
+            notifier.changed(1);
+        }
+        // each subscriber is told once, with the version current when its offer was served
+        assertTrue(calls.poll(5, TimeUnit.SECONDS).startsWith("change:"));
+        assertTrue(calls.poll(5, TimeUnit.SECONDS).startsWith("change:"));
+        assertNull(calls.poll(300, TimeUnit.MILLISECONDS));
+        assertEquals(0, notifier.getSubscriberCount());
+    }
+
+    @Test
+    public void testTimeoutAndSubscriberLimit() throws InterruptedException {
+        StakesNotifier notifier = new StakesNotifier(betOfferId -> latest.get(), 10, 200, 2);
+        BlockingQueue<String> calls = new LinkedBlockingQueue<>();
+
+        notifier.subscribe(1, 1, recorder(calls));
+        notifier.subscribe(2, 1, recorder(calls));
+        HttpServerException e = assertThrows(HttpServerException.class, () -> notifier.subscribe(3, 1, recorder(calls)));
+        assertEquals(503, e.getHttpStatusCode());
+
+        assertEquals("timeout:1", calls.poll(5, TimeUnit.SECONDS));
+        assertEquals("timeout:1", calls.poll(5, TimeUnit.SECONDS));
+        assertEquals(0, notifier.getSubscriberCount());
+        // a change of an offer without subscriber is ignored
+        notifier.changed(1);
+        assertNull(calls.poll(100, TimeUnit.MILLISECONDS));
+    }
+}
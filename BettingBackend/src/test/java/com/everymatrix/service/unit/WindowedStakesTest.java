@@ -0,0 +1,82 @@
+package com.everymatrix.service.unit;
+
+import com.everymatrix.model.StakeEntry;
+import com.everymatrix.service.WindowedStakes;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WindowedStakesTest {
+
+    private static final long BUCKET_MILLIS = 10_000;
+
+    @Test
+    public void testWindowsSlide() {
+        // top 2 in buckets of 10s, windows up to 60s
+        WindowedStakes window = new WindowedStakes(2, BUCKET_MILLIS, 6);
+        long start = 1_000 * BUCKET_MILLIS;
+        window.record(1, 500, start);
+        window.record(2, 100, start + BUCKET_MILLIS);
+        window.record(3, 300, start + 2 * BUCKET_MILLIS);
+        window.record(2, 400, start + 2 * BUCKET_MILLIS + 1);
+        long now = start + 2 * BUCKET_MILLIS + 5_000;
+
+        assertEquals(List.of(new StakeEntry(2, 400), new StakeEntry(3, 300)), window.query(1, now).getEntries());
+        assertEquals(List.of(new StakeEntry(2, 400), new StakeEntry(3, 300)), window.query(2, now).getEntries());
+        assertEquals(List.of(new StakeEntry(1, 500), new StakeEntry(2, 400)), window.query(3, now).getEntries());
+
+        // the cached merge of the completed buckets does not hide the stakes of the current one
+        window.record(4, 450, now);
+        assertEquals(List.of(new StakeEntry(1, 500), new StakeEntry(4, 450)), window.query(3, now).getEntries());
+
+        // once the window slid past the first bucket, its stake is gone
+        now += BUCKET_MILLIS;
+        assertEquals(List.of(new StakeEntry(4, 450), new StakeEntry(2, 400)), window.query(3, now).getEntries());
+
+        // after the ring wrapped, the old buckets are not read again
+        now += 10 * BUCKET_MILLIS;
+        assertEquals(0, window.query(6, now).size());
+        window.record(5, 10, now);
+        assertEquals(List.of(new StakeEntry(5, 10)), window.query(6, now).getEntries());
+    }
+
+    @Test
+    public void testBucketFloor() {
+        WindowedStakes window = new WindowedStakes(2, BUCKET_MILLIS, 3);
+        long now = 42 * BUCKET_MILLIS;
+        for (int customer = 1; customer <= 100; customer++) {
+            window.record(customer, customer, now);
+        }
+        assertEquals(List.of(new StakeEntry(100, 100), new StakeEntry(99, 99)), window.query(3, now).getEntries());
+    }
+
+    /**
+     * Concurrent stakes of one bucket race by compare-and-set, none of the top ones is lost
+     */
+    @Test
+    public void testConcurrentRecords() throws InterruptedException {
+        WindowedStakes window = new WindowedStakes(3, BUCKET_MILLIS, 3);
+        long now = 7 * BUCKET_MILLIS;
+        int threads = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            executor.execute(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    window.record(thread * 10_000 + i, i, now);
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        // the four customers staking 9999, in customerId order, the fourth beyond the top 3
+        assertEquals(List.of(new StakeEntry(9_999, 9_999), new StakeEntry(19_999, 9_999), new StakeEntry(29_999, 9_999)),
+                window.query(1, now).getEntries());
+    }
+}